@@ -0,0 +1,530 @@
+// Copyright (c) 2026, The Secrets for Android Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.Filter;
+import android.widget.Filterable;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Adapter for the auto complete lists of the username and email views.  The
+ * values are kept in a trie keyed by their characters with the case folded,
+ * so that the values that start with a prefix, ignoring case, are found by
+ * following the prefix down the trie.
+ *
+ * Values are ranked by how many secrets use them and how recently those
+ * secrets changed.  Each secret adds a weight to the score of its value
+ * that halves for every HALF_LIFE_MS between the last change of the secret
+ * and the creation of the adapter.  Since the weight of a secret does not
+ * depend on the current time, it is simply added when the secret is added
+ * and subtracted when it is removed.  Weights are fixed point integers, so
+ * that adding and subtracting them is exact.  Each value remembers the
+ * weight that each of its secrets added, so that removing a secret
+ * subtracts exactly that weight, even if the secret changed since.
+ *
+ * Each node of the trie keeps the best ranked values of its subtree, up to
+ * MAX_SUGGESTIONS, which are updated on the path of each value added or
+ * removed.  When all the values are loaded at once by load(), they are
+ * computed only once for each node, from the bottom up.  Finding the
+ * suggestions for a prefix takes time proportional to its length, whatever
+ * the number of values.
+ *
+ * A value is dropped when the last secret using it is removed.  The trie is
+ * synchronized, since it is read by the filter thread while the UI thread
+ * modifies it.
+ */
+class AutoCompleteAdapter extends BaseAdapter implements Filterable {
+  /** Maximum number of values suggested. */
+  private static final int MAX_SUGGESTIONS = 20;
+
+  /** Time it takes for the weight of a secret to halve: 90 days. */
+  private static final long HALF_LIFE_MS = 90L * 24 * 60 * 60 * 1000;
+
+  /**
+   * The weight of a secret last changed when the adapter was created is 1 in
+   * fixed point with this many bits after the point.  Weights of older
+   * secrets bottom out at the smallest fixed point value after this many
+   * half lives, about 7 years.
+   */
+  private static final int WEIGHT_BITS = 30;
+
+  /**
+   * The highest number of half lives a secret can be newer than the
+   * adapter, so that a clock set far in the future cannot make the weights of
+   * the other secrets vanish, and the sum of the weights cannot overflow.
+   */
+  private static final int MAX_HALF_LIVES = 8;
+
+  /** Best ranked value first, then by case folded text. */
+  private static final Comparator<Value> RANK = new Comparator<Value>() {
+    @Override
+    public int compare(Value v1, Value v2) {
+      if (v1.score != v2.score)
+        return v1.score > v2.score ? -1 : 1;
+      int result = v1.text.compareToIgnoreCase(v2.text);
+      return 0 != result ? result : v1.text.compareTo(v2.text);
+    }
+  };
+
+  private static final char[] NO_KEYS = {};
+  private static final Node[] NO_CHILDREN = {};
+  private static final Value[] NO_VALUES = {};
+
+  /** A node of the trie. */
+  private static final class Node {
+    // The case folded characters of the children, in increasing order, and
+    // the children in the same order.  Only the first childCount of each are
+    // used.
+    char[] keys = NO_KEYS;
+    Node[] children = NO_CHILDREN;
+    int childCount;
+
+    // The values whose case folded characters end at this node, or null if
+    // there are none.  There is usually at most one.
+    ArrayList<Value> values;
+
+    // The best ranked values of the subtree of this node, best first.
+    Value[] top = NO_VALUES;
+
+    boolean isEmpty() {
+      return 0 == childCount && (null == values || values.isEmpty());
+    }
+
+    /** Returns the child for the given character, or null if none. */
+    Node getChild(char c) {
+      int i = find(c);
+      return i >= 0 ? children[i] : null;
+    }
+
+    /** Returns the child for the given character, adding it if needed. */
+    Node addChild(char c) {
+      int i = find(c);
+      if (i >= 0)
+        return children[i];
+
+      i = -i - 1;
+      if (childCount == keys.length) {
+        int length = Math.max(2, 2 * childCount);
+        char[] newKeys = new char[length];
+        Node[] newChildren = new Node[length];
+        System.arraycopy(keys, 0, newKeys, 0, childCount);
+        System.arraycopy(children, 0, newChildren, 0, childCount);
+        keys = newKeys;
+        children = newChildren;
+      }
+
+      System.arraycopy(keys, i, keys, i + 1, childCount - i);
+      System.arraycopy(children, i, children, i + 1, childCount - i);
+      Node child = new Node();
+      keys[i] = c;
+      children[i] = child;
+      ++childCount;
+      return child;
+    }
+
+    /** Removes the child for the given character, if any. */
+    void removeChild(char c) {
+      int i = find(c);
+      if (i < 0)
+        return;
+
+      --childCount;
+      System.arraycopy(keys, i + 1, keys, i, childCount - i);
+      System.arraycopy(children, i + 1, children, i, childCount - i);
+      children[childCount] = null;
+    }
+
+    /**
+     * Returns the index of the child for the given character, or, if there
+     * is none, -1 minus the index where it would be inserted.
+     */
+    private int find(char c) {
+      int low = 0;
+      int high = childCount - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        if (keys[mid] < c)
+          low = mid + 1;
+        else if (keys[mid] > c)
+          high = mid - 1;
+        else
+          return mid;
+      }
+      return -low - 1;
+    }
+  }
+
+  /**
+   * A value of the list, with the ids of the secrets that use it, the weight
+   * that each one added, and the sum of their weights.
+   */
+  private static final class Value {
+    final String text;
+    long[] ids = new long[1];
+    long[] weights = new long[1];
+    int count;
+    long score;
+
+    Value(String text) {
+      this.text = text;
+    }
+
+    void addUse(long id, long weight) {
+      if (count == ids.length) {
+        long[] newIds = new long[2 * count];
+        long[] newWeights = new long[2 * count];
+        System.arraycopy(ids, 0, newIds, 0, count);
+        System.arraycopy(weights, 0, newWeights, 0, count);
+        ids = newIds;
+        weights = newWeights;
+      }
+
+      ids[count] = id;
+      weights[count] = weight;
+      ++count;
+      score += weight;
+    }
+
+    /** Removes the use by the given secret, if any. */
+    void removeUse(long id) {
+      for (int i = 0; i < count; ++i) {
+        if (ids[i] == id) {
+          score -= weights[i];
+          --count;
+          ids[i] = ids[count];
+          weights[i] = weights[count];
+          return;
+        }
+      }
+    }
+  }
+
+  private final LayoutInflater inflater;
+  private Node root = new Node();
+
+  // Reused by add() and remove() for the path from the root to a value, and
+  // by updateTop() to select the best values of a node.
+  private Node[] path = new Node[16];
+  private final Value[] best = new Value[MAX_SUGGESTIONS];
+
+  // Time from which the weights of the secrets are computed.
+  private final long epoch = System.currentTimeMillis();
+
+  // The values shown by the adapter, as found by the last filtering.
+  private List<String> matches = new ArrayList<String>();
+  private Filter filter;
+
+  /**
+   * Creates an empty adapter.
+   *
+   * @param context Context of the application, used for inflating views.
+   */
+  AutoCompleteAdapter(Context context) {
+    inflater = LayoutInflater.from(context);
+  }
+
+  /**
+   * Adds one use of the given value.  Empty values are ignored.
+   *
+   * @param value The username or email of a secret.
+   * @param id The id of the secret.
+   * @param time The time the secret was last changed, as returned by
+   *     Secret.getLastChanged().
+   */
+  public synchronized void add(String value, long id, long time) {
+    if (null == value || 0 == value.length())
+      return;
+
+    addUse(value, id, time);
+    for (int i = value.length(); i >= 0; --i) {
+      updateTop(path[i]);
+    }
+  }
+
+  /**
+   * Replaces all the values with the given ones.  This is faster than adding
+   * them one at a time, since the best values of each node are computed only
+   * once.  Empty values are ignored.
+   *
+   * @param values The usernames or emails of the secrets.
+   * @param ids The ids of the secrets, in the same order as the values.
+   * @param times The times the secrets were last changed, as returned by
+   *     Secret.getLastChanged(), in the same order as the values.
+   */
+  public synchronized void load(String[] values, long[] ids, long[] times) {
+    root = new Node();
+    for (int i = 0; i < values.length; ++i) {
+      if (null != values[i] && 0 != values[i].length())
+        addUse(values[i], ids[i], times[i]);
+    }
+
+    // In depth first order, every node comes after its parent, so going
+    // through the nodes backwards updates the children before their parent.
+    ArrayList<Node> nodes = new ArrayList<Node>();
+    ArrayList<Node> stack = new ArrayList<Node>();
+    stack.add(root);
+    while (!stack.isEmpty()) {
+      Node node = stack.remove(stack.size() - 1);
+      nodes.add(node);
+      for (int i = 0; i < node.childCount; ++i) {
+        stack.add(node.children[i]);
+      }
+    }
+
+    for (int i = nodes.size() - 1; i >= 0; --i) {
+      updateTop(nodes.get(i));
+    }
+  }
+
+  /**
+   * Removes the use of the given value by a secret.  The value is dropped
+   * from the list once it is not used anymore.
+   *
+   * @param value The username or email of the secret, as given to add().
+   * @param id The id of the secret.
+   */
+  public synchronized void remove(String value, long id) {
+    if (null == value || 0 == value.length())
+      return;
+
+    // Remember the path to the value, to remove the nodes left empty.
+    Node node = root;
+    setPath(0, node);
+    for (int i = 0; i < value.length(); ++i) {
+      node = node.getChild(fold(value.charAt(i)));
+      if (null == node)
+        return;
+      setPath(i + 1, node);
+    }
+
+    for (int i = 0; null != node.values && i < node.values.size(); ++i) {
+      Value v = node.values.get(i);
+      if (v.text.equals(value)) {
+        v.removeUse(id);
+        if (0 == v.count)
+          node.values.remove(i);
+        break;
+      }
+    }
+
+    int depth = value.length();
+    for (; depth > 0 && path[depth].isEmpty(); --depth) {
+      path[depth - 1].removeChild(fold(value.charAt(depth - 1)));
+    }
+    for (int i = depth; i >= 0; --i) {
+      updateTop(path[i]);
+    }
+  }
+
+  /**
+   * Returns the best ranked values that start with the given prefix,
+   * ignoring case, best first.  At most MAX_SUGGESTIONS values are returned.
+   */
+  public synchronized ArrayList<String> find(CharSequence prefix) {
+    ArrayList<String> found = new ArrayList<String>();
+    Node node = root;
+    for (int i = 0; null != prefix && i < prefix.length(); ++i) {
+      node = node.getChild(fold(prefix.charAt(i)));
+      if (null == node)
+        return found;
+    }
+
+    for (Value v : node.top) {
+      found.add(v.text);
+    }
+    return found;
+  }
+
+  @Override
+  public int getCount() {
+    return matches.size();
+  }
+
+  @Override
+  public Object getItem(int position) {
+    return matches.get(position);
+  }
+
+  @Override
+  public long getItemId(int position) {
+    return position;
+  }
+
+  @Override
+  public View getView(int position, View convertView, ViewGroup parent) {
+    if (null == convertView) {
+      convertView = inflater.inflate(
+          android.R.layout.simple_dropdown_item_1line, parent, false);
+    }
+
+    ((TextView) convertView).setText(matches.get(position));
+    return convertView;
+  }
+
+  @Override
+  public Filter getFilter() {
+    if (null == filter)
+      filter = new ValuesFilter();
+
+    return filter;
+  }
+
+  /** Filters the values by prefix, by looking them up in the trie. */
+  private class ValuesFilter extends Filter {
+    @Override
+    protected FilterResults performFiltering(CharSequence prefix) {
+      // NOTE: this function is *always* called from a background thread, and
+      // not the UI thread.
+      ArrayList<String> found = find(prefix);
+      FilterResults results = new FilterResults();
+      results.values = found;
+      results.count = found.size();
+      return results;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    protected void publishResults(CharSequence prefix,
+                                  FilterResults results) {
+      // NOTE: this function is *always* called from the UI thread.
+      matches = (List<String>) results.values;
+      if (results.count > 0) {
+        notifyDataSetChanged();
+      } else {
+        notifyDataSetInvalidated();
+      }
+    }
+  }
+
+  /**
+   * Returns the weight of a secret last changed at the given time, in fixed
+   * point with WEIGHT_BITS bits after the point.  It is never less than the
+   * smallest fixed point value, so that the number of secrets using a value
+   * still counts when they are all very old.
+   */
+  private long getWeight(long time) {
+    double halfLives = Math.min(MAX_HALF_LIVES,
+                                (time - epoch) / (double) HALF_LIFE_MS);
+    return Math.max(1, Math.round(Math.pow(2, WEIGHT_BITS + halfLives)));
+  }
+
+  /**
+   * Adds one use of the given value to the trie, without updating the best
+   * values of the nodes.  On return, path holds the nodes from the root to
+   * the node of the value.
+   */
+  private void addUse(String value, long id, long time) {
+    Node node = root;
+    setPath(0, node);
+    for (int i = 0; i < value.length(); ++i) {
+      node = node.addChild(fold(value.charAt(i)));
+      setPath(i + 1, node);
+    }
+
+    if (null == node.values)
+      node.values = new ArrayList<Value>(1);
+
+    Value v = null;
+    for (Value existing : node.values) {
+      if (existing.text.equals(value)) {
+        v = existing;
+        break;
+      }
+    }
+
+    if (null == v) {
+      v = new Value(value);
+      node.values.add(v);
+    }
+
+    v.addUse(id, getWeight(time));
+  }
+
+  /** Sets a node of the path, growing it as needed. */
+  private void setPath(int depth, Node node) {
+    if (depth == path.length) {
+      Node[] newPath = new Node[2 * path.length];
+      System.arraycopy(path, 0, newPath, 0, path.length);
+      path = newPath;
+    }
+    path[depth] = node;
+  }
+
+  /**
+   * Updates the best ranked values of a node, whose children are up to
+   * date.  The best values of a subtree are among the values of its root and
+   * the best values of its children, so only the nodes on the path of a
+   * value need to be updated when it changes.
+   */
+  private void updateTop(Node node) {
+    int count = 0;
+    if (null != node.values) {
+      for (Value v : node.values) {
+        count = offer(v, count);
+      }
+    }
+
+    for (int i = 0; i < node.childCount; ++i) {
+      for (Value v : node.children[i].top) {
+        // The best values of a child are sorted, so once one of them is not
+        // good enough, neither are the ones after it.
+        if (MAX_SUGGESTIONS == count && RANK.compare(v, best[count - 1]) >= 0)
+          break;
+        count = offer(v, count);
+      }
+    }
+
+    if (node.top.length != count)
+      node.top = 0 == count ? NO_VALUES : new Value[count];
+    System.arraycopy(best, 0, node.top, 0, count);
+  }
+
+  /**
+   * Inserts a value in its place among the first count values of best,
+   * dropping the worst one if best is full.
+   *
+   * @return The number of values in best.
+   */
+  private int offer(Value v, int count) {
+    int i;
+    if (MAX_SUGGESTIONS == count) {
+      if (RANK.compare(v, best[count - 1]) >= 0)
+        return count;
+      i = count - 1;
+    } else {
+      i = count++;
+    }
+
+    for (; i > 0 && RANK.compare(v, best[i - 1]) < 0; --i) {
+      best[i] = best[i - 1];
+    }
+    best[i] = v;
+    return count;
+  }
+
+  /** Folds the case of a character, like String.compareToIgnoreCase(). */
+  private static char fold(char c) {
+    return Character.toLowerCase(Character.toUpperCase(c));
+  }
+}
@@ -0,0 +1,325 @@
+// Copyright (c) 2026, The Secrets for Android Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores blobs sealed with SecurityUtils.sealBlob(), each one identified by
+ * the id at its start.  Since the same data always gives the same blob, a
+ * blob shared by many restore points is stored only once.
+ *
+ * All the blobs are appended to a single file, each one preceded by its
+ * length as 4 bytes, so that small blobs don't each use a whole block of
+ * the file system.  The position of each blob is found by reading the file
+ * once, skipping over the blobs themselves.  If the app died while appending,
+ * the incomplete blob at the end of the file is dropped.  A blob damaged
+ * anywhere else makes the store fail to read, and the file is left alone so
+ * that the blobs after it are not lost.  Blobs that are not needed anymore
+ * are removed by retainAll(), which rewrites the file once enough of it is
+ * unused.
+ *
+ * All methods are synchronized.
+ */
+class BlobStore {
+  /** Tag for logging purposes. */
+  public static final String LOG_TAG = "Secrets";
+
+  /** Name of the blob file. */
+  public static final String FILE_NAME = "blobs";
+
+  /** Upper bound on the length of one blob, to detect corrupted lengths. */
+  private static final int MAX_BLOB_LENGTH = 4 * 1024 * 1024;
+
+  /** The file is never compacted when it has less unused bytes than this. */
+  private static final long MIN_COMPACT_SIZE = 64 * 1024;
+
+  private final File file;
+
+  // The position in the file of the length of each blob, keyed by id.  This
+  // is null until the file is read.
+  private HashMap<String, Long> positions;
+  private long fileLength;
+
+  /**
+   * Creates a blob store in the given directory.  Nothing is read until the
+   * store is used.
+   *
+   * @param dir Directory holding the blob file.
+   */
+  BlobStore(File dir) {
+    file = new File(dir, FILE_NAME);
+  }
+
+  /** Returns the id of a blob, as a string. */
+  public static String getId(byte[] blob) {
+    StringBuilder builder = new StringBuilder(
+        2 * SecurityUtils.BLOB_ID_LENGTH);
+    for (int i = 0; i < SecurityUtils.BLOB_ID_LENGTH; ++i) {
+      builder.append(Character.forDigit((blob[i] >> 4) & 0x0F, 16));
+      builder.append(Character.forDigit(blob[i] & 0x0F, 16));
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Adds blobs to the store.  Blobs that are already in the store are not
+   * added again.
+   *
+   * @param blobs Blobs returned by SecurityUtils.sealBlob().
+   * @return The number of bytes added to the file.
+   */
+  public synchronized long putAll(List<byte[]> blobs) throws IOException {
+    HashMap<String, Long> map = getPositions();
+    DataOutputStream output = null;
+    try {
+      output = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(file, true)));
+      long position = fileLength;
+      for (byte[] blob : blobs) {
+        String id = getId(blob);
+        if (map.containsKey(id))
+          continue;
+
+        output.writeInt(blob.length);
+        output.write(blob);
+        map.put(id, position);
+        position += 4 + blob.length;
+      }
+
+      output.close();
+      output = null;
+      long added = position - fileLength;
+      fileLength = position;
+      return added;
+    } catch (IOException ex) {
+      // Read the file again, to find out which blobs made it.
+      positions = null;
+      throw ex;
+    } finally {
+      try {if (null != output) output.close();} catch (IOException ex) {}
+    }
+  }
+
+  /**
+   * Returns the blob with the given id.
+   *
+   * @param id The id of the blob, as returned by getId().
+   * @throws IOException If the blob is not in the store.
+   */
+  public synchronized byte[] get(String id) throws IOException {
+    Long position = getPositions().get(id);
+    if (null == position)
+      throw new IOException("Missing blob " + id);
+
+    RandomAccessFile input = null;
+    try {
+      input = new RandomAccessFile(file, "r");
+      return read(input, position);
+    } finally {
+      try {if (null != input) input.close();} catch (IOException ex) {}
+    }
+  }
+
+  /**
+   * Returns the number of bytes of the file used by the given blobs,
+   * including their lengths.  Blobs that are not in the store are ignored.
+   *
+   * @param ids The ids of the blobs, as returned by getId().
+   */
+  public synchronized long getSize(Set<String> ids) throws IOException {
+    HashMap<String, Long> map = getPositions();
+    if (map.isEmpty())
+      return 0;
+
+    RandomAccessFile input = null;
+    try {
+      input = new RandomAccessFile(file, "r");
+      return getSize(input, map, ids);
+    } finally {
+      try {if (null != input) input.close();} catch (IOException ex) {}
+    }
+  }
+
+  /**
+   * Removes all the blobs except the given ones.  The file is rewritten only
+   * if at least half of it, and at least MIN_COMPACT_SIZE bytes, is used by
+   * blobs that are removed.
+   *
+   * @param ids The ids of the blobs to keep.
+   * @return True if the file was rewritten.
+   */
+  public synchronized boolean retainAll(Set<String> ids) throws IOException {
+    HashMap<String, Long> map = getPositions();
+    if (map.isEmpty())
+      return false;
+
+    File temp = new File(file.getParentFile(), FILE_NAME + ".tmp");
+    RandomAccessFile input = null;
+    DataOutputStream output = null;
+    try {
+      input = new RandomAccessFile(file, "r");
+      long used = getSize(input, map, ids);
+      long unused = fileLength - used;
+      if (unused < MIN_COMPACT_SIZE || unused < used)
+        return false;
+
+      HashMap<String, Long> kept = new HashMap<String, Long>();
+      output = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(temp)));
+      long position = 0;
+      for (Map.Entry<String, Long> entry : map.entrySet()) {
+        if (!ids.contains(entry.getKey()))
+          continue;
+
+        byte[] blob = read(input, entry.getValue());
+        output.writeInt(blob.length);
+        output.write(blob);
+        kept.put(entry.getKey(), position);
+        position += 4 + blob.length;
+      }
+
+      output.close();
+      output = null;
+      input.close();
+      input = null;
+      if (!temp.renameTo(file))
+        throw new IOException("Cannot rename blob file");
+
+      positions = kept;
+      fileLength = position;
+      return true;
+    } finally {
+      try {if (null != input) input.close();} catch (IOException ex) {}
+      try {if (null != output) output.close();} catch (IOException ex) {}
+      temp.delete();
+    }
+  }
+
+  /** Deletes all the blobs. */
+  public synchronized void delete() {
+    file.delete();
+    positions = null;
+  }
+
+  /** Returns the bytes of the file used by the given blobs. */
+  private static long getSize(RandomAccessFile input,
+                              HashMap<String, Long> map, Set<String> ids)
+      throws IOException {
+    long size = 0;
+    for (String id : ids) {
+      Long position = map.get(id);
+      if (null != position) {
+        input.seek(position);
+        size += 4 + input.readInt();
+      }
+    }
+    return size;
+  }
+
+  /** Reads the blob at the given position of the file. */
+  private static byte[] read(RandomAccessFile input, long position)
+      throws IOException {
+    input.seek(position);
+    int length = input.readInt();
+    if (length <= SecurityUtils.BLOB_ID_LENGTH || length > MAX_BLOB_LENGTH)
+      throw new IOException("Bad blob length");
+
+    byte[] blob = new byte[length];
+    input.readFully(blob);
+    return blob;
+  }
+
+  /**
+   * Returns the positions of the blobs, reading the file if not done yet.
+   * An incomplete blob at the end of the file, left when the app dies while
+   * adding it, is cut off.
+   *
+   * @throws IOException If a blob before the last one is damaged.  The file
+   *     is left as it is, since cutting it off there would lose all the
+   *     blobs after the damaged one.
+   */
+  private HashMap<String, Long> getPositions() throws IOException {
+    if (null != positions)
+      return positions;
+
+    HashMap<String, Long> map = new HashMap<String, Long>();
+    long position = 0;
+    if (file.exists()) {
+      // Skipping bytes may go past the end of the file without any error, so
+      // the length of each blob is checked against the size of the file.
+      long size = file.length();
+      DataInputStream input = null;
+      try {
+        input = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(file)));
+        byte[] id = new byte[SecurityUtils.BLOB_ID_LENGTH];
+        // Only the last blob can be incomplete: either its length is cut
+        // short, or the file ends before its data does.  A length that can
+        // never be valid means the file is damaged.
+        while (position + 4 <= size) {
+          int length = input.readInt();
+          if (length <= id.length || length > MAX_BLOB_LENGTH)
+            throw new IOException("Bad blob length at " + position);
+          if (position + 4 + length > size)
+            break;
+
+          input.readFully(id);
+          int skip = length - id.length;
+          while (skip > 0) {
+            int n = input.skipBytes(skip);
+            if (n <= 0)
+              throw new EOFException();
+            skip -= n;
+          }
+
+          map.put(getId(id), position);
+          position += 4 + length;
+        }
+      } finally {
+        try {if (null != input) input.close();} catch (IOException ex) {}
+      }
+
+      if (position != size) {
+        Log.d(LOG_TAG, "BlobStore: truncating at " + position);
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+          output.setLength(position);
+        } finally {
+          try {output.close();} catch (IOException ex) {}
+        }
+      }
+    }
+
+    positions = map;
+    fileLength = position;
+    return map;
+  }
+}
@@ -0,0 +1,152 @@
+// Copyright (c) 2026, The Secrets for Android Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of changes made to the user's secrets.  A version number is
+ * incremented each time a secret is modified, or when secrets are added to or
+ * removed from the list of secrets.  Comparing the current version to the
+ * version that was last saved tells if the secrets need to be saved again.
+ *
+ * The secrets that changed are also recorded, so that a save can append
+ * only those to the journal without comparing every secret with what is on
+ * disk.  The changes are taken along with the snapshot of the secrets that
+ * is saved.
+ *
+ * Modifications can happen in the UI thread while a save is running in a
+ * background thread, so the version is updated atomically.
+ */
+public class ChangeTracker {
+  /**
+   * The changes made between two calls to takeChanges(), and the version of
+   * the secrets at the end.
+   */
+  public static class Changes {
+    /** The version of the secrets when the changes were taken. */
+    public final long version;
+
+    // The secrets added to or removed from the list, by id.  The value is the
+    // secret that was in the list with that id when the changes were taken,
+    // or null if there was none.  Null if the changes are not known.
+    HashMap<Long, Secret> listed;
+
+    // The secrets that were modified, whether in the list or not.  Null if
+    // the changes are not known.
+    HashSet<Secret> modified;
+
+    Changes(long version, HashMap<Long, Secret> listed,
+            HashSet<Secret> modified) {
+      this.version = version;
+      this.listed = listed;
+      this.modified = modified;
+    }
+
+    /**
+     * Are the changes known?  If not, every secret must be compared with
+     * what is on disk.
+     */
+    public boolean isKnown() {
+      return null != listed;
+    }
+
+    /**
+     * Adds the changes that were taken before these ones, so that these
+     * cover both.
+     *
+     * @param earlier The earlier changes.
+     */
+    public void addEarlier(Changes earlier) {
+      if (!isKnown() || !earlier.isKnown()) {
+        listed = null;
+        modified = null;
+        return;
+      }
+
+      for (Map.Entry<Long, Secret> entry : earlier.listed.entrySet()) {
+        if (!listed.containsKey(entry.getKey()))
+          listed.put(entry.getKey(), entry.getValue());
+      }
+      modified.addAll(earlier.modified);
+    }
+  }
+
+  private static final AtomicLong version = new AtomicLong();
+
+  // The changes made since they were last taken, or null if some change was
+  // not recorded per secret.  Guarded by the lock of the ChangeTracker class,
+  // which is also held while incrementing the version, so that the version
+  // and the changes taken always match.
+  private static HashMap<Long, Secret> listed;
+  private static HashSet<Secret> modified;
+
+  /**
+   * Record that the secrets, or the list of secrets, changed in a way that is
+   * not recorded per secret, such as replacing the whole list.
+   */
+  public static synchronized void markChanged() {
+    listed = null;
+    modified = null;
+    version.incrementAndGet();
+  }
+
+  /** Record that the given secret was modified. */
+  public static synchronized void markChanged(Secret secret) {
+    if (null != modified)
+      modified.add(secret);
+    version.incrementAndGet();
+  }
+
+  /** Record that the given secret was added to the list of secrets. */
+  public static synchronized void markAdded(Secret secret) {
+    if (null != listed)
+      listed.put(secret.getId(), secret);
+    version.incrementAndGet();
+  }
+
+  /** Record that the given secret was removed from the list of secrets. */
+  public static synchronized void markRemoved(Secret secret) {
+    // Another secret with the same id may have been added since, such as the
+    // edited copy of this secret.
+    if (null != listed) {
+      Secret current = listed.get(secret.getId());
+      if (null == current || secret == current)
+        listed.put(secret.getId(), null);
+    }
+    version.incrementAndGet();
+  }
+
+  /**
+   * Returns the changes made since this method was last called, and starts
+   * recording new ones.  This must be called in the UI thread, right after
+   * taking the snapshot of the secrets that is saved, so that the changes
+   * match the snapshot.
+   */
+  public static synchronized Changes takeChanges() {
+    Changes changes = new Changes(version.get(), listed, modified);
+    listed = new HashMap<Long, Secret>();
+    modified = new HashSet<Secret>();
+    return changes;
+  }
+
+  /** Returns the current version of the secrets. */
+  public static long getVersion() {
+    return version.get();
+  }
+}
@@ -0,0 +1,267 @@
+// Copyright (c) 2026, The Secrets for Android Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Encrypts a block of data as a sequence of chunks of fixed size, each one
+ * sealed on its own with SecurityUtils.seal().  Since every chunk has its own
+ * IV and authentication tag, the chunks are encrypted and decrypted in
+ * parallel on phones with more than one core, and any chunk can be verified
+ * and decrypted without reading the chunks before it.
+ *
+ * The data is written as:
+ *
+ *   - number of bytes of data in each chunk: 4 bytes, big endian
+ *   - total number of bytes of data: 4 bytes, big endian
+ *   - the sealed chunks, in order.  Every chunk except the last one holds
+ *     exactly the same number of bytes of data, so the position of any chunk
+ *     can be computed from its number.
+ *
+ * The tag of each chunk covers its number, whether it is the last chunk, the
+ * total length of the data and the clear text header of the file given by
+ * the caller.  Chunks cannot be reordered, dropped or truncated, and the
+ * headers cannot be changed, without detection.
+ */
+public class ChunkedCipher {
+  /** Number of bytes of data in each chunk. */
+  public static final int CHUNK_SIZE = 32 * 1024;
+
+  /**
+   * Upper bound on the length of the data, to detect corrupted lengths.  It
+   * must be less than 2^32, and hold less than 2^15 chunks, for the context
+   * built by getContext().
+   */
+  private static final int MAX_LENGTH = 64 * 1024 * 1024;
+
+  private static final int THREAD_COUNT =
+      Runtime.getRuntime().availableProcessors();
+
+  // Created the first time there is more than one chunk to process.
+  private static ExecutorService pool;
+
+  /**
+   * Encrypts the data and writes it to the stream.  The stream is not
+   * closed.
+   *
+   * @param output Stream to write to.
+   * @param data Data to encrypt.
+   * @param header The clear text header of the file, such as its format
+   *     version and flags, in 16 bits.  It is covered by the tag of every
+   *     chunk, and must be given again to read().
+   */
+  public static void write(OutputStream output, final byte[] data,
+                           final int header)
+      throws IOException, GeneralSecurityException {
+    if (data.length > MAX_LENGTH)
+      throw new IOException("Data too long");
+
+    final int count = getChunkCount(data.length);
+    List<Callable<byte[]>> tasks = new ArrayList<Callable<byte[]>>(count);
+    for (int i = 0; i < count; ++i) {
+      final int number = i;
+      tasks.add(new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws GeneralSecurityException {
+          int offset = number * CHUNK_SIZE;
+          int length = Math.min(CHUNK_SIZE, data.length - offset);
+          return SecurityUtils.seal(SecurityUtils.SEAL_CHUNK,
+                                    getContext(header, data.length, number),
+                                    data, offset, length);
+        }
+      });
+    }
+
+    List<byte[]> chunks = runAll(tasks);
+    DataOutputStream lengths = new DataOutputStream(output);
+    lengths.writeInt(CHUNK_SIZE);
+    lengths.writeInt(data.length);
+    lengths.flush();
+    for (byte[] chunk : chunks) {
+      output.write(chunk);
+    }
+  }
+
+  /**
+   * Reads and decrypts data written by write().  The stream is left just
+   * after the last chunk, and is not closed.
+   *
+   * @param input Stream positioned at the start of the data.
+   * @param header The header given to write().
+   * @return The decrypted data.
+   * @throws GeneralSecurityException If the first chunk cannot be verified,
+   *     most likely because the password is not valid.  Errors in other
+   *     chunks are reported as an IOException, since they mean that the data
+   *     is damaged.
+   */
+  public static byte[] read(InputStream input, final int header)
+      throws IOException, GeneralSecurityException {
+    DataInputStream data = new DataInputStream(input);
+    int chunkSize = data.readInt();
+    final int length = data.readInt();
+    if (CHUNK_SIZE != chunkSize)
+      throw new IOException("Bad chunk size");
+    if (length < 0 || length > MAX_LENGTH)
+      throw new IOException("Bad data length");
+
+    // The chunks are read one at a time, so that a corrupted length cannot
+    // make us allocate more memory than the bytes actually in the stream.  A
+    // stream that is too short for the length ends with an EOFException
+    // before the result is allocated.
+    final int count = getChunkCount(length);
+    final ArrayList<byte[]> chunks = new ArrayList<byte[]>();
+    for (int i = 0; i < count; ++i) {
+      int size = Math.min(CHUNK_SIZE, length - i * CHUNK_SIZE);
+      byte[] chunk = new byte[SecurityUtils.getSealedLength(size)];
+      data.readFully(chunk);
+      chunks.add(chunk);
+    }
+
+    // The first chunk is checked on its own, so that an invalid password is
+    // found without starting the other threads.
+    byte[] first = SecurityUtils.unseal(SecurityUtils.SEAL_CHUNK,
+                                        getContext(header, length, 0),
+                                        chunks.get(0));
+
+    List<Callable<byte[]>> tasks = new ArrayList<Callable<byte[]>>(count);
+    for (int i = 1; i < count; ++i) {
+      final int number = i;
+      tasks.add(new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws IOException {
+          try {
+            return SecurityUtils.unseal(SecurityUtils.SEAL_CHUNK,
+                                        getContext(header, length, number),
+                                        chunks.get(number));
+          } catch (GeneralSecurityException ex) {
+            throw new IOException("Chunk " + number + " is damaged");
+          }
+        }
+      });
+    }
+
+    List<byte[]> decrypted = runAll(tasks);
+    byte[] result = new byte[length];
+    int offset = 0;
+    for (int i = 0; i < count; ++i) {
+      byte[] chunk = 0 == i ? first : decrypted.get(i - 1);
+      int size = Math.min(CHUNK_SIZE, length - offset);
+      if (chunk.length != size)
+        throw new IOException("Chunk " + i + " has the wrong length");
+
+      System.arraycopy(chunk, 0, result, offset, size);
+      offset += size;
+    }
+    return result;
+  }
+
+  /**
+   * Returns the number of chunks needed for data of the given length.  There
+   * is always at least one chunk, even for empty data.
+   */
+  private static int getChunkCount(int length) {
+    return Math.max(1, (length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+  }
+
+  /**
+   * Returns the context to use when sealing a chunk.  From the highest bits
+   * down, it holds the 16 bits of the header of the file, the 32 bits of the
+   * length of the data, the 15 bits of the number of the chunk, and whether
+   * it is the last one.
+   */
+  private static long getContext(int header, int length, int number) {
+    boolean isLast = number == getChunkCount(length) - 1;
+    return ((long) (header & 0xffff) << 48) |
+        ((length & 0xffffffffL) << 16) | ((long) number << 1) |
+        (isLast ? 1 : 0);
+  }
+
+  /**
+   * Runs all the tasks, using the thread pool if there is more than one task
+   * and more than one core.  The results are returned in the same order as
+   * the tasks.
+   */
+  private static List<byte[]> runAll(List<Callable<byte[]>> tasks)
+      throws IOException, GeneralSecurityException {
+    List<byte[]> results = new ArrayList<byte[]>(tasks.size());
+    try {
+      if (tasks.size() <= 1 || THREAD_COUNT <= 1) {
+        for (Callable<byte[]> task : tasks) {
+          results.add(task.call());
+        }
+        return results;
+      }
+
+      // The threads of the pool must use the same seal keys as the calling
+      // thread, which may not be the keys of the current password.
+      final SecurityUtils.SealKeys keys = SecurityUtils.getSealKeys();
+      List<Callable<byte[]>> pooled =
+          new ArrayList<Callable<byte[]>>(tasks.size());
+      for (final Callable<byte[]> task : tasks) {
+        pooled.add(new Callable<byte[]>() {
+          @Override
+          public byte[] call() throws Exception {
+            SecurityUtils.useSealKeys(keys);
+            try {
+              return task.call();
+            } finally {
+              SecurityUtils.useSealKeys(null);
+            }
+          }
+        });
+      }
+
+      for (Future<byte[]> future : getPool().invokeAll(pooled)) {
+        try {
+          results.add(future.get());
+        } catch (ExecutionException ex) {
+          throw ex.getCause();
+        }
+      }
+    } catch (IOException ex) {
+      throw ex;
+    } catch (GeneralSecurityException ex) {
+      throw ex;
+    } catch (InterruptedException ex) {
+      throw new InterruptedIOException();
+    } catch (RuntimeException ex) {
+      throw ex;
+    } catch (Throwable ex) {
+      throw new RuntimeException(ex);
+    }
+    return results;
+  }
+
+  private static synchronized ExecutorService getPool() {
+    if (null == pool)
+      pool = Executors.newFixedThreadPool(THREAD_COUNT);
+
+    return pool;
+  }
+}
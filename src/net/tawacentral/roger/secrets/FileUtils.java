@@ -24,6 +24,10 @@ import android.util.Log;
 import au.com.bytecode.opencsv.CSVReader;
 import au.com.bytecode.opencsv.CSVWriter;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -32,15 +36,21 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
-import javax.crypto.CipherOutputStream;
 
 /**
  * Helper class to manage reading and writing the secrets file.  The file
@@ -79,13 +89,71 @@ public class FileUtils {
 
   private static final String EMPTY_STRING = "";
   private static final String INDENT = "   ";
-  private static final String RP_PREFIX = "@";
+  static final String RP_PREFIX = "@";
 
   /** Tag for logging purposes. */
   public static final String LOG_TAG = "Secrets";
 
-  /** Lock for accessing main secrets file. */
-  private static final Object lock = new Object();
+  /**
+   * Lock for accessing the main secrets file, the journal and the restore
+   * points.  Any number of threads may read the files at the same time, for
+   * example a load and a cloud backup, but changing the files needs the
+   * write lock.  The journal and persistedVersion are only changed while
+   * holding the write lock.
+   */
+  private static final ReentrantReadWriteLock lock =
+      new ReentrantReadWriteLock();
+
+  /**
+   * Incremented each time the files are changed, while holding the write
+   * lock.  A thread that read the files with the read lock compares it to the
+   * value it saw while reading, to find out if what it read is still what is
+   * on disk.
+   */
+  private static long generation;
+
+  /** Time spent waiting for the lock, for logging purposes. */
+  private static final LockStats readLockStats = new LockStats("read");
+  private static final LockStats writeLockStats = new LockStats("write");
+
+  /** Journal of changes made since the secrets file was last written. */
+  private static final SecretsJournal journal = new SecretsJournal();
+
+  /** Describes the secrets file and the restore points. */
+  private static final RestorePointManifest manifest =
+      new RestorePointManifest();
+
+  /**
+   * Maximum number of restore points deleted by each call to
+   * pruneRestorePoints().
+   */
+  private static final int MAX_PRUNE_COUNT = 4;
+
+  /**
+   * Holds the secrets of the restore points in shared form.  Created the
+   * first time it is needed.
+   */
+  private static BlobStore blobStore;
+
+  /**
+   * Maximum number of restore points rewritten in shared form by each call
+   * to shareRestorePoints().
+   */
+  private static final int MAX_SHARE_COUNT = 2;
+
+  /**
+   * Restore points that could not be rewritten in shared form, for example
+   * because they were written with another password.  They are not tried
+   * again until the app is restarted.  Only used while holding the write
+   * lock.
+   */
+  private static final HashSet<String> unshareable = new HashSet<String>();
+
+  /**
+   * Version of the secrets, as given by the ChangeTracker, that was last
+   * loaded from or saved to the secrets file.  -1 if unknown.
+   */
+  private static volatile long persistedVersion = -1;
   
   /** Does the secrets file exist? */
   public static boolean secretsExist(Context context) {
@@ -108,6 +176,14 @@ public class FileUtils {
     return filenames.length > 0;
   }
 
+  /**
+   * Are the secrets on disk the same as the ones in memory?  If so, there is
+   * no need to save them.
+   */
+  public static boolean isSaved() {
+    return ChangeTracker.getVersion() == persistedVersion;
+  }
+
   /** Does the secrets restore file exist on the SD card? */
   public static boolean restoreFileExist() {
     File file = new File(SECRETS_FILE_NAME_SDCARD);
@@ -127,15 +203,6 @@ public class FileUtils {
     return (now - lastModified) > oneWeeks;
   }
   
-  /** Is the restore point too old? */
-  private static boolean isRestorePointTooOld(File file) {
-    long lastModified = file.lastModified();
-    long now = System.currentTimeMillis();
-    long twoDays = 2 * 24 * 60 * 60 * 1000;  // 2 days.
-    
-    return (now - lastModified) > twoDays;
-  }
-  
   /**
    * Get all existing restore points, including the restore file on the SD card
    * if it exists.
@@ -144,18 +211,70 @@ public class FileUtils {
    * @return A list of all possible restore points.
    */
   public static List<String> getRestorePoints(Context context) {
-    String[] filenames = context.fileList(); 
-    ArrayList<String> list = new ArrayList<String>(filenames.length + 1);
+    // The read lock makes sure not to list a restore point that is being
+    // renamed or deleted.
+    List<RestorePointManifest.Entry> points;
+    lockForRead("FileUtils.getRestorePoints");
+    try {
+      points = manifest.getRestorePoints(context.getFilesDir());
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    ArrayList<String> list = new ArrayList<String>(points.size() + 1);
     if (restoreFileExist())
       list.add(SECRETS_FILE_NAME_SDCARD);
     
-    for (String filename : filenames) {
-      if (filename.startsWith(RP_PREFIX))
-        list.add(filename);
+    for (RestorePointManifest.Entry point : points) {
+      list.add(point.name);
     }
     
     return list;
   }
+
+  /**
+   * Get the metadata of the given restore points, without decrypting any
+   * secret.  Only a small block at the start of each file is read, so this
+   * is fast enough to describe all the restore points in the restore dialog.
+   *
+   * @param context Activity context in which the restore is called.
+   * @param rps Restore point names, as returned by getRestorePoints().
+   * @return The metadata of each restore point, in the same order.  An
+   *     element is null if the restore point has no metadata because it was
+   *     written by an older version of the app, or if its metadata cannot be
+   *     read, for example because it was written with another password.
+   */
+  public static List<SecretCodec.Metadata> getRestorePointMetadata(
+      Context context, List<String> rps) {
+    ArrayList<SecretCodec.Metadata> list =
+        new ArrayList<SecretCodec.Metadata>(rps.size());
+    lockForRead("FileUtils.getRestorePointMetadata");
+    try {
+      for (String rp : rps) {
+        SecretCodec.Metadata metadata = null;
+        InputStream input = null;
+        try {
+          // The header and the metadata fit in one small read.
+          InputStream stream = SECRETS_FILE_NAME_SDCARD.equals(rp)
+              ? new FileInputStream(rp)
+              : context.openFileInput(rp);
+          input = new BufferedInputStream(stream, 256);
+          metadata = SecretCodec.readMetadata(input);
+        } catch (Exception ex) {
+          Log.d(LOG_TAG, "FileUtils.getRestorePointMetadata: " + rp + ": " +
+              ex);
+        } finally {
+          try {if (null != input) input.close();} catch (IOException ex) {}
+        }
+
+        list.add(metadata);
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    return list;
+  }
   
   /**
    * Cleanup any residual data files from a previous bad run, if any.  The
@@ -164,185 +283,511 @@ public class FileUtils {
    * - delete any file with "new" in the name.  These are possibly partial
    *   writes, so their contents is undefined.
    * - if no secrets file exists, rename the most recent auto resptore point
-   *   file to secrets.
-   * - if too many auto restore point files exist, delete the extra ones.
-   *   However, don't delete any auto-backups younger than 48 hours.
+   *   file to secrets.  If it is in shared form, loadSecrets() reads it
+   *   from the blob store, and the next save writes it in full.
+   *
+   * The restore points come from the manifest, so the only file system
+   * access needed when there is nothing to clean up is listing the names of
+   * the files.  Old restore points are deleted by pruneRestorePoints(), after
+   * saving, and not here, since this is called when the app starts.
    */
   public static void cleanupDataFiles(Context context) {
     Log.d(LOG_TAG, "FileUtils.cleanupDataFiles");
-    synchronized (lock) {
-      String[] filenames = context.fileList();
-      int oldCount = filenames.length;
-      boolean secretsFileExists = context.getFileStreamPath(SECRETS_FILE_NAME)
-          .exists();
-      
-      // Cleanup any partial saves and find the most recent auto-backup file.
-      {
-        File mostRecent = null;
-        int mostRecentIndex = -1;
-        for (int i = 0; i < filenames.length; ++i) {
-          String filename = filenames[i];
-          if (-1 != filename.indexOf("new")) {
-            context.deleteFile(filename);
-            --oldCount;
-            filenames[i] = null;
-          } else if (filename.startsWith(RP_PREFIX)) {
-            if (!secretsFileExists) {
-              File f = context.getFileStreamPath(filename);
-              if (null == mostRecent ||
-                  f.lastModified() > mostRecent.lastModified()) {
-                mostRecent = f;
-                mostRecentIndex = i;
-              }
-            }
-          } else {
-            --oldCount;
-            filenames[i] = null;
-          }
-        }
+    lockForWrite("FileUtils.cleanupDataFiles");
+    try {
+      ++generation;
 
-        // If we don't have a secrets file but found an auto-backup file,
-        // rename the more recent auto-backup to secrets.
-        if (null != mostRecent) {
-          mostRecent.renameTo(context.getFileStreamPath(SECRETS_FILE_NAME));
-          --oldCount;
-          filenames[mostRecentIndex] = null;
-        }
+      // Cleanup any partial saves.
+      for (String filename : context.fileList()) {
+        if (-1 != filename.indexOf("new"))
+          context.deleteFile(filename);
       }
-      
-      // If there are too many old files, delete the oldest extra ones.
-      while (oldCount > 10) {
-        File oldest = null;
-        int oldestIndex = -1;
-        
-        for (int i = 0; i < filenames.length; ++i) {
-          String filename = filenames[i];
-          if (null == filename)
-            continue;
-          
-          File f = context.getFileStreamPath(filename);
-          if (null == oldest || f.lastModified() < oldest.lastModified()) {
-            oldest = f;
-            oldestIndex = i;
-          }
+
+      File dir = context.getFilesDir();
+      List<RestorePointManifest.Entry> points =
+          manifest.getRestorePoints(dir);
+
+      // If we don't have a secrets file but found an auto-backup file,
+      // rename the more recent auto-backup to secrets.
+      File secretsFile = context.getFileStreamPath(SECRETS_FILE_NAME);
+      if (!secretsFile.exists() && !points.isEmpty()) {
+        String mostRecent = points.remove(0).name;
+        if (context.getFileStreamPath(mostRecent).renameTo(secretsFile)) {
+          manifest.rename(dir, mostRecent, SECRETS_FILE_NAME);
+
+          // The journal holds changes relative to the secrets file that was
+          // lost, so it cannot be applied to the restore point.
+          context.deleteFile(SecretsJournal.FILE_NAME);
+          journal.invalidate();
         }
-        
-        if (null != oldest) {
-          // If the oldest file is not too old, then just break out of the
-          // loop.  We don't want to delete any "old" files that are too
-          // recent.
-          if (!FileUtils.isRestorePointTooOld(oldest))
-            break;
-          
-          oldest.delete();
-          --oldCount;
-          filenames[oldestIndex] = null;
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Deletes the restore points that the retention policy does not keep.  At
+   * most a few restore points are deleted by each call, so that a save never
+   * spends long doing this.  Since a restore point is created by each full
+   * save, the restore points are still deleted as fast as they are created.
+   * This is called from the save thread.
+   *
+   * @param context Context of the app.
+   */
+  public static void pruneRestorePoints(Context context) {
+    lockForWrite("FileUtils.pruneRestorePoints");
+    try {
+      // The generation is not changed, since the secrets file and the
+      // journal are not touched.
+      File dir = context.getFilesDir();
+      List<RestorePointManifest.Entry> deleted =
+          RetentionPolicy.DEFAULT.select(manifest.getRestorePoints(dir),
+                                         MAX_PRUNE_COUNT);
+      for (RestorePointManifest.Entry point : deleted) {
+        Log.d(LOG_TAG, "FileUtils.pruneRestorePoints: " + point.name);
+        context.deleteFile(point.name);
+      }
+
+      manifest.removeAll(dir, deleted);
+      if (!deleted.isEmpty())
+        collectBlobs(context, dir);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Removes from the blob store the blobs that the secrets file and the
+   * remaining restore points don't use anymore, and records in the manifest
+   * the bytes of the blobs of each restore point that no newer file uses.
+   * The secrets file is only in shared form after cleanupDataFiles()
+   * replaced it with a restore point.  If any file cannot be read, nothing
+   * is removed, since the blobs it uses are not known.  The caller must hold
+   * the write lock.
+   */
+  private static void collectBlobs(Context context, File dir) {
+    // The shared flag of the manifest is not trusted here, since it is lost
+    // if the manifest is rebuilt.  Only the header is read from a file that
+    // is not in shared form.  The files are read newest first.
+    ArrayList<String> names = new ArrayList<String>();
+    names.add(SECRETS_FILE_NAME);
+    for (RestorePointManifest.Entry point : manifest.getRestorePoints(dir)) {
+      names.add(point.name);
+    }
+
+    HashSet<String> ids = new HashSet<String>();
+    HashMap<String, HashSet<String>> unique =
+        new HashMap<String, HashSet<String>>();
+    for (String name : names) {
+      BufferedInputStream input = null;
+      try {
+        if (!context.getFileStreamPath(name).exists())
+          continue;
+
+        input = new BufferedInputStream(context.openFileInput(name));
+        HashSet<String> fileIds = new HashSet<String>();
+        SecretCodec.readBlobIds(input, readFormat(input), fileIds);
+        fileIds.removeAll(ids);
+        ids.addAll(fileIds);
+        unique.put(name, fileIds);
+      } catch (Exception ex) {
+        Log.e(LOG_TAG, "FileUtils.collectBlobs: " + name, ex);
+        return;
+      } finally {
+        try {if (null != input) input.close();} catch (IOException ex) {}
+      }
+    }
+
+    try {
+      BlobStore blobs = getBlobStore(context);
+      if (blobs.retainAll(ids))
+        Log.d(LOG_TAG, "FileUtils.collectBlobs: compacted blobs");
+
+      unique.remove(SECRETS_FILE_NAME);
+      HashMap<String, Long> blobSizes = new HashMap<String, Long>();
+      for (Map.Entry<String, HashSet<String>> entry : unique.entrySet()) {
+        blobSizes.put(entry.getKey(), blobs.getSize(entry.getValue()));
+      }
+      manifest.setBlobSizes(dir, blobSizes);
+    } catch (IOException ex) {
+      Log.e(LOG_TAG, "FileUtils.collectBlobs", ex);
+    }
+  }
+
+  /**
+   * Rewrites the restore points in shared form, where each restore point
+   * only holds the ids of its secrets in the blob store.  A secret that did
+   * not change keeps the same sealed body, and so gives the same blob, so
+   * consecutive restore points share all the secrets that did not change
+   * between them.  At most MAX_SHARE_COUNT restore points are rewritten by
+   * each call, the newest first, so that the restore point created by a
+   * save is rewritten right after it, and the restore points written by
+   * older versions of the app are migrated a few at a time.  This is called
+   * from the save thread, so it does not slow down starting the app.
+   *
+   * @param context Context of the app.
+   */
+  public static void shareRestorePoints(Context context) {
+    Cipher cipher = SecurityUtils.getDecryptionCipher();
+    if (null == cipher)
+      return;
+
+    lockForWrite("FileUtils.shareRestorePoints");
+    try {
+      // The generation is not changed, since the secrets file and the
+      // journal are not touched.
+      File dir = context.getFilesDir();
+      int count = 0;
+      for (RestorePointManifest.Entry point : manifest.getRestorePoints(dir)) {
+        if (count == MAX_SHARE_COUNT)
+          break;
+
+        if (point.shared || unshareable.contains(point.name))
+          continue;
+
+        ++count;
+        if (!shareRestorePoint(context, dir, point, cipher))
+          unshareable.add(point.name);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Rewrites one restore point in shared form.  The caller must hold the
+   * write lock.
+   *
+   * @return True if rewritten successfully.
+   */
+  private static boolean shareRestorePoint(Context context, File dir,
+                                           RestorePointManifest.Entry point,
+                                           Cipher cipher) {
+    String name = point.name;
+    // The new file has "new" in its name, so that cleanupDataFiles() deletes
+    // it if the app dies before it is renamed.
+    File temp = new File(dir, "new" + name);
+    ArrayList<Secret> secrets = new ArrayList<Secret>();
+    BufferedInputStream input = null;
+    try {
+      BlobStore blobs = getBlobStore(context);
+      CheckedInputStream checked = new CheckedInputStream(
+          context.openFileInput(name), new CRC32());
+      input = new BufferedInputStream(checked);
+      readSecrets(input, readFormat(input), cipher, blobs, secrets);
+      verifyChecksum(input, checked, point);
+      input.close();
+      input = null;
+
+      for (Secret secret : secrets) {
+        secret.ensureId();
+      }
+
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      long added = SecretCodec.writeSharedSecrets(output, secrets,
+                                                  point.time, blobs);
+      byte[] data = output.toByteArray();
+      if (!writeFile(temp, data) || !temp.renameTo(new File(dir, name)))
+        return false;
+
+      // The blobs that were already in the store are used by a newer restore
+      // point in shared form, which is charged for them.  If there is none,
+      // they are the secrets that did not change since the previous restore
+      // point in shared form, which is not charged for them anymore.
+      long blobSize = added;
+      RestorePointManifest.Entry previous = getNewestShared(dir);
+      if (null == previous || previous.time < point.time) {
+        HashSet<String> ids = new HashSet<String>();
+        InputStream shared = new ByteArrayInputStream(data);
+        SecretCodec.readBlobIds(shared, SecretCodec.readHeader(shared), ids);
+        blobSize = blobs.getSize(ids);
+        if (null != previous) {
+          HashMap<String, Long> blobSizes = new HashMap<String, Long>();
+          blobSizes.put(previous.name,
+              Math.max(0, previous.blobSize - (blobSize - added)));
+          manifest.setBlobSizes(dir, blobSizes);
         }
       }
+
+      CRC32 checksum = new CRC32();
+      checksum.update(data);
+      manifest.restorePointShared(dir, name, data.length, secrets.size(),
+                                  checksum.getValue(), blobSize);
+      Log.d(LOG_TAG, "FileUtils.shareRestorePoint: " + name + " " +
+          data.length);
+      return true;
+    } catch (Exception ex) {
+      Log.e(LOG_TAG, "FileUtils.shareRestorePoint: " + name, ex);
+      return false;
+    } finally {
+      try {if (null != input) input.close();} catch (IOException ex) {}
+      temp.delete();
     }
   }
-  
+
+  /** Returns the newest restore point in shared form, or null if none. */
+  private static RestorePointManifest.Entry getNewestShared(File dir) {
+    for (RestorePointManifest.Entry point : manifest.getRestorePoints(dir)) {
+      if (point.shared)
+        return point;
+    }
+    return null;
+  }
+
+  /** Returns the blob store, creating it if needed. */
+  private static synchronized BlobStore getBlobStore(Context context) {
+    if (null == blobStore)
+      blobStore = new BlobStore(context.getFilesDir());
+
+    return blobStore;
+  }
+
   /**
    * Saves the secrets to file using the password retrieved from the user.
    *
+   * If the secrets on disk are known, only the secrets that were added,
+   * changed or deleted since the last save are appended to the journal.
+   * Otherwise, or once the journal has grown big enough, all the secrets are
+   * written in full and the journal is deleted.
+   *
    * @param context Activity context in which the save is called.
    * @param existing The file to save into.
-   * @param cipher The encryption cipher to use with the file.
-   * @param secrets The list of secrets to save.
-   * @return True if saved successfully.
+   * @param secrets The list of secrets to save.  This must not change while
+   *     it is being saved, so pass a snapshot if other threads may modify it.
+   * @return 0 if saved successfully, or the id of an error string.
    */
   public static int saveSecrets(Context context,
                                 File existing,
-                                Cipher cipher,
                                 List<Secret> secrets) {
+    return saveSecrets(context, existing, secrets, null, false);
+  }
+
+  /**
+   * Same as above, but optionally also backs up the secrets to the SD card.
+   * When all the secrets are written, they are encoded only once for both
+   * files, and each buffer is written to the backup right after the secrets
+   * file.  When the changes are appended to the journal instead, the backup
+   * is written on its own.
+   *
+   * @param context Activity context in which the save is called.
+   * @param existing The file to save into.
+   * @param secrets The list of secrets to save.  This must not change while
+   *     it is being saved, so pass a snapshot if other threads may modify it.
+   * @param changes The changes taken with the snapshot, as returned by
+   *     ChangeTracker.takeChanges().  If null, every secret is compared with
+   *     what is on disk, and the secrets must not have changed since the
+   *     snapshot was taken.
+   * @param backup If true, the secrets are also written to the SD card.
+   *     This costs a write of all the secrets even if the save itself is
+   *     journaled, so it should only be asked for when there is no backup.
+   * @return 0 if saved successfully to the secrets file, or the id of an
+   *     error string.  A failure to write the backup is only logged.
+   */
+  public static int saveSecrets(Context context,
+                                File existing,
+                                List<Secret> secrets,
+                                ChangeTracker.Changes changes,
+                                boolean backup) {
     Log.d(LOG_TAG, "FileUtils.saveSecrets");
-    synchronized (lock) {
-      Log.d(LOG_TAG, "FileUtils.saveSecrets: got lock");
-      
-      // To be as safe as possible, for example to handle low space conditions,
-      // we will save the secrets to a file using the following steps:
-      //
-      //  1- write the secrets to a new temporary file (tempn)
-      //     on error: delete tempn
-      //  2- rename the existing secrets file, if any (to tempo)
-      //     on error: delete tempn
-      //  3- rename the new temporary file to the official file name
-      //     on error: rename tempo back to existing, delete tempn
-      //
-      // The old file we hang around for a while.  The cleanupDataFiles()
-      // method, which is called whenever Secrets is re-launched, will make
-      // sure that the old file don't accumulate indefinitely.
-      String prefix = MessageFormat.format(RP_PREFIX +
-          "{0,date,yy.MM.dd}-{0,time,HH:mm}", new Date(),
-          null);
-      File parent = existing.getParentFile();
-      File tempn = new File(parent, "new");
-      File tempo = new File(parent, prefix);
-      for (int i = 0; tempn.exists() || tempo.exists(); ++i) {
-        tempn = new File(parent, "new" + i);
-        tempo = new File(parent, prefix + i);
-      }
-      // Step 1
-      ObjectOutputStream output = null;
-      try {
-        output = new ObjectOutputStream(new CipherOutputStream(
-            new FileOutputStream(tempn), cipher));
-        output.writeObject(secrets);
-      } catch (Exception ex) {
-        Log.d(LOG_TAG, "FileUtils.saveSecrets: could not write secrets file");
-        // NOTE: this delete() works, even though the file is still open.
-        tempn.delete();
-        return R.string.error_save_secrets;
-      } finally {
-        try {if (null != output) output.close();} catch (IOException ex) {}
-      }
+    lockForWrite("FileUtils.saveSecrets");
+    try {
+      ++generation;
 
-      // Step 2
-      if (existing.exists() && !existing.renameTo(tempo)) {
-        Log.d(LOG_TAG, "FileUtils.saveSecrets: could not move existing file");
-        tempn.delete();
-        return R.string.error_cannot_move_existing;
+      // Get the version of the snapshot.  If the secrets were modified since
+      // it was taken, the version changed again and the next save will not be
+      // skipped.
+      long version = null != changes ? changes.version
+                                     : ChangeTracker.getVersion();
+      int[] revisions = SecretsJournal.getRevisions(secrets);
+      File journalFile = new File(existing.getParentFile(),
+                                  SecretsJournal.FILE_NAME);
+      File backupFile = backup ? new File(SECRETS_FILE_NAME_SDCARD) : null;
+
+      if (journal.isValid() && existing.exists()) {
+        int count = journal.append(journalFile, secrets, changes);
+        if (count >= 0 && !journal.needsCompaction()) {
+          Log.d(LOG_TAG, "FileUtils.saveSecrets: journaled " + count);
+          persistedVersion = version;
+          // A backup is only asked for when the SD card has none, so this
+          // full write happens once and not on every save.  It is not left
+          // for the next full save, since the journal may keep the secrets
+          // file from being written in full for a long time, and there
+          // would be no backup at all until then.
+          if (null != backupFile)
+            backupSecrets(backupFile, secrets);
+          return 0;
+        }
       }
 
-      // Step 3
-      if (!tempn.renameTo(existing)) {
-        Log.d(LOG_TAG, "FileUtils.saveSecrets: could not move new file");
-        tempo.renameTo(existing);
-        tempn.delete();
-        return R.string.error_cannot_move_new;
+      int r = writeSecretsFile(existing, secrets, backupFile);
+      if (0 == r) {
+        // The secrets file now holds everything that was in the journal.  If
+        // the journal cannot be deleted for some reason, its no big deal,
+        // since replaying the journal over the new file changes nothing.
+        journalFile.delete();
+        journal.reset(secrets, revisions, existing.length(), 0);
+        persistedVersion = version;
+      } else {
+        journal.invalidate();
+        persistedVersion = -1;
       }
 
-      Log.d(LOG_TAG, "FileUtils.saveSecrets: done");
-      return 0;
+      return r;
+    } finally {
+      lock.writeLock().unlock();
     }
   }
 
+  /**
+   * Writes all the secrets to the given file.  The caller must hold the
+   * write lock.
+   *
+   * @param existing The file to save into.
+   * @param secrets The secrets to write.
+   * @param backupFile If not null, the secrets are also written to this file.
+   * @return 0 if saved successfully, or the id of an error string.  A
+   *     failure to write the backup is only logged.
+   */
+  private static int writeSecretsFile(File existing, List<Secret> secrets,
+                                      File backupFile) {
+    // To be as safe as possible, for example to handle low space conditions,
+    // we will save the secrets to a file using the following steps:
+    //
+    //  1- write the secrets to a new temporary file (tempn)
+    //     on error: delete tempn
+    //  2- rename the existing secrets file, if any (to tempo)
+    //     on error: delete tempn
+    //  3- rename the new temporary file to the official file name
+    //     on error: rename tempo back to existing, delete tempn
+    //
+    // The old file we hang around for a while.  The pruneRestorePoints()
+    // method, which is called after each save, will make sure that the old
+    // files don't accumulate indefinitely.  Note that the
+    // old file does not include the changes from the journal, so it holds
+    // the secrets as of the previous time they were written in full.
+    String prefix = MessageFormat.format(RP_PREFIX +
+        "{0,date,yy.MM.dd}-{0,time,HH:mm}", new Date(),
+        null);
+    File parent = existing.getParentFile();
+    File tempn = new File(parent, "new");
+    File tempo = new File(parent, prefix);
+    for (int i = 0; tempn.exists() || tempo.exists(); ++i) {
+      tempn = new File(parent, "new" + i);
+      tempo = new File(parent, prefix + i);
+    }
+    // Step 1
+    SaveOutputStream output;
+    try {
+      output = writeSecrets(tempn, backupFile, secrets);
+    } catch (Exception ex) {
+      Log.d(LOG_TAG, "FileUtils.saveSecrets: could not write secrets file");
+      tempn.delete();
+      // The backup stopped at the same place, so it is incomplete too.
+      if (null != backupFile)
+        backupFile.delete();
+      return R.string.error_save_secrets;
+    }
+
+    // Step 2
+    boolean hadExisting = existing.exists();
+    if (hadExisting && !existing.renameTo(tempo)) {
+      Log.d(LOG_TAG, "FileUtils.saveSecrets: could not move existing file");
+      tempn.delete();
+      return R.string.error_cannot_move_existing;
+    }
+
+    // Step 3
+    if (!tempn.renameTo(existing)) {
+      Log.d(LOG_TAG, "FileUtils.saveSecrets: could not move new file");
+      tempo.renameTo(existing);
+      tempn.delete();
+      return R.string.error_cannot_move_new;
+    }
+
+    manifest.secretsFileWritten(parent, hadExisting ? tempo.getName() : null,
+                                output.getLength(), secrets.size(),
+                                output.getChecksum());
+
+    Log.d(LOG_TAG, "FileUtils.saveSecrets: done");
+    return 0;
+  }
+
   /**
    * Backup the secrets to SD card using the password retrieved from the user.
    *
    * @param context Avtivity context in which the backup is called.
-   * @param cipher The encryption cipher to use with the file.
    * @param secrets The list of secrets to save.
    * @return True if saved successfully
    */
   public static boolean backupSecrets(Context context,
-                                      Cipher cipher,
                                       List<Secret> secrets) {
     Log.d(LOG_TAG, "FileUtils.backupSecrets");
 
-    if (null == cipher)
+    if (null == SecurityUtils.getSealKeys())
       return false;
 
-    ObjectOutputStream output = null;
+    return backupSecrets(new File(SECRETS_FILE_NAME_SDCARD), secrets);
+  }
+
+  /**
+   * Writes all the secrets to the given backup file.
+   *
+   * @return True if written successfully.
+   */
+  private static boolean backupSecrets(File file, List<Secret> secrets) {
+    try {
+      writeSecrets(file, null, secrets);
+      return true;
+    } catch (Exception ex) {
+      Log.e(LOG_TAG, "FileUtils.backupSecrets: " + file, ex);
+      file.delete();
+      return false;
+    }
+  }
+
+  /**
+   * Encodes and encrypts the secrets in the current file format, streaming
+   * them to the given file and optionally to a backup file.
+   *
+   * @param file The file to write.
+   * @param backupFile If not null, the secrets are also written to this file.
+   *     A failure to write it is only logged.
+   * @param secrets The secrets to write.
+   * @return The closed stream, which knows the length and checksum of what
+   *     was written to the file.
+   */
+  private static SaveOutputStream writeSecrets(File file, File backupFile,
+                                               List<Secret> secrets)
+      throws IOException, GeneralSecurityException {
+    SaveOutputStream output = new SaveOutputStream(file, backupFile);
+    try {
+      OutputStream buffered = new BufferedOutputStream(output, 8192);
+      SecretCodec.writeSecrets(buffered, secrets);
+      buffered.flush();
+    } finally {
+      output.close();
+    }
+    return output;
+  }
+
+  /**
+   * Writes the given data to a file, replacing its contents.
+   *
+   * @return True if written successfully.
+   */
+  private static boolean writeFile(File file, byte[] data) {
+    OutputStream output = null;
     boolean success = false;
 
     try {
-      output = new ObjectOutputStream(
-          new CipherOutputStream(new FileOutputStream(SECRETS_FILE_NAME_SDCARD),
-                                 cipher));
-      output.writeObject(secrets);
+      output = new FileOutputStream(file);
+      output.write(data);
+      output.close();
+      output = null;
       success = true;
     } catch (Exception ex) {
+      Log.e(LOG_TAG, "FileUtils.writeFile: " + file, ex);
     } finally {
       try {if (null != output) output.close();} catch (IOException ex) {}
     }
@@ -350,40 +795,202 @@ public class FileUtils {
     return success;
   }
 
+  /**
+   * Reads the clear text header at the start of the stream to find out the
+   * format of the file.  If the file was written with java serialization,
+   * the stream is left at the start of the file.
+   *
+   * @param input Stream positioned at the start of the file.
+   * @return The version of the file format, or -1 for java serialization.
+   */
+  private static int readFormat(BufferedInputStream input)
+      throws IOException {
+    input.mark(SecretCodec.HEADER_LENGTH);
+    int format = SecretCodec.readHeader(input);
+    if (format < 0)
+      input.reset();
+
+    return format;
+  }
+
+  /**
+   * Reads secrets from the given stream, one at a time.  Each secret is
+   * added to the list as soon as it is decoded, so if an exception is thrown,
+   * the list holds all the secrets that were read before the error.  The
+   * stream is not closed.
+   *
+   * @param input Stream positioned just after the header of the file.
+   * @param format The format of the file, as returned by readFormat().
+   * @param cipher The decryption cipher to use for java serialization.
+   * @param blobs The blob store, if the file may be a restore point in
+   *     shared form, or null.
+   * @param secrets The list to add the secrets to.
+   */
+  private static void readSecrets(InputStream input,
+                                  int format,
+                                  Cipher cipher,
+                                  BlobStore blobs,
+                                  List<Secret> secrets) throws Exception {
+    if (format >= 0) {
+      SecretCodec.readSecrets(input, format, blobs, secrets);
+      return;
+    }
+
+    // Secret.readObject() adds each secret to the list as it is read.
+    Secret.setRecoveryList(secrets);
+    try {
+      new ObjectInputStream(new CipherInputStream(input, cipher)).readObject();
+    } finally {
+      Secret.setRecoveryList(null);
+    }
+  }
+
+  /**
+   * Reads the rest of a restore point and compares the checksum of the whole
+   * file with the one in its manifest entry.  Nothing is checked if the
+   * entry is null or its checksum is unknown.
+   *
+   * @param input The stream the secrets were read from.
+   * @param checked The stream under input that computes the checksum.
+   * @param entry The manifest entry of the restore point, or null.
+   * @throws IOException if the checksums differ.
+   */
+  private static void verifyChecksum(InputStream input,
+                                     CheckedInputStream checked,
+                                     RestorePointManifest.Entry entry)
+      throws IOException {
+    if (null == entry || -1 == entry.checksum)
+      return;
+
+    byte[] buffer = new byte[1024];
+    while (-1 != input.read(buffer)) {
+    }
+
+    if (checked.getChecksum().getValue() != entry.checksum)
+      throw new IOException("Checksum mismatch in " + entry.name);
+  }
+
+  /**
+   * The result of loading the secrets file.  If the file is damaged, the
+   * secrets that were read before the damaged part are returned along with
+   * an error.
+   */
+  public static class LoadResult {
+    /** The secrets read from the file, or null if none could be read. */
+    public ArrayList<Secret> secrets;
+
+    /** 0 if the whole file was read, otherwise the id of an error string. */
+    public int error;
+  }
+
   /**
    * Opens the secrets file using the password retrieved from the user.
+   *
+   * If the file is damaged part way through, the secrets read before the
+   * damage are returned with the R.string.error_load_partial error.  If no
+   * secret can be read at all, most likely because the password is wrong,
+   * no secrets are returned and the error is R.string.invalid_password.
    * 
    * @param context Avtivity context in which the load is called.
-   * @return A list of loaded secrets.
+   * @return The result of the load.  Never null.
    */
-  // TODO(rogerta): the readObject() method does not support generics.
-  @SuppressWarnings("unchecked")
-  public static ArrayList<Secret> loadSecrets(Context context) {
+  public static LoadResult loadSecrets(Context context) {
     Log.d(LOG_TAG, "FileUtils.loadSecrets");
-    synchronized (lock) {
-      Log.d(LOG_TAG, "FileUtils.loadSecrets: got lock");
+    LoadResult result = new LoadResult();
+    result.error = R.string.invalid_password;
 
-      Cipher cipher = SecurityUtils.getDecryptionCipher();
-      if (null == cipher)
-        return null;
+    Cipher cipher = SecurityUtils.getDecryptionCipher();
+    if (null == cipher)
+      return result;
+
+    // The secrets are about to be replaced by the ones read, so the changes
+    // made so far do not matter.  Only the version is kept.
+    long version = ChangeTracker.takeChanges().version;
+    ArrayList<Secret> secrets = new ArrayList<Secret>();
+    File file = context.getFileStreamPath(SECRETS_FILE_NAME);
+    File journalFile = context.getFileStreamPath(SecretsJournal.FILE_NAME);
+    boolean isCurrent = false;
+    long readGeneration;
+    long snapshotSize = 0;
+    long journalSize = 0;
 
-      ArrayList<Secret> secrets = null;
-      ObjectInputStream input = null;
+    // Reading the files only needs the read lock, so that a cloud backup or
+    // a listing of the restore points does not have to wait for the load.
+    lockForRead("FileUtils.loadSecrets");
+    try {
+      readGeneration = generation;
+      int format = -1;
+      BufferedInputStream input = null;
 
       try {
-        input = new ObjectInputStream(
-            new CipherInputStream(context.openFileInput(SECRETS_FILE_NAME),
-                                  cipher));
-        secrets = (ArrayList<Secret>) input.readObject();
+        input = new BufferedInputStream(
+            context.openFileInput(SECRETS_FILE_NAME));
+        format = readFormat(input);
+        readSecrets(input, format, cipher, getBlobStore(context), secrets);
+        result.error = 0;
+      } catch (SecretCodec.BadPasswordException ex) {
+        Log.d(LOG_TAG, "FileUtils.loadSecrets: bad password");
       } catch (Exception ex) {
-        Log.e(LOG_TAG, "loadSecrets", ex);
+        Log.e(LOG_TAG, "loadSecrets: read " + secrets.size(), ex);
+
+        // A file in the binary format whose password check succeeded is
+        // damaged, even if not a single secret could be read.  For files
+        // written with java serialization, its not possible to tell a damaged
+        // file from a bad password unless at least one secret was read.
+        if (!secrets.isEmpty() || format >= 0)
+          result.error = R.string.error_load_partial;
       } finally {
         try {if (null != input) input.close();} catch (IOException ex) {}
       }
-  
-      Log.d(LOG_TAG, "FileUtils.loadSecrets: done");
-      return secrets;
+
+      if (R.string.invalid_password == result.error)
+        return result;
+
+      // Secrets written before ids existed are given new ids here.  Since
+      // those ids are not on disk yet, the journal cannot refer to them, and
+      // the next save must write all the secrets in full.  The same goes
+      // for files written with java serialization, so that they are migrated
+      // to the current format, and for damaged files.
+      boolean hasNewIds = false;
+      for (Secret secret : secrets) {
+        hasNewIds |= secret.ensureId();
+      }
+
+      // A secrets file in shared form is a restore point put back by
+      // cleanupDataFiles().  It is written in full by the next save, so that
+      // it does not depend on the blob store.
+      RestorePointManifest.Entry entry =
+          manifest.getEntry(context.getFilesDir(), SECRETS_FILE_NAME);
+      boolean isShared = null != entry && entry.shared;
+
+      boolean canAppend = SecretsJournal.replay(journalFile, secrets);
+      isCurrent = canAppend && !hasNewIds && !isShared &&
+          SecretCodec.VERSION == format && 0 == result.error;
+      snapshotSize = file.length();
+      journalSize = journalFile.length();
+      result.secrets = secrets;
+    } finally {
+      lock.readLock().unlock();
     }
+
+    // Remembering what is on disk needs the write lock.  If the files were
+    // changed since they were read, what was read is not on disk anymore and
+    // the next save must write all the secrets in full.
+    lockForWrite("FileUtils.loadSecrets");
+    try {
+      if (isCurrent && readGeneration == generation) {
+        journal.reset(secrets, snapshotSize, journalSize);
+        persistedVersion = version;
+      } else {
+        journal.invalidate();
+        persistedVersion = -1;
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+
+    Log.d(LOG_TAG, "FileUtils.loadSecrets: done");
+    return result;
   }
 
   /**
@@ -394,8 +1001,6 @@ public class FileUtils {
    * @param rp A restore point name.  This should be one of the strings
    *     returned by the getRestorePoints() method. 
    */
-  // TODO(rogerta): the readObject() method does not support generics.
-  @SuppressWarnings("unchecked")
   public static ArrayList<Secret> restoreSecrets(Context context, String rp) {
     Log.d(LOG_TAG, "FileUtils.restoreSecrets");
 
@@ -403,19 +1008,41 @@ public class FileUtils {
     if (null == cipher)
       return null;
 
-    ArrayList<Secret> secrets = null;
-    ObjectInputStream input = null;
+    // Unlike loadSecrets(), a partial restore is not useful, so any error
+    // means that nothing is restored.
+    ArrayList<Secret> secrets = new ArrayList<Secret>();
+    BufferedInputStream input = null;
 
+    lockForRead("FileUtils.restoreSecrets");
     try {
-      InputStream stream = SECRETS_FILE_NAME_SDCARD.equals(rp)
-          ? new FileInputStream(rp)
-          : context.openFileInput(rp);
-      input = new ObjectInputStream( new CipherInputStream(stream, cipher));
-      secrets = (ArrayList<Secret>) input.readObject();
+      // Restore points in the data directory are checked against the
+      // manifest, so that a damaged file is not restored.
+      RestorePointManifest.Entry entry = null;
+      InputStream stream;
+      if (SECRETS_FILE_NAME_SDCARD.equals(rp)) {
+        stream = new FileInputStream(rp);
+      } else {
+        entry = manifest.getEntry(context.getFilesDir(), rp);
+        stream = context.openFileInput(rp);
+      }
+      CheckedInputStream checked = new CheckedInputStream(stream,
+                                                          new CRC32());
+      input = new BufferedInputStream(checked);
+      readSecrets(input, readFormat(input), cipher, getBlobStore(context),
+                  secrets);
+      verifyChecksum(input, checked, entry);
     } catch (Exception ex) {
       Log.e(LOG_TAG, "restoreSecrets", ex);
+      secrets = null;
     } finally {
       try {if (null != input) input.close();} catch (IOException ex) {}
+      lock.readLock().unlock();
+    }
+
+    if (null != secrets) {
+      for (Secret secret : secrets) {
+        secret.ensureId();
+      }
     }
 
     return secrets;
@@ -424,11 +1051,21 @@ public class FileUtils {
   /** Deletes all secrets from the phone. */
   public static boolean deleteSecrets(Context context) {
     Log.d(LOG_TAG, "FileUtils.deleteSecrets");
-    synchronized (lock) {
+    lockForWrite("FileUtils.deleteSecrets");
+    try {
+      ++generation;
       String filenames[] = context.fileList();
       for (String filename : filenames) {
         context.deleteFile(filename);
       }
+
+      journal.invalidate();
+      manifest.invalidate();
+      getBlobStore(context).delete();
+      unshareable.clear();
+      persistedVersion = -1;
+    } finally {
+      lock.writeLock().unlock();
     }
     
     return true;
@@ -631,6 +1268,134 @@ public class FileUtils {
     return builder.toString();
   }
 
+  /**
+   * Stream that writes to a file, and to a backup file if one is given, while
+   * keeping track of the length and checksum of what was written.  If the
+   * backup cannot be written, it is deleted and the stream carries on with
+   * the file alone.
+   */
+  private static class SaveOutputStream extends OutputStream {
+    private final OutputStream output;
+    private final File backupFile;
+    private OutputStream backup;
+    private final CRC32 checksum = new CRC32();
+    private long length;
+
+    SaveOutputStream(File file, File backupFile) throws IOException {
+      output = new FileOutputStream(file);
+      this.backupFile = backupFile;
+      if (null != backupFile) {
+        try {
+          backup = new FileOutputStream(backupFile);
+        } catch (IOException ex) {
+          Log.e(LOG_TAG, "FileUtils.SaveOutputStream: " + backupFile, ex);
+        }
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      output.write(b);
+      checksum.update(b);
+      ++length;
+      if (null != backup) {
+        try {
+          backup.write(b);
+        } catch (IOException ex) {
+          dropBackup(ex);
+        }
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      output.write(b, off, len);
+      checksum.update(b, off, len);
+      length += len;
+      if (null != backup) {
+        try {
+          backup.write(b, off, len);
+        } catch (IOException ex) {
+          dropBackup(ex);
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (null != backup) {
+        try {
+          backup.close();
+          backup = null;
+        } catch (IOException ex) {
+          dropBackup(ex);
+        }
+      }
+      output.close();
+    }
+
+    /** Returns the number of bytes written to the file. */
+    long getLength() {
+      return length;
+    }
+
+    /** Returns the CRC32 of the bytes written to the file. */
+    long getChecksum() {
+      return checksum.getValue();
+    }
+
+    private void dropBackup(IOException ex) {
+      Log.e(LOG_TAG, "FileUtils.SaveOutputStream: " + backupFile, ex);
+      try {backup.close();} catch (IOException ex2) {}
+      backup = null;
+      backupFile.delete();
+    }
+  }
+
+  /** Acquires the read lock, keeping track of the time spent waiting. */
+  private static void lockForRead(String caller) {
+    long start = System.nanoTime();
+    lock.readLock().lock();
+    readLockStats.record(caller, System.nanoTime() - start);
+  }
+
+  /** Acquires the write lock, keeping track of the time spent waiting. */
+  private static void lockForWrite(String caller) {
+    long start = System.nanoTime();
+    lock.writeLock().lock();
+    writeLockStats.record(caller, System.nanoTime() - start);
+  }
+
+  /**
+   * Keeps track of the time spent waiting for one side of the lock, to find
+   * out which operations are queuing behind each other.  The statistics are
+   * only logged when debug logging is enabled for LOG_TAG, for example with
+   * "adb shell setprop log.tag.Secrets DEBUG".
+   */
+  private static class LockStats {
+    private final String name;
+    private int count;
+    private long totalNanos;
+    private long maxNanos;
+
+    LockStats(String name) {
+      this.name = name;
+    }
+
+    synchronized void record(String caller, long nanos) {
+      ++count;
+      totalNanos += nanos;
+      maxNanos = Math.max(maxNanos, nanos);
+      if (!Log.isLoggable(LOG_TAG, Log.DEBUG))
+        return;
+
+      Log.d(LOG_TAG, caller + ": got " + name + " lock after " +
+          nanos / 1000000 + " ms (" + count + " waits, average " +
+          totalNanos / count / 1000000 + " ms, max " + maxNanos / 1000000 +
+          " ms)");
+    }
+  }
+
   static public class SecretsBackupAgent extends BackupAgentHelper {
     /** Tag for logging purposes. */
     public static final String LOG_TAG = "Secrets";
@@ -643,7 +1408,7 @@ public class FileUtils {
       Log.d(LOG_TAG, "onCreate");
       
       FileBackupHelper helper = new FileBackupHelper(this,
-          FileUtils.SECRETS_FILE_NAME);
+          FileUtils.SECRETS_FILE_NAME, SecretsJournal.FILE_NAME);
       addHelper(KEY, helper);
     }
     
@@ -652,8 +1417,13 @@ public class FileUtils {
                          BackupDataOutput data,
                          ParcelFileDescriptor newState) throws IOException {
       Log.d(LOG_TAG, "onBackup");
-      synchronized (lock) {
+      // Backing up only reads the files, so it can happen at the same time
+      // as a load.
+      lockForRead("SecretsBackupAgent.onBackup");
+      try {
         super.onBackup(oldState, data, newState);
+      } finally {
+        lock.readLock().unlock();
       }
     }
     
@@ -662,8 +1432,14 @@ public class FileUtils {
                           int appVersionCode,
                           ParcelFileDescriptor newState)  throws IOException {    
       Log.d(LOG_TAG, "onRestore");
-      synchronized (lock) {
+      lockForWrite("SecretsBackupAgent.onRestore");
+      try {
+        ++generation;
         super.onRestore(data, appVersionCode, newState);
+        journal.invalidate();
+        manifest.refresh(getFilesDir(), SECRETS_FILE_NAME);
+      } finally {
+        lock.writeLock().unlock();
       }
     }
   }
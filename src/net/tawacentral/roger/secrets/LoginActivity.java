@@ -15,9 +15,9 @@
 package net.tawacentral.roger.secrets;
 
 import java.io.File;
+import java.text.MessageFormat;
 import java.util.ArrayList;
 
-import javax.crypto.Cipher;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -52,10 +52,11 @@ public class LoginActivity extends Activity {
   /**
    * This is the global list of the user's secrets.  This list is accessed
    * from other parts of the program. */
-  private static ArrayList<Secret> secrets = null;
+  private static SecretsList secrets = null;
 
   private boolean isFirstRun;
   private boolean isValidatingPassword;
+  private boolean isWaitingForSaves;
   private String passwordString;
   private Toast toast;
 
@@ -181,17 +182,14 @@ public class LoginActivity extends Activity {
               @Override
               public void onClick(DialogInterface dialog, int which) {
                 if (DialogInterface.BUTTON1 == which) {
-                  // If we delete the secrets from disk, make sure to also
-                  // clear them from memory too.  This is to handle the case
-                  // where the user knows his password and has logged in, but
-                  // he returned to the login screen and asked to reset his
-                  // password.
-                  if (!FileUtils.deleteSecrets(LoginActivity.this))
-                    showToast(R.string.error_reset_password, Toast.LENGTH_LONG);
-                  else
-                    secrets = null;
-
-                  onResume();
+                  // Any save still being written must finish first, or it
+                  // would write the file again.
+                  SaveService.runAfterSaves(new Runnable() {
+                    @Override
+                    public void run() {
+                      resetPassword();
+                    }
+                  });
                 }
               }
             };
@@ -211,6 +209,21 @@ public class LoginActivity extends Activity {
     return dialog;
   }
 
+  /**
+   * Deletes the secrets from disk, and makes sure to also clear them from
+   * memory too.  This is to handle the case where the user knows his password
+   * and has logged in, but he returned to the login screen and asked to reset
+   * his password.
+   */
+  private void resetPassword() {
+    if (!FileUtils.deleteSecrets(this))
+      showToast(R.string.error_reset_password, Toast.LENGTH_LONG);
+    else
+      secrets = null;
+
+    onResume();
+  }
+
   /**
    * Determines if this is the first run of the program.  A first run is
    * detected if there is no existing secrets file.
@@ -240,6 +253,12 @@ public class LoginActivity extends Activity {
       Log.d(LOG_TAG, "LoginActivity.handlePasswordClick ignoring");
       return;
     }
+
+    // The password was already entered, and is waiting for a save to finish.
+    if (isWaitingForSaves) {
+      Log.d(LOG_TAG, "LoginActivity.handlePasswordClick waiting for saves");
+      return;
+    }
     
     // The program tries to minimize the amount of the time the users password
     // is held in memory.  The password edit field is cleared immediately
@@ -285,36 +304,70 @@ public class LoginActivity extends Activity {
     }
 
     passwordView.setText("");
-    
+
+    // If the user just left the list of secrets, the save of the changes may
+    // not be written yet.  Wait for it before creating the ciphers, since the
+    // save must finish with the keys of the previous password, and so that
+    // the file read by login() is not out of date.  The wait is done off the
+    // UI thread, and the password is only held until it is over.
+    final String password = passwordString;
+    isWaitingForSaves = true;
+    SaveService.runAfterSaves(new Runnable() {
+      @Override
+      public void run() {
+        isWaitingForSaves = false;
+        if (!isFinishing())
+          login(password);
+      }
+    });
+  }
+
+  /**
+   * Creates the ciphers for the given password, then loads the secrets, or
+   * creates an empty secrets file on the first run, and shows the list of
+   * secrets.
+   *
+   * @param passwordString The password entered by the user.
+   */
+  private void login(String passwordString) {
     // Lets not save the password in memory anywhere.  Create all the ciphers
     // we will need based on the password and save those.
     SecurityUtils.createCiphers(passwordString);
     passwordString = null;
 
     if (isFirstRun) {
-      secrets = new ArrayList<Secret>();
+      secrets = new SecretsList();
       
       // Immediately save an empty file to hold the secrets.
-      Cipher cipher = SecurityUtils.getEncryptionCipher();
       File file = getFileStreamPath(FileUtils.SECRETS_FILE_NAME);
-      int err = FileUtils.saveSecrets(this, file, cipher, secrets); 
+      int err = FileUtils.saveSecrets(this, file, secrets);
       if (0 != err) {
         showToast(err, Toast.LENGTH_LONG);
         return;
       }
     } else {
-      secrets = FileUtils.loadSecrets(this);
-      if (null == secrets) {
+      FileUtils.LoadResult result = FileUtils.loadSecrets(this);
+      if (null == result.secrets) {
         // TODO(rogerta): need better error message here.  There are probably
         // many reasons that we might not be able to open the file.
-        showToast(R.string.invalid_password, Toast.LENGTH_LONG);
+        showToast(result.error, Toast.LENGTH_LONG);
         return;
       }
+
+      // If the file is damaged, let the user in with the secrets that could
+      // be recovered.  The damaged file is kept as a restore point the next
+      // time the secrets are saved.
+      secrets = new SecretsList(result.secrets);
+      if (0 != result.error) {
+        String template = getText(result.error).toString();
+        showToast(MessageFormat.format(template, secrets.size()),
+                  Toast.LENGTH_LONG);
+      }
     }
 
     Intent intent = new Intent(LoginActivity.this, SecretsListActivity.class);
     startActivity(intent);
-    Log.d(LOG_TAG, "LoginActivity.handlePasswordClick done");
+    Log.d(LOG_TAG, "LoginActivity.login done");
   }
 
   /**
@@ -325,6 +378,17 @@ public class LoginActivity extends Activity {
    * @param length Length of time to show toast.
    */
   private void showToast(int message, int length) {
+    showToast(getText(message), length);
+  }
+
+  /**
+   * Show a toast on the screen with the given message.  If a toast is already
+   * being displayed, the message is replaced and timer is restarted.
+   *
+   * @param message Text to display in the toast.
+   * @param length Length of time to show toast.
+   */
+  private void showToast(CharSequence message, int length) {
     if (null == toast) {
       toast = Toast.makeText(LoginActivity.this, message, length);
       toast.setGravity(Gravity.CENTER, 0, 0);
@@ -336,7 +400,7 @@ public class LoginActivity extends Activity {
   }
 
   /** Gets the global list if the user's secrets. */
-  public static ArrayList<Secret> getSecrets() {
+  public static SecretsList getSecrets() {
     return secrets;
   }
 
@@ -344,10 +408,10 @@ public class LoginActivity extends Activity {
   public static void restoreSecrets(ArrayList<Secret> secrets) {
     // I don't want to change the actual instance of the global array that
     // holds the secrets, since this array is referred to from other places
-    // in the code.  I will simply replace the existing array with the entries
-    // from the new one.
-    LoginActivity.secrets.clear();
-    LoginActivity.secrets.addAll(secrets);
+    // in the code.  I will simply replace the existing entries with the ones
+    // from the new array.
+    LoginActivity.secrets.setAll(secrets);
+    ChangeTracker.markChanged();
   }
   
   /**
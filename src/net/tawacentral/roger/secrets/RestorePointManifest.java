@@ -0,0 +1,430 @@
+// Copyright (c) 2026, The Secrets for Android Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A small file that describes the secrets file and each restore point in the
+ * data directory of the app: its name, when it was written, its size, the
+ * number of secrets it holds, a checksum of its contents, and whether its
+ * secrets are in the BlobStore and how many bytes of it they use.  Cleaning
+ * up old restore points and showing the restore dialog read the manifest
+ * instead of listing the directory and getting the time of every file.
+ *
+ * The manifest is updated each time the secrets file is written in full,
+ * which is also when a new restore point is created.  It is written to a
+ * temporary file which is then renamed, so it is always either the old or
+ * the new version.  If the manifest is missing or cannot be read, for
+ * example after upgrading from a version of the app that did not write one,
+ * it is rebuilt from the files in the directory.  The number of secrets and
+ * the checksum of those files are then unknown, and restore points are
+ * assumed to be written in full.
+ *
+ * All methods are synchronized.  FileUtils only changes the manifest while
+ * holding its write lock.
+ */
+class RestorePointManifest {
+  /** Name of the manifest file. */
+  public static final String FILE_NAME = "restore_points";
+
+  /** Tag for logging purposes. */
+  public static final String LOG_TAG = "Secrets";
+
+  /**
+   * Version of the format of the manifest file.  Version 1 did not have the
+   * shared flag of the entries, and version 2 did not have their blob size.
+   */
+  private static final int VERSION = 3;
+
+  /** Upper bound on the number of entries, to detect corrupted counts. */
+  private static final int MAX_ENTRIES = 4096;
+
+  /** Describes one file in the manifest.  Entries are immutable. */
+  public static class Entry {
+    /** Name of the file in the data directory of the app. */
+    public final String name;
+
+    /** Time the contents of the file were written, in milliseconds. */
+    public final long time;
+
+    /** Size of the file, in bytes. */
+    public final long size;
+
+    /** Number of secrets in the file, or -1 if unknown. */
+    public final int count;
+
+    /**
+     * CRC32 of the contents of the file, or -1 if unknown.  It is checked
+     * before the file is restored or rewritten in shared form.
+     */
+    public final long checksum;
+
+    /**
+     * True if the file is a restore point in shared form, whose secrets are
+     * in the BlobStore.
+     */
+    public final boolean shared;
+
+    /**
+     * Bytes of the BlobStore used by the blobs of a restore point in shared
+     * form that no newer restore point uses.  Deleting the oldest restore
+     * point frees them, so the retention policy counts them as part of its
+     * size.  This is 0 for other files, or if unknown.
+     */
+    public final long blobSize;
+
+    Entry(String name, long time, long size, int count, long checksum,
+          boolean shared, long blobSize) {
+      this.name = name;
+      this.time = time;
+      this.size = size;
+      this.count = count;
+      this.checksum = checksum;
+      this.shared = shared;
+      this.blobSize = blobSize;
+    }
+
+    /** Returns a copy of this entry with another name. */
+    Entry rename(String name) {
+      return new Entry(name, time, size, count, checksum, shared, blobSize);
+    }
+
+    /** Returns a copy of this entry with another blob size. */
+    Entry setBlobSize(long blobSize) {
+      return new Entry(name, time, size, count, checksum, shared, blobSize);
+    }
+  }
+
+  // The entries of the manifest, or null if not read yet.
+  private ArrayList<Entry> entries;
+
+  /**
+   * Returns the restore points, newest first.  The secrets file itself is
+   * not included.
+   *
+   * @param dir The data directory of the app.
+   */
+  public synchronized List<Entry> getRestorePoints(File dir) {
+    ArrayList<Entry> points = new ArrayList<Entry>();
+    for (Entry entry : getEntries(dir)) {
+      if (entry.name.startsWith(FileUtils.RP_PREFIX))
+        points.add(entry);
+    }
+
+    Collections.sort(points, new Comparator<Entry>() {
+      @Override
+      public int compare(Entry e1, Entry e2) {
+        return e1.time < e2.time ? 1 : (e1.time > e2.time ? -1 : 0);
+      }
+    });
+    return points;
+  }
+
+  /**
+   * Returns the entry of the given file, or null if it is not in the
+   * manifest.
+   *
+   * @param dir The data directory of the app.
+   * @param name The name of the file.
+   */
+  public synchronized Entry getEntry(File dir, String name) {
+    int index = indexOf(getEntries(dir), name);
+    return -1 == index ? null : entries.get(index);
+  }
+
+  /**
+   * Records that the secrets file was written in full.  The previous secrets
+   * file, if any, was renamed to the given restore point.
+   *
+   * @param dir The data directory of the app.
+   * @param restorePoint The new name of the previous secrets file, or null if
+   *     there was no previous secrets file.
+   * @param size Size of the new secrets file, in bytes.
+   * @param count Number of secrets in the new secrets file.
+   * @param checksum CRC32 of the contents of the new secrets file.
+   */
+  public synchronized void secretsFileWritten(File dir, String restorePoint,
+                                              long size, int count,
+                                              long checksum) {
+    ArrayList<Entry> list = getEntries(dir);
+    int index = indexOf(list, FileUtils.SECRETS_FILE_NAME);
+    if (null != restorePoint) {
+      if (-1 != index) {
+        list.set(index, list.get(index).rename(restorePoint));
+      } else {
+        list.add(stat(new File(dir, restorePoint)));
+      }
+    } else if (-1 != index) {
+      list.remove(index);
+    }
+
+    list.add(new Entry(FileUtils.SECRETS_FILE_NAME,
+                       System.currentTimeMillis(), size, count, checksum,
+                       false, 0));
+    save(dir);
+  }
+
+  /**
+   * Records that a restore point was rewritten in shared form.  The time
+   * of the restore point does not change.
+   *
+   * @param dir The data directory of the app.
+   * @param name The name of the restore point.
+   * @param size New size of the restore point, in bytes.
+   * @param count Number of secrets in the restore point.
+   * @param checksum CRC32 of the new contents of the restore point.
+   * @param blobSize Bytes of the blobs of the restore point that no newer
+   *     restore point uses.
+   */
+  public synchronized void restorePointShared(File dir, String name,
+                                              long size, int count,
+                                              long checksum, long blobSize) {
+    ArrayList<Entry> list = getEntries(dir);
+    int index = indexOf(list, name);
+    if (-1 == index)
+      return;
+
+    list.set(index, new Entry(name, list.get(index).time, size, count,
+                              checksum, true, blobSize));
+    save(dir);
+  }
+
+  /**
+   * Records the bytes of the blobs of each restore point that no newer
+   * restore point uses.
+   *
+   * @param dir The data directory of the app.
+   * @param blobSizes The blob size of each restore point, keyed by name.
+   *     Other files are not changed.
+   */
+  public synchronized void setBlobSizes(File dir,
+                                        Map<String, Long> blobSizes) {
+    ArrayList<Entry> list = getEntries(dir);
+    boolean changed = false;
+    for (int i = 0; i < list.size(); ++i) {
+      Entry entry = list.get(i);
+      Long blobSize = blobSizes.get(entry.name);
+      if (null != blobSize && blobSize != entry.blobSize) {
+        list.set(i, entry.setBlobSize(blobSize));
+        changed = true;
+      }
+    }
+
+    if (changed)
+      save(dir);
+  }
+
+  /**
+   * Records that a file was renamed.
+   *
+   * @param dir The data directory of the app.
+   * @param from The old name of the file.
+   * @param to The new name of the file.
+   */
+  public synchronized void rename(File dir, String from, String to) {
+    ArrayList<Entry> list = getEntries(dir);
+    if (-1 == indexOf(list, from))
+      return;
+
+    // The file that had the new name, if any, was replaced.
+    remove(list, to);
+    int index = indexOf(list, from);
+    list.set(index, list.get(index).rename(to));
+    save(dir);
+  }
+
+  /**
+   * Records that files were deleted.
+   *
+   * @param dir The data directory of the app.
+   * @param removed The entries of the deleted files.
+   */
+  public synchronized void removeAll(File dir, List<Entry> removed) {
+    boolean changed = false;
+    for (Entry entry : removed) {
+      changed |= remove(getEntries(dir), entry.name);
+    }
+
+    if (changed)
+      save(dir);
+  }
+
+  /**
+   * Records that a file was replaced by some other means than writing it
+   * with FileUtils, such as a restore from the cloud.  Its number of secrets
+   * and checksum become unknown.
+   *
+   * @param dir The data directory of the app.
+   * @param name The name of the file.
+   */
+  public synchronized void refresh(File dir, String name) {
+    ArrayList<Entry> list = getEntries(dir);
+    remove(list, name);
+    File file = new File(dir, name);
+    if (file.exists())
+      list.add(stat(file));
+
+    save(dir);
+  }
+
+  /**
+   * Forgets the entries read from the manifest, so that the manifest is
+   * read again the next time it is needed.  This is used after deleting the
+   * files of the app.
+   */
+  public synchronized void invalidate() {
+    entries = null;
+  }
+
+  private static int indexOf(List<Entry> list, String name) {
+    for (int i = 0; i < list.size(); ++i) {
+      if (list.get(i).name.equals(name))
+        return i;
+    }
+    return -1;
+  }
+
+  private static boolean remove(List<Entry> list, String name) {
+    int index = indexOf(list, name);
+    if (-1 == index)
+      return false;
+
+    list.remove(index);
+    return true;
+  }
+
+  /** Creates an entry for a file that is not described by the manifest. */
+  private static Entry stat(File file) {
+    return new Entry(file.getName(), file.lastModified(), file.length(), -1,
+                     -1, false, 0);
+  }
+
+  /** Returns the entries, reading or rebuilding the manifest if needed. */
+  private ArrayList<Entry> getEntries(File dir) {
+    if (null == entries) {
+      entries = read(new File(dir, FILE_NAME));
+      if (null == entries) {
+        entries = rebuild(dir);
+        save(dir);
+      }
+    }
+
+    return entries;
+  }
+
+  /** Reads the manifest file.  Returns null if it cannot be read. */
+  private static ArrayList<Entry> read(File file) {
+    if (!file.exists())
+      return null;
+
+    DataInputStream input = null;
+    try {
+      input = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(file)));
+      int version = input.readInt();
+      if (version < 1 || version > VERSION)
+        return null;
+
+      int count = input.readInt();
+      if (count < 0 || count > MAX_ENTRIES)
+        return null;
+
+      ArrayList<Entry> list = new ArrayList<Entry>(count);
+      for (int i = 0; i < count; ++i) {
+        list.add(new Entry(input.readUTF(), input.readLong(),
+                           input.readLong(), input.readInt(),
+                           input.readLong(),
+                           version >= 2 && input.readBoolean(),
+                           version >= 3 ? input.readLong() : 0));
+      }
+      return list;
+    } catch (IOException ex) {
+      Log.e(LOG_TAG, "RestorePointManifest.read", ex);
+      return null;
+    } finally {
+      try {if (null != input) input.close();} catch (IOException ex) {}
+    }
+  }
+
+  /** Builds the entries from the files in the directory. */
+  private static ArrayList<Entry> rebuild(File dir) {
+    Log.d(LOG_TAG, "RestorePointManifest.rebuild");
+    ArrayList<Entry> list = new ArrayList<Entry>();
+    String[] filenames = dir.list();
+    if (null == filenames)
+      return list;
+
+    for (String filename : filenames) {
+      if (filename.startsWith(FileUtils.RP_PREFIX) ||
+          filename.equals(FileUtils.SECRETS_FILE_NAME))
+        list.add(stat(new File(dir, filename)));
+    }
+    return list;
+  }
+
+  /**
+   * Writes the manifest to a temporary file, then renames it over the
+   * existing manifest.  If the write fails, the existing manifest is deleted
+   * so that it is rebuilt the next time the app starts.
+   */
+  private void save(File dir) {
+    File file = new File(dir, FILE_NAME);
+    File temp = new File(dir, FILE_NAME + ".tmp");
+    DataOutputStream output = null;
+    boolean success = false;
+    try {
+      output = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(temp)));
+      output.writeInt(VERSION);
+      output.writeInt(entries.size());
+      for (Entry entry : entries) {
+        output.writeUTF(entry.name);
+        output.writeLong(entry.time);
+        output.writeLong(entry.size);
+        output.writeInt(entry.count);
+        output.writeLong(entry.checksum);
+        output.writeBoolean(entry.shared);
+        output.writeLong(entry.blobSize);
+      }
+      output.close();
+      output = null;
+      success = temp.renameTo(file);
+    } catch (IOException ex) {
+      Log.e(LOG_TAG, "RestorePointManifest.save", ex);
+    } finally {
+      try {if (null != output) output.close();} catch (IOException ex) {}
+    }
+
+    if (!success) {
+      temp.delete();
+      file.delete();
+    }
+  }
+}
@@ -0,0 +1,140 @@
+// Copyright (c) 2026, The Secrets for Android Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Decides which restore points to keep.  The policy keeps the most recent
+ * restore point of each of the last few hours, days and weeks, so that a
+ * burst of saves does not push out older restore points, and so that old
+ * restore points become sparser as they age.  The restore points kept must
+ * also fit in a total number of bytes, the newest ones having priority.  The
+ * size of a restore point in shared form includes the blobs that it uses and
+ * that no newer restore point uses, so that the blob store is counted too.
+ * The most recent restore point is always kept, whatever its size.
+ *
+ * Instances are immutable.
+ */
+class RetentionPolicy {
+  private static final long HOUR_MS = 60 * 60 * 1000;
+  private static final long DAY_MS = 24 * HOUR_MS;
+  private static final long WEEK_MS = 7 * DAY_MS;
+
+  /**
+   * The policy used by the app: one restore point for each of the last 24
+   * hours, 7 days and 4 weeks, using at most 8MB.  It is fixed, since there
+   * is no setting for it.
+   */
+  public static final RetentionPolicy DEFAULT =
+      new RetentionPolicy(24, 7, 4, 8 * 1024 * 1024);
+
+  private final int hourly;
+  private final int daily;
+  private final int weekly;
+  private final long budget;
+
+  /**
+   * Creates a retention policy.
+   *
+   * @param hourly Number of hours for which to keep the most recent restore
+   *     point.
+   * @param daily Number of days for which to keep the most recent restore
+   *     point.
+   * @param weekly Number of weeks for which to keep the most recent restore
+   *     point.
+   * @param budget Maximum total size of the restore points kept, in bytes.
+   */
+  public RetentionPolicy(int hourly, int daily, int weekly, long budget) {
+    this.hourly = hourly;
+    this.daily = daily;
+    this.weekly = weekly;
+    this.budget = budget;
+  }
+
+  /**
+   * Returns the restore points that this policy does not keep, oldest first.
+   *
+   * @param points All the restore points, newest first.
+   * @param maxCount The maximum number of restore points to return.  Any
+   *     other restore point that should be deleted is returned by a later
+   *     call, which keeps the work done by each call small.
+   * @return The restore points to delete.
+   */
+  public List<RestorePointManifest.Entry> select(
+      List<RestorePointManifest.Entry> points, int maxCount) {
+    if (points.isEmpty())
+      return new ArrayList<RestorePointManifest.Entry>();
+
+    HashSet<RestorePointManifest.Entry> kept =
+        new HashSet<RestorePointManifest.Entry>();
+    RestorePointManifest.Entry newest = points.get(0);
+    kept.add(newest);
+    keepEachPeriod(points, HOUR_MS, hourly, kept);
+    keepEachPeriod(points, DAY_MS, daily, kept);
+    keepEachPeriod(points, WEEK_MS, weekly, kept);
+
+    // Drop the oldest restore points kept until the others fit the budget.
+    long total = 0;
+    for (RestorePointManifest.Entry point : points) {
+      if (!kept.contains(point))
+        continue;
+
+      long size = point.size + point.blobSize;
+      total += size;
+      if (total > budget && point != newest) {
+        kept.remove(point);
+        total -= size;
+      }
+    }
+
+    ArrayList<RestorePointManifest.Entry> deleted =
+        new ArrayList<RestorePointManifest.Entry>();
+    for (int i = points.size() - 1; i >= 0 && deleted.size() < maxCount;
+         --i) {
+      if (!kept.contains(points.get(i)))
+        deleted.add(points.get(i));
+    }
+    return deleted;
+  }
+
+  /**
+   * Keeps the most recent restore point of each of the last periods that
+   * have one.
+   *
+   * @param points All the restore points, newest first.
+   * @param period Length of a period, in milliseconds.
+   * @param count Number of periods.
+   * @param kept The set to add the restore points to keep to.
+   */
+  private static void keepEachPeriod(
+      List<RestorePointManifest.Entry> points, long period, int count,
+      HashSet<RestorePointManifest.Entry> kept) {
+    long last = Long.MIN_VALUE;
+    for (RestorePointManifest.Entry point : points) {
+      if (count <= 0)
+        break;
+
+      long current = point.time / period;
+      if (current != last) {
+        kept.add(point);
+        last = current;
+        --count;
+      }
+    }
+  }
+}
@@ -16,102 +16,204 @@ package net.tawacentral.roger.secrets;
 
 import java.io.File;
 import java.util.List;
-
-import javax.crypto.Cipher;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Handler;
 import android.os.IBinder;
+import android.util.Log;
 
 /**
  * A background service to save the secrets to a file.  This is done as a
  * service to that the OS keeps the process around until the save is completed.
  *
- * Note that a service runs in the main thread of the process, just like the
- * UI activities, so any lengthy task still needs to be performed in a
- * separate thread.
+ * All saves are written by a single background thread, one at a time.  Save
+ * requests are coalesced: a request replaces any request that is still
+ * waiting, since it holds the latest list of secrets.  So any number of
+ * requests made while a save is being written lead to exactly one more save
+ * once it is done.  The service stays started until no save is waiting or
+ * being written.
  * 
  * @author rogerta
  */
 public class SaveService extends Service {
-  private static List<Secret> secrets;
-  private static Cipher cipher;
+  /** Tag for logging purposes. */
+  public static final String LOG_TAG = "Secrets";
+
+  /**
+   * A request to save a list of secrets.  It holds the seal keys of the
+   * password in use when the save was requested, since the keys in
+   * SecurityUtils change when the user logs in again.
+   */
+  private static class Request {
+    final List<Secret> secrets;
+    final SecurityUtils.SealKeys sealKeys;
+    final ChangeTracker.Changes changes;
+
+    Request(List<Secret> secrets, SecurityUtils.SealKeys sealKeys,
+            ChangeTracker.Changes changes) {
+      this.secrets = secrets;
+      this.sealKeys = sealKeys;
+      this.changes = changes;
+    }
+  }
+
+  /** The single thread that writes all the saves. */
+  private static final ExecutorService executor =
+      Executors.newSingleThreadExecutor();
+
+  // The latest request that is not being written yet, if any.  Guarded by the
+  // lock of the SaveService class, like the other static members.
+  private static Request pending;
+
+  // True from the time a request is made until all requests are written.
+  private static boolean isBusy;
 
   /** Backup manager for Android 2.2. */
-  Object backupManager;
+  private static Object backupManager;
   
   /**
    * Queue a background save of the secrets.
    * 
    * @param context The activity requesting the save.
-   * @param secrets The list of secrets to save.
-   * @param cipher The encryption cipher.
+   * @param secrets The list of secrets to save.  This must be a snapshot
+   *     that no longer changes, such as SecretsList.snapshot(), taken right
+   *     before calling this method in the UI thread.
    */
   public static synchronized void execute(Context context,
-                                          List<Secret> secrets,
-                                          Cipher cipher) {
-    SaveService.secrets = secrets;
-    SaveService.cipher = cipher;
-    
+                                          List<Secret> secrets) {
+    // A request that was not written yet is replaced by this one, so this
+    // one must also carry its changes.
+    ChangeTracker.Changes changes = ChangeTracker.takeChanges();
+    if (null != pending)
+      changes.addEarlier(pending.changes);
+
+    pending = new Request(secrets, SecurityUtils.getSealKeys(), changes);
+    if (!isBusy) {
+      isBusy = true;
+      final Context appContext = context.getApplicationContext();
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          runSaves(appContext);
+        }
+      });
+    }
+
+    // Keep the process around until the save is done.  The service is
+    // stopped by runSaves() once there is nothing left to save.
     Intent intent = new Intent(context, SaveService.class);
     context.startService(intent);
   }
 
-  public SaveService() {
+  /**
+   * Run the callback on the UI thread once all the saves requested so far
+   * are written, without blocking the UI thread.  It is used before reading
+   * or deleting the secrets file, or creating the ciphers of a new password,
+   * so that these never happen before a save that was already requested.  If
+   * no save is waiting or being written, the callback is run right away.
+   * This method must be called from the UI thread.
+   *
+   * @param callback The code to run once the saves are written.
+   */
+  public static void runAfterSaves(final Runnable callback) {
+    synchronized (SaveService.class) {
+      if (isBusy) {
+        // The executor has a single thread, so this runs after runSaves(),
+        // which only returns once no request is left.
+        final Handler handler = new Handler();
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            handler.post(callback);
+          }
+        });
+        return;
+      }
+    }
+
+    callback.run();
   }
 
-  @Override
-  public IBinder onBind(Intent arg0) {
-    return null;
+  /**
+   * Write pending requests one after the other until there is none left.
+   * This runs in the save thread.
+   */
+  private static void runSaves(Context context) {
+    for (;;) {
+      Request request;
+      synchronized (SaveService.class) {
+        request = pending;
+        pending = null;
+        if (null == request) {
+          isBusy = false;
+          context.stopService(new Intent(context, SaveService.class));
+          return;
+        }
+      }
+
+      SecurityUtils.useSealKeys(request.sealKeys);
+      try {
+        save(context, request);
+      } catch (RuntimeException ex) {
+        Log.e(LOG_TAG, "SaveService.runSaves", ex);
+      } finally {
+        SecurityUtils.useSealKeys(null);
+      }
+    }
   }
 
-  @Override
-  public void onCreate() {
-    super.onCreate();
+  /** Write one save request.  This runs in the save thread. */
+  private static void save(Context context, Request request) {
+    // If nothing changed since the secrets were loaded or last saved, there
+    // is nothing to write, nothing to backup, and the backup manager does
+    // not need to know about it.
+    if (FileUtils.isSaved()) {
+      Log.d(LOG_TAG, "SaveService.save: nothing changed");
+      return;
+    }
 
-    // Create a backup manager.  Will be null for versions of Android before
-    // 2.2.
-    backupManager = OS.createBackupManager(this);
+    List<Secret> secrets = request.secrets;
+    if (null == secrets || 0 == secrets.size() || null == request.sealKeys)
+      return;
+
+    // If no SD card backup exists, save it now.  It is written from the same
+    // encrypted bytes as the secrets file, at the same time.
+    File file = context.getFileStreamPath(FileUtils.SECRETS_FILE_NAME);
+    boolean backup = !FileUtils.restoreFileExist();
+    int r = FileUtils.saveSecrets(context, file, secrets, request.changes,
+                                  backup);
+
+    // If the save was successful, schedule a backup. 
+    if (0 == r)
+      OS.backupManagerDataChanged(getBackupManager(context));
+
+    // A full save leaves a new restore point behind.  Rewrite it so that it
+    // shares the secrets that did not change with the other restore points,
+    // and delete the ones that are not needed anymore.
+    FileUtils.shareRestorePoints(context);
+    FileUtils.pruneRestorePoints(context);
   }
 
-  @Override
-  public void onDestroy() {
-    super.onDestroy();
+  /**
+   * Returns the backup manager.  Will be null for versions of Android before
+   * 2.2.
+   */
+  private static synchronized Object getBackupManager(Context context) {
+    if (null == backupManager)
+      backupManager = OS.createBackupManager(context);
+
+    return backupManager;
   }
 
-  @Override
-  public void onStart(Intent intent, final int startId) {
-    super.onStart(intent, startId);
+  public SaveService() {
+  }
 
-    synchronized (SaveService.class) {
-      final List<Secret> secrets = SaveService.secrets;
-      final Cipher cipher = SaveService.cipher;
-      final File file = getFileStreamPath(FileUtils.SECRETS_FILE_NAME);
-  
-      SaveService.secrets = null;
-      SaveService.cipher = null;
-      
-      if (null != secrets && 0 != secrets.size() && null != cipher) {
-        new Thread(new Runnable() {
-          @Override
-          public void run() {
-            int r = FileUtils.saveSecrets(SaveService.this, file, cipher,
-                                          secrets);
-            
-            // If the save was successful, schedule a backup. 
-            if (0 == r)
-              OS.backupManagerDataChanged(backupManager);
-            
-            // If no SD card backup exists, save it now.
-            if (!FileUtils.restoreFileExist())
-              FileUtils.backupSecrets(SaveService.this, cipher, secrets);
-
-            stopSelf(startId);
-          }}, "saveSecrets").start();
-      } else {
-        stopSelf(startId);
-      }
-    }
+  @Override
+  public IBinder onBind(Intent arg0) {
+    return null;
   }
 }
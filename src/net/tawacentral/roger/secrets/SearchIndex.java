@@ -0,0 +1,510 @@
+// Copyright (c) 2026, The Secrets for Android Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * An index of the trigrams, or substrings of three characters, found in the
+ * description, username, email and note of each secret, used for full text
+ * search.  A secret can only contain a text of three characters or more if
+ * it contains every trigram of that text, so find() only checks the secrets
+ * found under all the trigrams of the text, instead of every secret.
+ *
+ * Each secret in the index is given a number, in the order it was added.
+ * The index maps each trigram, packed into a long, to the sorted array of
+ * the numbers of the secrets that hold it, using primitive hash maps so that
+ * there is no boxing and no set per trigram.  Removing a secret only clears
+ * its number, so that its trigrams don't need to be computed again.  Once
+ * more than half of the numbers are cleared, the index is dropped and built
+ * again.
+ *
+ * The index is built the first time find() is called, since it needs to
+ * decrypt the note of each secret, which would slow down login.  It is built
+ * by a single background thread shared by all indexes, and then kept up to
+ * date by add() and remove().  Until the index is built, find() returns null
+ * and the caller must check every secret itself.
+ *
+ * All methods can be called from any thread.  The lock of the index is never
+ * held while computing the trigrams of a secret.
+ */
+class SearchIndex {
+  /** Length of the substrings that are indexed. */
+  private static final int GRAM_LENGTH = 3;
+
+  /** Smallest number of removed secrets that causes a rebuild. */
+  private static final int MIN_REMOVED_FOR_REBUILD = 256;
+
+  /** The thread that builds all the indexes, one at a time. */
+  private static ExecutorService builder;
+
+  // The secrets to index, snapshotted when the build starts.
+  private final SecretsList secrets;
+
+  // Runs the builds of this index, or null to use the shared builder thread.
+  private final Executor executor;
+
+  // The secret given each number, or null if it was removed.  Only the first
+  // docCount are used.
+  private Secret[] docs = new Secret[16];
+  private int docCount;
+  private int removedCount;
+
+  // The number of each secret in the index, by id.
+  private final LongIntMap numbers = new LongIntMap();
+
+  // The posting list of each trigram, by trigram.  A posting list holds the
+  // numbers of the secrets that hold the trigram, in increasing order.  Only
+  // the first postingSizes[i] numbers of postings[i] are used.
+  private final LongIntMap lists = new LongIntMap();
+  private int[][] postings = new int[16][];
+  private int[] postingSizes = new int[16];
+  private int listCount;
+
+  // While the index is being built, the ids of the secrets that were removed
+  // before the background thread got to them.
+  private final LongIntMap removed = new LongIntMap();
+
+  // Incremented each time the index is dropped, so that the thread of an
+  // earlier build knows to stop.
+  private int generation;
+  private boolean isBuilding;
+  private boolean isBuilt;
+
+  /**
+   * Creates an empty index, which will be built the first time it is
+   * needed.
+   *
+   * @param secrets The list of the secrets to index.
+   */
+  SearchIndex(SecretsList secrets) {
+    this(secrets, null);
+  }
+
+  /**
+   * Creates an empty index whose builds are run by the given executor.
+   *
+   * @param secrets The list of the secrets to index.
+   * @param executor Runs the builds, or null to use the shared builder
+   *     thread.
+   */
+  SearchIndex(SecretsList secrets, Executor executor) {
+    this.secrets = secrets;
+    this.executor = executor;
+  }
+
+  /**
+   * Drops the index, so that it is built again from the list of secrets the
+   * next time it is needed.  Must be called after the secrets are replaced
+   * without going through add() and remove().
+   */
+  public synchronized void invalidate() {
+    ++generation;
+    isBuilding = false;
+    isBuilt = false;
+    docs = new Secret[16];
+    docCount = 0;
+    removedCount = 0;
+    numbers.clear();
+    lists.clear();
+    postings = new int[16][];
+    postingSizes = new int[16];
+    listCount = 0;
+    removed.clear();
+  }
+
+  /** Adds a secret to the index, if it is built or being built. */
+  public void add(Secret secret) {
+    synchronized (this) {
+      if (!isBuilding && !isBuilt)
+        return;
+    }
+
+    // Getting the trigrams may decrypt the note, which is done without
+    // holding the lock.
+    long[] grams = getGrams(secret.getSearchText());
+    synchronized (this) {
+      if (!isBuilding && !isBuilt)
+        return;
+
+      removed.remove(secret.getId());
+      removeNumber(secret.getId());
+      add(secret, grams);
+    }
+  }
+
+  /** Removes a secret from the index. */
+  public synchronized void remove(Secret secret) {
+    // While building, the id is remembered even if the secret was in the
+    // index, since it may have been added after the snapshot was taken, and
+    // the snapshot may hold an older version of it.
+    removeNumber(secret.getId());
+    if (isBuilding)
+      removed.put(secret.getId(), 0);
+
+    if (removedCount >= MIN_REMOVED_FOR_REBUILD &&
+        removedCount > docCount - removedCount) {
+      invalidate();
+    }
+  }
+
+  /**
+   * Returns the secrets that contain the given text, in no particular order.
+   * The first call starts building the index.
+   *
+   * @param text The text to find, in lower case.
+   * @return The secrets found, or null if the index is not built yet or the
+   *     text is too short to be looked up in the index.
+   */
+  public ArrayList<Secret> find(String text) {
+    if (text.length() < GRAM_LENGTH)
+      return null;
+
+    long[] grams = getGrams(text);
+    ArrayList<Secret> candidates = new ArrayList<Secret>();
+    synchronized (this) {
+      if (!isBuilt) {
+        if (!isBuilding)
+          startBuild();
+        return null;
+      }
+
+      // Check the numbers of the shortest posting list against the others.
+      int[] slots = new int[grams.length];
+      int shortest = -1;
+      for (int i = 0; i < grams.length; ++i) {
+        slots[i] = lists.get(grams[i], -1);
+        if (slots[i] < 0)
+          return candidates;
+
+        if (shortest < 0 || postingSizes[slots[i]] < postingSizes[shortest])
+          shortest = slots[i];
+      }
+
+      int[] posting = postings[shortest];
+      for (int i = 0; i < postingSizes[shortest]; ++i) {
+        int number = posting[i];
+        if (null == docs[number])
+          continue;
+
+        boolean hasAll = true;
+        for (int slot : slots) {
+          if (slot != shortest && !contains(slot, number)) {
+            hasAll = false;
+            break;
+          }
+        }
+
+        if (hasAll)
+          candidates.add(docs[number]);
+      }
+    }
+
+    // Having all the trigrams of the text does not mean containing the text,
+    // so the secrets left are checked, without holding the lock.
+    ArrayList<Secret> found = new ArrayList<Secret>();
+    for (Secret secret : candidates) {
+      if (matches(secret, text))
+        found.add(secret);
+    }
+    return found;
+  }
+
+  /**
+   * Does the description, username, email or note of the secret contain the
+   * given text, ignoring case?
+   *
+   * @param text The text to find, in lower case.
+   */
+  public static boolean matches(Secret secret, String text) {
+    return secret.getSearchText().contains(text);
+  }
+
+  /** Starts building the index in the background.  Holds the lock. */
+  private void startBuild() {
+    isBuilding = true;
+    final int current = generation;
+    final List<Secret> snapshot = secrets.snapshot();
+    Executor builder = null != executor ? executor : getBuilder();
+    builder.execute(new Runnable() {
+      @Override
+      public void run() {
+        build(snapshot, current);
+      }
+    });
+  }
+
+  /** Adds the secrets to the index, unless it was dropped since. */
+  private void build(List<Secret> snapshot, int current) {
+    for (Secret secret : snapshot) {
+      synchronized (this) {
+        if (current != generation)
+          return;
+      }
+
+      long[] grams = getGrams(secret.getSearchText());
+      synchronized (this) {
+        if (current != generation)
+          return;
+
+        // Secrets added or removed since the snapshot was taken are already
+        // taken care of.
+        long id = secret.getId();
+        if (!removed.containsKey(id) && !numbers.containsKey(id))
+          add(secret, grams);
+      }
+    }
+
+    synchronized (this) {
+      if (current != generation)
+        return;
+
+      removed.clear();
+      isBuilding = false;
+      isBuilt = true;
+    }
+  }
+
+  /** Gives the secret the next number, and adds it to its posting lists. */
+  private void add(Secret secret, long[] grams) {
+    if (docCount == docs.length)
+      docs = grow(docs);
+
+    int number = docCount++;
+    docs[number] = secret;
+    numbers.put(secret.getId(), number);
+    for (long gram : grams) {
+      int slot = lists.get(gram, -1);
+      if (slot < 0) {
+        if (listCount == postings.length) {
+          postings = grow(postings);
+          postingSizes = grow(postingSizes);
+        }
+        slot = listCount++;
+        postings[slot] = new int[2];
+        lists.put(gram, slot);
+      }
+
+      // The numbers only increase, so the list stays sorted.
+      if (postingSizes[slot] == postings[slot].length)
+        postings[slot] = grow(postings[slot]);
+      postings[slot][postingSizes[slot]++] = number;
+    }
+  }
+
+  /**
+   * Clears the number of the secret with the given id, if any.
+   *
+   * @return True if the secret was in the index.
+   */
+  private boolean removeNumber(long id) {
+    int number = numbers.remove(id);
+    if (number < 0)
+      return false;
+
+    docs[number] = null;
+    ++removedCount;
+    return true;
+  }
+
+  /** Does the posting list in the given slot hold the number? */
+  private boolean contains(int slot, int number) {
+    int[] posting = postings[slot];
+    int low = 0;
+    int high = postingSizes[slot] - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (posting[mid] < number)
+        low = mid + 1;
+      else if (posting[mid] > number)
+        high = mid - 1;
+      else
+        return true;
+    }
+    return false;
+  }
+
+  /** Returns the distinct trigrams of the given text. */
+  private static long[] getGrams(String text) {
+    int count = Math.max(0, text.length() - GRAM_LENGTH + 1);
+    long[] grams = new long[count];
+    for (int i = 0; i < count; ++i) {
+      grams[i] = ((long) text.charAt(i) << 32) |
+          ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2);
+    }
+
+    Arrays.sort(grams);
+    int distinct = 0;
+    for (int i = 0; i < count; ++i) {
+      if (0 == i || grams[i] != grams[i - 1])
+        grams[distinct++] = grams[i];
+    }
+
+    long[] result = new long[distinct];
+    System.arraycopy(grams, 0, result, 0, distinct);
+    return result;
+  }
+
+  private static Secret[] grow(Secret[] array) {
+    Secret[] grown = new Secret[2 * array.length];
+    System.arraycopy(array, 0, grown, 0, array.length);
+    return grown;
+  }
+
+  private static int[][] grow(int[][] array) {
+    int[][] grown = new int[2 * array.length][];
+    System.arraycopy(array, 0, grown, 0, array.length);
+    return grown;
+  }
+
+  private static int[] grow(int[] array) {
+    int[] grown = new int[2 * array.length];
+    System.arraycopy(array, 0, grown, 0, array.length);
+    return grown;
+  }
+
+  /** Gets the thread that builds the indexes, creating it if needed. */
+  private static synchronized ExecutorService getBuilder() {
+    if (null == builder) {
+      builder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "SearchIndex");
+          thread.setDaemon(true);
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        }
+      });
+    }
+    return builder;
+  }
+
+  /**
+   * A hash map from long keys to non-negative int values, with open
+   * addressing and linear probing, so that neither keys nor values are
+   * boxed.  Key 0 marks an empty slot, so it is kept aside.
+   */
+  static final class LongIntMap {
+    private long[] keys = new long[16];
+    private int[] values = new int[16];
+    private int size;
+    private boolean hasZero;
+    private int zeroValue;
+
+    int get(long key, int missing) {
+      if (0 == key)
+        return hasZero ? zeroValue : missing;
+
+      int mask = keys.length - 1;
+      for (int i = hash(key) & mask; 0 != keys[i]; i = (i + 1) & mask) {
+        if (keys[i] == key)
+          return values[i];
+      }
+      return missing;
+    }
+
+    boolean containsKey(long key) {
+      return get(key, -1) >= 0;
+    }
+
+    void put(long key, int value) {
+      if (0 == key) {
+        hasZero = true;
+        zeroValue = value;
+        return;
+      }
+
+      int mask = keys.length - 1;
+      int i = hash(key) & mask;
+      for (; 0 != keys[i]; i = (i + 1) & mask) {
+        if (keys[i] == key) {
+          values[i] = value;
+          return;
+        }
+      }
+
+      keys[i] = key;
+      values[i] = value;
+      if (++size * 4 > keys.length * 3)
+        resize();
+    }
+
+    /**
+     * Removes the key.
+     *
+     * @return The value of the key, or -1 if it was not in the map.
+     */
+    int remove(long key) {
+      if (0 == key) {
+        int value = hasZero ? zeroValue : -1;
+        hasZero = false;
+        return value;
+      }
+
+      int mask = keys.length - 1;
+      int i = hash(key) & mask;
+      for (; keys[i] != key; i = (i + 1) & mask) {
+        if (0 == keys[i])
+          return -1;
+      }
+
+      int value = values[i];
+      --size;
+
+      // Move back the keys after the removed one that would not be found
+      // anymore, so that no probe sequence is broken.
+      for (int j = (i + 1) & mask; 0 != keys[j]; j = (j + 1) & mask) {
+        int home = hash(keys[j]) & mask;
+        if (((j - home) & mask) >= ((j - i) & mask)) {
+          keys[i] = keys[j];
+          values[i] = values[j];
+          i = j;
+        }
+      }
+      keys[i] = 0;
+      return value;
+    }
+
+    void clear() {
+      keys = new long[16];
+      values = new int[16];
+      size = 0;
+      hasZero = false;
+    }
+
+    private void resize() {
+      long[] oldKeys = keys;
+      int[] oldValues = values;
+      keys = new long[2 * oldKeys.length];
+      values = new int[keys.length];
+      size = 0;
+      for (int i = 0; i < oldKeys.length; ++i) {
+        if (0 != oldKeys[i])
+          put(oldKeys[i], oldValues[i]);
+      }
+    }
+
+    private static int hash(long key) {
+      long h = key * 0x9E3779B97F4A7C15L;
+      return (int) (h ^ (h >>> 32));
+    }
+  }
+}
@@ -17,9 +17,15 @@ package net.tawacentral.roger.secrets;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Random;
+
+import android.util.Log;
 
 /**
  * Represents one secret.  The assumption is that each secret is describable,
@@ -29,16 +35,62 @@ import java.util.List;
  * @author rogerta
  */
 public class Secret implements Serializable {
+  /** Tag for logging purposes. */
+  public static final String LOG_TAG = "Secrets";
+
   private static final long serialVersionUID = -116450416616138469L;
   private static final int TIMEOUT_MS = 60 * 1000;
   private static final int MAX_LOG_SIZE = 100;
+  private static final Random idGenerator = new Random();
+  private static final ThreadLocal<List<Secret>> recovered =
+      new ThreadLocal<List<Secret>>();
 
+  /**
+   * Order of the secrets by description, ignoring case.  This is the order
+   * of the list of secrets shown to the user.
+   */
+  public static final Comparator<Secret> DESCRIPTION_ORDER =
+      new Comparator<Secret>() {
+        @Override
+        public int compare(Secret s1, Secret s2) {
+          return s1.getCollationKey().compareTo(s2.getCollationKey());
+        }
+      };
+
+  private long id;
   private String description;
   private String username;
   private String password;
   private String email;
   private String note;
-  private ArrayList<LogEntry> access_log;
+  // The access log is never modified in place.  Adding an entry replaces it
+  // with a new list, so that the thread saving the secrets always sees a
+  // complete log.
+  private volatile ArrayList<LogEntry> access_log;
+
+  // Incremented each time this secret is modified.  This is used by the
+  // journal to find the secrets that changed since they were last written to
+  // disk.  It is not persisted.
+  private transient int revision;
+
+  // The description with the case of each character folded, used to sort the
+  // secrets.  Computed when first needed, and cleared when the description
+  // changes.
+  private transient String collationKey;
+
+  // The description, username, email and note in lower case, used for full
+  // text search.  Computed when first needed, and cleared when any of them
+  // changes.
+  private transient String searchText;
+
+  // The password and the note, encrypted together with SecurityUtils.seal(),
+  // exactly as they are in the secrets file.  This is null if the password or
+  // the note changed since the secret was read.  When isSealed is true, the
+  // password and note fields have not been decrypted yet.  Access to these
+  // fields is synchronized, since they are used both by the UI and by the
+  // thread that saves the secrets.
+  private transient byte[] sealedBody;
+  private transient boolean isSealed;
 
   /**
    * An immutable class that represents one entry in the access log.  Each
@@ -100,20 +152,168 @@ public class Secret implements Serializable {
    * only on CREATED entry with the current time.
    */
   public Secret() {
+    id = newId();
     access_log = new ArrayList<LogEntry>();
     access_log.add(new LogEntry());
   }
 
+  /**
+   * Creates a secret with the given fields, as read from a file.  The access
+   * log must contain at least the CREATED entry.
+   */
+  Secret(long id, String description, String username, String password,
+         String email, String note, ArrayList<LogEntry> access_log) {
+    this.id = id;
+    this.description = description;
+    this.username = username;
+    this.password = password;
+    this.email = email;
+    this.note = note;
+    this.access_log = access_log;
+  }
+
+  /**
+   * Returns a copy of this secret, with the same id.  Secrets in the list of
+   * secrets may be in the middle of being saved, so the UI edits a copy and
+   * then replaces the original in the list.  The access log is shared, since
+   * it is never modified in place.
+   */
+  synchronized Secret copy() {
+    Secret secret = new Secret(id, description, username, password, email,
+                               note, access_log);
+    secret.sealedBody = sealedBody;
+    secret.isSealed = isSealed;
+    secret.collationKey = collationKey;
+    secret.searchText = searchText;
+    return secret;
+  }
+
+  /**
+   * Returns a copy of this secret with a new id, so that both can be in the
+   * list of secrets at the same time.  The body is sealed using the id, so it
+   * is decrypted here, and sealed again with the new id when the copy is
+   * saved.
+   *
+   * @return The copy, or null if the body cannot be decrypted.
+   */
+  synchronized Secret copyWithNewId() {
+    unseal();
+    if (isSealed)
+      return null;
+
+    return new Secret(newId(), description, username, password, email, note,
+                      access_log);
+  }
+
+  /**
+   * Sets the encrypted body of a secret read from the index of a file.  The
+   * password and the note will be decrypted from it only when first needed.
+   *
+   * @param sealedBody The encrypted body.
+   */
+  synchronized void setSealedBody(byte[] sealedBody) {
+    this.sealedBody = sealedBody;
+    isSealed = true;
+  }
+
+  /**
+   * Returns the password and the note encrypted with SecurityUtils.seal(),
+   * in the current version of the file format.  If they did not change since
+   * the secret was read, the same encrypted bytes are returned.  This is used
+   * when writing the secret to a file.
+   */
+  synchronized byte[] getSealedBody()
+      throws IOException, GeneralSecurityException {
+    if (null == sealedBody) {
+      sealedBody = SecurityUtils.seal(SecurityUtils.SEAL_BODY, id,
+          SecretCodec.encodeBody(password, note));
+    }
+
+    return sealedBody;
+  }
+
+  /**
+   * Decrypts the password and the note, if not already done.  If the body
+   * cannot be decrypted, the password and note stay null, but the encrypted
+   * body is kept so that it is not lost when saving.
+   */
+  private synchronized void unseal() {
+    if (!isSealed)
+      return;
+
+    try {
+      byte[] body = SecurityUtils.unseal(SecurityUtils.SEAL_BODY, id,
+                                         sealedBody);
+      String[] fields = SecretCodec.decodeBody(body);
+      password = fields[0];
+      note = fields[1];
+      isSealed = false;
+    } catch (Exception ex) {
+      Log.e(LOG_TAG, "Secret.unseal", ex);
+    }
+  }
+
+  /**
+   * Does this secret have the same password and note as the other one?  The
+   * bodies are only decrypted if they are not the same encrypted bytes, as
+   * for a secret that did not change since both were written.  A body that
+   * cannot be decrypted is only the same as the same encrypted bytes.  The
+   * access logs are not changed.
+   */
+  boolean hasSameBody(Secret other) {
+    byte[] body = getStoredBody();
+    if (null != body && Arrays.equals(body, other.getStoredBody()))
+      return true;
+
+    String[] fields = getBody();
+    String[] otherFields = other.getBody();
+    if (null == fields || null == otherFields)
+      return false;
+
+    return Arrays.equals(fields, otherFields);
+  }
+
+  private synchronized byte[] getStoredBody() {
+    return sealedBody;
+  }
+
+  /**
+   * Returns the password and the note, decrypting them if needed, or null if
+   * they cannot be decrypted.
+   */
+  private synchronized String[] getBody() {
+    unseal();
+    return isSealed ? null : new String[] {password, note};
+  }
+
+  /** Changes the password and the note, which need to be sealed again. */
+  private synchronized void setBody(String password, String note) {
+    this.password = password;
+    this.note = note;
+    sealedBody = null;
+  }
+
+  /** Returns a new random, non-zero id for a secret. */
+  private static long newId() {
+    long id;
+    synchronized (idGenerator) {
+      do {
+        id = idGenerator.nextLong();
+      } while (0 == id);
+    }
+    return id;
+  }
+
   /**
    * This method exists only to recover from a corrupted save file.  As each
-   * secret is successfully read, it is added to a global array.  If the save
-   * file cannot read the entire array because the end is corrupted, the global
-   * array will contain those that were read successfully.
-   * 
-   *  Its the responsibility of the load code to clear the global array before
-   *  and after reading from the file.  This code assumes that only one thread
-   *  tries to load Secrets from an input stream at a time.
-   * 
+   * secret is successfully read, it is added to the recovery list of the
+   * current thread, if any.  If the save file cannot read the entire array
+   * because the end is corrupted, the recovery list will contain those that
+   * were read successfully.
+   *
+   * Its the responsibility of the load code to set the recovery list before
+   * reading from the file, and to clear it afterwards.
+   *
    * @param stream
    * @throws IOException
    * @throws ClassNotFoundException
@@ -121,17 +321,123 @@ public class Secret implements Serializable {
   private void readObject(ObjectInputStream stream)
       throws IOException, ClassNotFoundException {
     stream.defaultReadObject();
+
+    List<Secret> list = recovered.get();
+    if (null != list)
+      list.add(this);
+  }
+
+  /**
+   * Sets the list that secrets read with java serialization on the current
+   * thread are added to.  See readObject() for details.
+   *
+   * @param list The list to add secrets to, or null to stop adding them.
+   */
+  static void setRecoveryList(List<Secret> list) {
+    recovered.set(list);
+  }
+
+  /**
+   * Makes sure this secret has an id.  Secrets read from files written before
+   * ids existed will have an id of zero.
+   *
+   * @return True if a new id was assigned to the secret.
+   */
+  boolean ensureId() {
+    if (0 != id)
+      return false;
+
+    id = newId();
+    return true;
+  }
+
+  /** Returns the id that identifies this secret across saves. */
+  public long getId() {
+    return id;
+  }
+
+  /**
+   * Returns the revision of this secret.  The revision changes every time the
+   * secret is modified, including changes to the access log.
+   */
+  int getRevision() {
+    return revision;
   }
-  
+
+  /** Record that this secret was modified. */
+  private void touch() {
+    ++revision;
+    ChangeTracker.markChanged(this);
+  }
+
   public void setDescription(String description) {
     this.description = description;
+    collationKey = null;
+    searchText = null;
+    touch();
   }
   public String getDescription() {
     return description;
   }
 
+  /**
+   * Returns the key used to sort secrets by description.  Comparing the keys
+   * of two secrets with String.compareTo() gives the same order as comparing
+   * their descriptions with String.compareToIgnoreCase(), but the case of
+   * each character is folded only once.  A null description sorts like an
+   * empty one.
+   */
+  public String getCollationKey() {
+    String key = collationKey;
+    if (null == key) {
+      key = null == description ? "" : foldCase(description);
+      collationKey = key;
+    }
+    return key;
+  }
+
+  /**
+   * Returns the description, username, email and note of this secret in
+   * lower case, separated by null characters, for full text search.  A text
+   * typed by the user is found in one of the fields if it is found in the
+   * search text, and no string is allocated to check each field.  Getting
+   * the search text decrypts the note.
+   */
+  public String getSearchText() {
+    String text = searchText;
+    if (null == text) {
+      StringBuilder builder = new StringBuilder();
+      appendLowerCase(builder, description).append('\0');
+      appendLowerCase(builder, username).append('\0');
+      appendLowerCase(builder, email).append('\0');
+      appendLowerCase(builder, getNote());
+      text = builder.toString();
+      searchText = text;
+    }
+    return text;
+  }
+
+  private static StringBuilder appendLowerCase(StringBuilder builder,
+                                               String field) {
+    return null == field ? builder : builder.append(field.toLowerCase());
+  }
+
+  /**
+   * Folds the case of each character of the given string, the same way that
+   * String.compareToIgnoreCase() does.
+   */
+  static String foldCase(String s) {
+    char[] chars = s.toCharArray();
+    for (int i = 0; i < chars.length; ++i) {
+      chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+    }
+    return new String(chars);
+  }
+
   public void setUsername(String username) {
     this.username = username;
+    searchText = null;
+    touch();
   }
 
   public String getUsername() {
@@ -149,18 +455,22 @@ public class Secret implements Serializable {
    */
   public void setPassword(String password) {
     long now = System.currentTimeMillis();
-    LogEntry entry = access_log.get(0);
+    ArrayList<LogEntry> log = new ArrayList<LogEntry>(access_log);
+    LogEntry entry = log.get(0);
     if (now - entry.getTime() < TIMEOUT_MS) {
       if (entry.getType() == LogEntry.VIEWED) {
-        access_log.remove(0);
-        access_log.add(0, new LogEntry(LogEntry.CHANGED, now));
+        log.remove(0);
+        log.add(0, new LogEntry(LogEntry.CHANGED, now));
       }
     } else {
-      access_log.add(0, new LogEntry(LogEntry.CHANGED, entry.getTime()));
-      pruneAccessLog();
+      log.add(0, new LogEntry(LogEntry.CHANGED, entry.getTime()));
+      pruneAccessLog(log);
     }
+    access_log = log;
 
-    this.password = password;
+    unseal();
+    setBody(password, note);
+    touch();
   }
 
   /**
@@ -174,10 +484,14 @@ public class Secret implements Serializable {
     LogEntry entry = access_log.get(0);
     if (forExport || (now - entry.getTime() > TIMEOUT_MS)) {
       int type = forExport ? LogEntry.EXPORTED : LogEntry.VIEWED;
-      access_log.add(0, new LogEntry(type, now));
-      pruneAccessLog();
+      ArrayList<LogEntry> log = new ArrayList<LogEntry>(access_log);
+      log.add(0, new LogEntry(type, now));
+      pruneAccessLog(log);
+      access_log = log;
+      touch();
     }
 
+    unseal();
     return password;
   }
 
@@ -185,7 +499,7 @@ public class Secret implements Serializable {
    * Prune the size of the access log to the maximum size by getting rid of
    * the oldest entries.  The "created" log entry is never pruned away.
    */
-  private void pruneAccessLog() {
+  private static void pruneAccessLog(ArrayList<LogEntry> access_log) {
     // TODO(rogerta): may want to give lower priority to VIEWED entries.  Could
     // maybe implement this by doing a first pass that removes VIEWED entries
     // first to see if we can reach the limit.  If not, then do a paas to delete
@@ -205,6 +519,8 @@ public class Secret implements Serializable {
 
   public void setEmail(String email) {
     this.email = email;
+    searchText = null;
+    touch();
   }
 
   public String getEmail() {
@@ -212,10 +528,14 @@ public class Secret implements Serializable {
   }
 
   public void setNote(String note) {
-    this.note = note;
+    unseal();
+    setBody(password, note);
+    searchText = null;
+    touch();
   }
 
   public String getNote() {
+    unseal();
     return note;
   }
 
@@ -234,4 +554,17 @@ public class Secret implements Serializable {
   public LogEntry getMostRecentAccess() {
     return access_log.get(0);
   }
+
+  /**
+   * Returns the time this secret was last changed, or created if it was
+   * never changed, in milliseconds since the epoch.
+   */
+  public long getLastChanged() {
+    for (LogEntry entry : access_log) {
+      if (LogEntry.CREATED == entry.getType() ||
+          LogEntry.CHANGED == entry.getType())
+        return entry.getTime();
+    }
+    return 0;
+  }
 }
@@ -0,0 +1,996 @@
+// Copyright (c) 2026, The Secrets for Android Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * Reads and writes secrets in a compact binary format.  This replaces java
+ * serialization of the list of secrets, which is slow on the phone because
+ * it uses reflection, and which writes class descriptors into the file.
+ *
+ * A file starts with a header, in clear text, made of the MAGIC bytes
+ * followed by one byte for the format version and one byte of flags.  The
+ * rest of the file is made of:
+ *
+ *   - the index, encrypted in chunks with ChunkedCipher.  It holds the MAGIC
+ *     bytes again, the number of secrets, and for each secret its index entry
+ *     followed by the length of its body as a varint.  The tags of the chunks
+ *     cover the format version and the flags of the header, as returned by
+ *     getHeaderContext()
+ *   - the body of each secret, in the same order as the index.  Each body is
+ *     encrypted and authenticated on its own with SecurityUtils.seal(), using
+ *     the id of the secret as context, and holds the password and the note
+ *     of the secret as two strings.
+ *
+ * The index and the bodies are compressed with deflate before they are
+ * encrypted, if this makes them smaller.  The
+ * FLAG_DEFLATED_INDEX flag in the header tells if the index is compressed.
+ * The first byte of a body tells if the body is compressed.  Compressed data
+ * is stored as its length before compression as a varint, followed by the
+ * compressed bytes as written by Writer.writeBytes().  The compression uses
+ * the preset DICTIONARY, which helps with short notes.
+ *
+ * This way, only the index needs to be decrypted to show the list of
+ * secrets.  A body is decrypted when its password or note is first needed,
+ * and bodies of secrets that did not change are written back as is.  The
+ * encrypted MAGIC bytes are used to detect an invalid password before trying
+ * to decode any secret.  An index entry is encoded as:
+ *
+ *   - id: 8 bytes, big endian
+ *   - description, username, email: strings
+ *   - number of log entries: varint
+ *   - for each log entry: type as one byte, then time as a zigzag varint.
+ *     The time of the first entry is in milliseconds since the epoch, and the
+ *     time of every other entry is relative to the previous one.
+ *
+ * Strings are encoded as a varint holding the number of UTF-8 bytes plus one,
+ * followed by those bytes.  A null string is encoded as a zero length.
+ * Varints are unsigned, little endian, 7 bits per byte.
+ *
+ * When the FLAG_METADATA flag is set, which it always is for the files the
+ * app writes, the header is followed by a small metadata block, which
+ * describes the file without having to read the index: when the file was
+ * written, the number of secrets, the size of the secrets in bytes and the
+ * time of the most recent change to any secret.  The block is sealed with
+ * SecurityUtils.seal(), using the result of getHeaderContext() as context,
+ * and preceded by its length as 2 bytes.
+ *
+ * Restore points can also be written in shared form, which is told by the
+ * FLAG_SHARED flag in the header.  The index then holds, after the MAGIC
+ * bytes and the number of secrets, only the id of one blob of the BlobStore
+ * for each secret, written with Writer.writeBytes().  Each blob is sealed
+ * with SecurityUtils.sealBlob() and holds the index entry of one secret and
+ * its sealed body, written with Writer.writeBytes().  Since
+ * a secret that did not change between two restore points gives the same
+ * blob, the restore points share the blobs of those secrets.
+ *
+ * Files written with java serialization don't start with the MAGIC bytes,
+ * so they are easy to tell apart.
+ */
+public class SecretCodec {
+  /** Bytes at the very start of every file in this format. */
+  private static final byte[] MAGIC = {'S', 'c', 'r', 't'};
+
+  /** Version of the format. */
+  public static final int VERSION = 1;
+
+  /** Length of the clear text header, in bytes. */
+  public static final int HEADER_LENGTH = MAGIC.length + 1;
+
+  /** Upper bound on the length of one string, to detect corrupted data. */
+  private static final int MAX_STRING_LENGTH = 1024 * 1024;
+
+  /** Upper bound on the number of log entries, to detect corrupted data. */
+  private static final int MAX_LOG_ENTRIES = 1024;
+
+  /** Upper bound on the length of the index, to detect corrupted data. */
+  private static final int MAX_INDEX_LENGTH = 16 * 1024 * 1024;
+
+  /** Upper bound on the length of one body, to detect corrupted data. */
+  private static final int MAX_BODY_LENGTH = 2 * MAX_STRING_LENGTH + 128;
+
+  /** Set in the flags of the header when the index is compressed. */
+  private static final int FLAG_DEFLATED_INDEX = 0x01;
+
+  /** Set in the flags of the header when the secrets are in a BlobStore. */
+  private static final int FLAG_SHARED = 0x02;
+
+  /** Set in the flags of the header when it is followed by metadata. */
+  private static final int FLAG_METADATA = 0x04;
+
+  /** Upper bound on the length of the metadata block. */
+  private static final int MAX_METADATA_LENGTH = 1024;
+
+  /**
+   * Describes a file, as stored in its metadata block.  Instances are
+   * immutable.
+   */
+  public static class Metadata {
+    /** Time the secrets were written, in milliseconds since the epoch. */
+    public final long time;
+
+    /** Number of secrets. */
+    public final int count;
+
+    /**
+     * Size of the secrets, in bytes.  This counts the index entries and the
+     * sealed bodies, before compression, so it does not depend on whether
+     * the file is in shared form.
+     */
+    public final long size;
+
+    /**
+     * Time of the most recent change to any secret, in milliseconds since
+     * the epoch, or 0 if there are no secrets.
+     */
+    public final long lastChanged;
+
+    Metadata(long time, int count, long size, long lastChanged) {
+      this.time = time;
+      this.count = count;
+      this.size = size;
+      this.lastChanged = lastChanged;
+    }
+  }
+
+  // Encodings of a body, given by its first byte.
+  private static final int BODY_STORED = 0;
+  private static final int BODY_DEFLATED = 1;
+
+  /**
+   * Data shorter than this is not compressed.  Deflate adds a few bytes of
+   * its own, so short data does not get any smaller.
+   */
+  private static final int MIN_DEFLATE_LENGTH = 64;
+
+  /**
+   * Preset dictionary for deflate.  It holds strings that are common in
+   * notes, such as the ones added by FileUtils.importSecrets().  It must never
+   * change, since existing files depend on it.
+   */
+  private static final byte[] DICTIONARY = getAsciiBytes(
+      ".com/ .org/ .net/ @gmail.com Email: Username: Password: " +
+      "http://www. https://www. \nWebsite: \nCategory: ");
+
+  /**
+   * Writes the clear text header of the file.
+   *
+   * @param output Stream to write to.
+   * @param flags Flags that describe the rest of the file.
+   */
+  public static void writeHeader(OutputStream output, int flags)
+      throws IOException {
+    output.write(MAGIC);
+    output.write(VERSION);
+    output.write(flags);
+  }
+
+  /**
+   * Reads the clear text header of the file.
+   *
+   * @param input Stream positioned at the start of the file.
+   * @return The format version of the file, or -1 if the file is not in
+   *     this format, in which case it was probably written with java
+   *     serialization.
+   */
+  public static int readHeader(InputStream input) throws IOException {
+    for (int i = 0; i < MAGIC.length; ++i) {
+      if (input.read() != MAGIC[i])
+        return -1;
+    }
+
+    return input.read();
+  }
+
+  /**
+   * Writes a complete secrets file in this format, including the clear
+   * text header.  Bodies that are not already sealed are sealed now.  The
+   * stream is not closed.
+   *
+   * @param output Stream to write to.  Should be buffered.
+   * @param secrets The secrets to write.
+   */
+  public static void writeSecrets(OutputStream output,
+                                  List<Secret> secrets)
+      throws IOException, GeneralSecurityException {
+    byte[][] bodies = new byte[secrets.size()][];
+    ByteArrayOutputStream index = new ByteArrayOutputStream();
+    Writer writer = new Writer(index);
+    for (byte b : MAGIC) {
+      writer.writeByte(b);
+    }
+    writer.writeVarint(bodies.length);
+    long size = 0;
+    long lastChanged = 0;
+    for (int i = 0; i < bodies.length; ++i) {
+      Secret secret = secrets.get(i);
+      bodies[i] = secret.getSealedBody();
+      writer.writeEntry(secret);
+      writer.writeVarint(bodies[i].length);
+      size += bodies[i].length;
+      lastChanged = Math.max(lastChanged, secret.getLastChanged());
+    }
+    writer.flush();
+
+    int flags = FLAG_METADATA;
+    byte[] plain = index.toByteArray();
+    size += plain.length;
+    byte[] deflated = deflate(plain);
+    if (null != deflated) {
+      flags |= FLAG_DEFLATED_INDEX;
+      plain = deflated;
+    }
+
+    writeHeader(output, flags);
+    writeMetadata(output, flags, new Metadata(System.currentTimeMillis(),
+                                              bodies.length, size,
+                                              lastChanged));
+    ChunkedCipher.write(output, plain, getHeaderContext(VERSION, flags));
+    for (byte[] body : bodies) {
+      output.write(body);
+    }
+  }
+
+  /**
+   * Writes a complete restore point in shared form, including the clear text
+   * header.  The secrets are added to the given blob store, and only their
+   * ids are written to the stream.  The stream is not closed.
+   *
+   * @param output Stream to write to.  Should be buffered.
+   * @param secrets The secrets to write.
+   * @param time Time the secrets were written in full, for the metadata.
+   * @param blobs The blob store to add the secrets to.
+   * @return The number of bytes added to the blob store.
+   */
+  public static long writeSharedSecrets(OutputStream output,
+                                        List<Secret> secrets,
+                                        long time,
+                                        BlobStore blobs)
+      throws IOException, GeneralSecurityException {
+    ArrayList<byte[]> sealed = new ArrayList<byte[]>(secrets.size());
+    ByteArrayOutputStream index = new ByteArrayOutputStream();
+    Writer writer = new Writer(index);
+    for (byte b : MAGIC) {
+      writer.writeByte(b);
+    }
+    writer.writeVarint(secrets.size());
+    long size = 0;
+    long lastChanged = 0;
+    for (Secret secret : secrets) {
+      byte[] body = secret.getSealedBody();
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      Writer blob = new Writer(bytes);
+      blob.writeEntry(secret);
+      blob.writeBytes(body);
+      blob.flush();
+      size += bytes.size();
+      lastChanged = Math.max(lastChanged, secret.getLastChanged());
+
+      byte[] data = SecurityUtils.sealBlob(SecurityUtils.SEAL_BLOB,
+                                           bytes.toByteArray());
+      byte[] id = new byte[SecurityUtils.BLOB_ID_LENGTH];
+      System.arraycopy(data, 0, id, 0, id.length);
+      writer.writeBytes(id);
+      sealed.add(data);
+    }
+    writer.flush();
+
+    // The blobs must be in the store before any restore point refers to
+    // them.
+    long added = blobs.putAll(sealed);
+    int flags = FLAG_SHARED | FLAG_METADATA;
+    writeHeader(output, flags);
+    writeMetadata(output, flags, new Metadata(time, secrets.size(), size,
+                                              lastChanged));
+    ChunkedCipher.write(output, index.toByteArray(),
+                        getHeaderContext(VERSION, flags));
+    return added;
+  }
+
+  /**
+   * Returns the clear text header of a file as a context for sealing, so
+   * that the version and the flags cannot be changed without detection.
+   */
+  private static int getHeaderContext(int format, int flags) {
+    return (format << 8) | flags;
+  }
+
+  /** Seals the metadata and writes it, preceded by its length. */
+  private static void writeMetadata(OutputStream output,
+                                    int flags,
+                                    Metadata metadata)
+      throws IOException, GeneralSecurityException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    Writer writer = new Writer(bytes);
+    writer.writeVarint(metadata.time);
+    writer.writeVarint(metadata.count);
+    writer.writeVarint(metadata.size);
+    writer.writeVarint(metadata.lastChanged);
+    writer.flush();
+
+    byte[] sealed = SecurityUtils.seal(SecurityUtils.SEAL_METADATA,
+                                       getHeaderContext(VERSION, flags),
+                                       bytes.toByteArray());
+    DataOutputStream data = new DataOutputStream(output);
+    data.writeShort(sealed.length);
+    data.write(sealed);
+    data.flush();
+  }
+
+  /**
+   * Reads the metadata of a file, without reading any secret.  Only the
+   * header and the metadata block are read, which is a few dozen bytes.
+   *
+   * @param input Stream positioned at the start of the file.
+   * @return The metadata, or null if the file does not have any, for example
+   *     because it was written with java serialization.
+   * @throws BadPasswordException If the metadata cannot be decrypted, most
+   *     likely because the file was written with another password.
+   */
+  public static Metadata readMetadata(InputStream input) throws IOException {
+    if (VERSION != readHeader(input))
+      return null;
+
+    DataInputStream data = new DataInputStream(input);
+    int flags = data.readUnsignedByte();
+    if (0 == (flags & FLAG_METADATA))
+      return null;
+
+    byte[] plain;
+    try {
+      plain = SecurityUtils.unseal(SecurityUtils.SEAL_METADATA,
+                                   getHeaderContext(VERSION, flags),
+                                   readMetadataBlock(data));
+    } catch (GeneralSecurityException ex) {
+      throw new BadPasswordException();
+    }
+
+    Reader reader = new Reader(new ByteArrayInputStream(plain));
+    long time = reader.readVarint();
+    int count = (int) reader.readVarint();
+    long size = reader.readVarint();
+    long lastChanged = reader.readVarint();
+    return new Metadata(time, count, size, lastChanged);
+  }
+
+  /** Reads the sealed metadata block, which follows the flags. */
+  private static byte[] readMetadataBlock(DataInputStream data)
+      throws IOException {
+    int length = data.readUnsignedShort();
+    if (length > MAX_METADATA_LENGTH)
+      throw new IOException("Bad metadata length");
+
+    byte[] sealed = new byte[length];
+    data.readFully(sealed);
+    return sealed;
+  }
+
+  /**
+   * Reads the flags of the header, and skips the metadata block that follows
+   * them.
+   */
+  private static int readFlags(DataInputStream data) throws IOException {
+    int flags = data.readUnsignedByte();
+    if (0 != (flags & FLAG_METADATA))
+      readMetadataBlock(data);
+
+    return flags;
+  }
+
+  /**
+   * Reads the secrets of a file in this format, adding them to the given
+   * list one at a time.  The bodies of the secrets are not
+   * decrypted.  If an exception is thrown, the list contains all the secrets
+   * that were read successfully before the error.
+   *
+   * @param input Stream positioned just after the header of the file.
+   * @param format The version of the format, as returned by readHeader().
+   * @param blobs The blob store holding the secrets of a restore point in
+   *     shared form, or null if the file cannot be in shared form.
+   * @param secrets List to add the secrets to.
+   * @throws BadPasswordException If the index cannot be decrypted, most
+   *     likely because the password is not valid.
+   */
+  public static void readSecrets(InputStream input,
+                                 int format,
+                                 BlobStore blobs,
+                                 List<Secret> secrets) throws IOException {
+    if (VERSION != format)
+      throw new IOException("Unsupported file format " + format);
+
+    DataInputStream data = new DataInputStream(input);
+    int flags = readFlags(data);
+    Reader reader = readIndex(data, flags);
+    int count = reader.readCount();
+    if (0 != (flags & FLAG_SHARED)) {
+      readSharedSecrets(reader, count, blobs, secrets);
+      return;
+    }
+
+    Secret[] entries = new Secret[count];
+    int[] lengths = new int[count];
+    for (int i = 0; i < count; ++i) {
+      entries[i] = reader.readEntry();
+      lengths[i] = (int) reader.readVarint();
+      if (lengths[i] <= 0 || lengths[i] > MAX_BODY_LENGTH)
+        throw new IOException("Bad body length");
+    }
+
+    for (int i = 0; i < count; ++i) {
+      byte[] body = new byte[lengths[i]];
+      data.readFully(body);
+      entries[i].setSealedBody(body);
+      secrets.add(entries[i]);
+    }
+  }
+
+  /**
+   * Reads the ids of the blobs used by a restore point in shared form.
+   * Nothing is read if the file is not in shared form, or not in this
+   * format.
+   *
+   * @param input Stream positioned just after the header of the file.
+   * @param format The version of the format, as returned by readHeader().
+   * @param ids Set to add the ids to, as returned by BlobStore.getId().
+   * @return True if the file is in shared form.
+   */
+  public static boolean readBlobIds(InputStream input,
+                                    int format,
+                                    Set<String> ids) throws IOException {
+    if (VERSION != format)
+      return false;
+
+    DataInputStream data = new DataInputStream(input);
+    int flags = readFlags(data);
+    if (0 == (flags & FLAG_SHARED))
+      return false;
+
+    Reader reader = readIndex(data, flags);
+    int count = reader.readCount();
+    for (int i = 0; i < count; ++i) {
+      ids.add(BlobStore.getId(reader.readBlobId()));
+    }
+    return true;
+  }
+
+  /**
+   * Decrypts the index of a file, and checks its MAGIC bytes.
+   *
+   * @return A reader positioned at the number of secrets.
+   */
+  private static Reader readIndex(DataInputStream data, int flags)
+      throws IOException {
+    byte[] index;
+    try {
+      index = ChunkedCipher.read(data, getHeaderContext(VERSION, flags));
+    } catch (GeneralSecurityException ex) {
+      throw new BadPasswordException();
+    }
+
+    if (0 != (flags & FLAG_DEFLATED_INDEX))
+      index = inflate(new Reader(new ByteArrayInputStream(index)),
+                      MAX_INDEX_LENGTH);
+
+    Reader reader = new Reader(new ByteArrayInputStream(index));
+    reader.readMagic();
+    return reader;
+  }
+
+  /**
+   * Reads the secrets of a restore point in shared form, whose index is
+   * positioned just after the number of secrets.
+   */
+  private static void readSharedSecrets(Reader reader,
+                                        int count,
+                                        BlobStore blobs,
+                                        List<Secret> secrets)
+      throws IOException {
+    if (null == blobs)
+      throw new IOException("No blob store for shared secrets");
+
+    String[] ids = new String[count];
+    for (int i = 0; i < count; ++i) {
+      ids[i] = BlobStore.getId(reader.readBlobId());
+    }
+
+    for (String id : ids) {
+      byte[] data;
+      try {
+        data = SecurityUtils.unsealBlob(SecurityUtils.SEAL_BLOB,
+                                        blobs.get(id));
+      } catch (GeneralSecurityException ex) {
+        throw new IOException("Bad blob " + id);
+      }
+
+      Reader blob = new Reader(new ByteArrayInputStream(data));
+      Secret secret = blob.readEntry();
+      secret.setSealedBody(blob.readBytes());
+      secrets.add(secret);
+    }
+  }
+
+  /**
+   * Encodes the body of a secret, before it is sealed.
+   */
+  public static byte[] encodeBody(String password, String note)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    Writer writer = new Writer(bytes);
+    writer.writeByte(BODY_STORED);
+    writer.writeString(password);
+    writer.writeString(note);
+    writer.flush();
+
+    byte[] body = bytes.toByteArray();
+    byte[] deflated = deflate(body, 1, body.length - 1);
+    if (null == deflated)
+      return body;
+
+    deflated[0] = BODY_DEFLATED;
+    return deflated;
+  }
+
+  /**
+   * Decodes the body of a secret, after it is unsealed.
+   *
+   * @param body The unsealed body.
+   * @return An array holding the password and the note.
+   */
+  public static String[] decodeBody(byte[] body) throws IOException {
+    Reader reader = new Reader(new ByteArrayInputStream(body));
+    int encoding = reader.readByte();
+    if (BODY_DEFLATED == encoding) {
+      body = inflate(reader, MAX_BODY_LENGTH);
+      reader = new Reader(new ByteArrayInputStream(body));
+    } else if (BODY_STORED != encoding) {
+      throw new IOException("Bad body encoding");
+    }
+
+    return new String[] {reader.readString(), reader.readString()};
+  }
+
+  /** Same as deflate() below, for a complete array. */
+  private static byte[] deflate(byte[] data) throws IOException {
+    return deflate(data, 0, data.length);
+  }
+
+  /**
+   * Compresses part of an array, if this makes it smaller.  The result has
+   * as many bytes as the offset reserved at its start, followed by the
+   * length of the data before compression and the compressed bytes, in the
+   * format read by inflate().
+   *
+   * @param data The array to compress.
+   * @param offset Offset of the first byte to compress.
+   * @param length Number of bytes to compress.
+   * @return The compressed data, or null if it would not be smaller.
+   */
+  private static byte[] deflate(byte[] data, int offset, int length)
+      throws IOException {
+    if (length < MIN_DEFLATE_LENGTH)
+      return null;
+
+    Deflater deflater = new Deflater();
+    try {
+      deflater.setDictionary(DICTIONARY);
+      deflater.setInput(data, offset, length);
+      deflater.finish();
+
+      // Give up as soon as the compressed data is not smaller.
+      byte[] buffer = new byte[length];
+      int count = 0;
+      while (!deflater.finished() && count < buffer.length) {
+        count += deflater.deflate(buffer, count, buffer.length - count);
+      }
+      if (!deflater.finished())
+        return null;
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(count + 16);
+      bytes.write(data, 0, offset);
+      Writer writer = new Writer(bytes);
+      writer.writeVarint(length);
+      writer.writeVarint(count);
+      writer.flush();
+      bytes.write(buffer, 0, count);
+      if (bytes.size() >= offset + length)
+        return null;
+
+      return bytes.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Reads data compressed by deflate() and returns it uncompressed.
+   *
+   * @param reader Reader positioned at the length of the data.
+   * @param maxLength Upper bound on the length of the uncompressed data.
+   */
+  private static byte[] inflate(Reader reader, int maxLength)
+      throws IOException {
+    int length = (int) reader.readVarint();
+    if (length < 0 || length > maxLength)
+      throw new IOException("Bad compressed length");
+
+    byte[] compressed = reader.readBytes(maxLength);
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      byte[] data = new byte[length];
+      int count = 0;
+      while (count < length) {
+        int n = inflater.inflate(data, count, length - count);
+        if (0 == n) {
+          if (!inflater.needsDictionary())
+            throw new IOException("Compressed data is too short");
+
+          inflater.setDictionary(DICTIONARY);
+        }
+        count += n;
+      }
+      return data;
+    } catch (DataFormatException ex) {
+      throw new IOException("Bad compressed data");
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /** Returns the bytes of a string that holds only ASCII characters. */
+  private static byte[] getAsciiBytes(String s) {
+    byte[] bytes = new byte[s.length()];
+    for (int i = 0; i < bytes.length; ++i) {
+      bytes[i] = (byte) s.charAt(i);
+    }
+    return bytes;
+  }
+
+  /**
+   * Encodes secrets to a stream.  The writer does its own buffering, so
+   * there is no need to wrap the output stream in a BufferedOutputStream.
+   * The flush() method must be called when done.
+   */
+  public static class Writer {
+    private final OutputStream output;
+    private final byte[] buffer = new byte[8 * 1024];
+    private int length;
+
+    public Writer(OutputStream output) {
+      this.output = output;
+    }
+
+    /**
+     * Writes the index entry of one secret, which is everything except the
+     * password and the note.
+     */
+    public void writeEntry(Secret secret) throws IOException {
+      writeLong(secret.getId());
+      writeString(secret.getDescription());
+      writeString(secret.getUsername());
+      writeString(secret.getEmail());
+
+      List<Secret.LogEntry> log = secret.getAccessLog();
+      writeVarint(log.size());
+      long previous = 0;
+      for (Secret.LogEntry entry : log) {
+        writeByte(entry.getType());
+        writeVarint(zigzag(entry.getTime() - previous));
+        previous = entry.getTime();
+      }
+    }
+
+    /** Writes an array of bytes, preceded by its length. */
+    public void writeBytes(byte[] bytes) throws IOException {
+      writeVarint(bytes.length);
+      flushBuffer();
+      output.write(bytes);
+    }
+
+    public void writeByte(int b) throws IOException {
+      if (length == buffer.length)
+        flushBuffer();
+
+      buffer[length++] = (byte) b;
+    }
+
+    public void writeLong(long value) throws IOException {
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        writeByte((int) (value >>> shift));
+      }
+    }
+
+    public void writeVarint(long value) throws IOException {
+      while ((value & ~0x7FL) != 0) {
+        writeByte((int) ((value & 0x7F) | 0x80));
+        value >>>= 7;
+      }
+      writeByte((int) value);
+    }
+
+    /**
+     * Writes a string as UTF-8.  The string is encoded directly into the
+     * buffer, without allocating an intermediate byte array.
+     */
+    public void writeString(String s) throws IOException {
+      if (null == s) {
+        writeVarint(0);
+        return;
+      }
+
+      writeVarint(utf8Length(s) + 1);
+      int count = s.length();
+      for (int i = 0; i < count; ++i) {
+        char c = s.charAt(i);
+        if (c < 0x80) {
+          writeByte(c);
+        } else if (c < 0x800) {
+          writeByte(0xC0 | (c >> 6));
+          writeByte(0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c) && i + 1 < count &&
+                   Character.isLowSurrogate(s.charAt(i + 1))) {
+          int cp = Character.toCodePoint(c, s.charAt(++i));
+          writeByte(0xF0 | (cp >> 18));
+          writeByte(0x80 | ((cp >> 12) & 0x3F));
+          writeByte(0x80 | ((cp >> 6) & 0x3F));
+          writeByte(0x80 | (cp & 0x3F));
+        } else {
+          writeByte(0xE0 | (c >> 12));
+          writeByte(0x80 | ((c >> 6) & 0x3F));
+          writeByte(0x80 | (c & 0x3F));
+        }
+      }
+    }
+
+    /** Writes any buffered bytes to the underlying stream. */
+    public void flush() throws IOException {
+      flushBuffer();
+      output.flush();
+    }
+
+    private void flushBuffer() throws IOException {
+      if (length > 0) {
+        output.write(buffer, 0, length);
+        length = 0;
+      }
+    }
+
+    /** Returns the number of bytes needed to encode s in UTF-8. */
+    private static int utf8Length(String s) {
+      int count = s.length();
+      int utf8 = 0;
+      for (int i = 0; i < count; ++i) {
+        char c = s.charAt(i);
+        if (c < 0x80) {
+          utf8 += 1;
+        } else if (c < 0x800) {
+          utf8 += 2;
+        } else if (Character.isHighSurrogate(c) && i + 1 < count &&
+                   Character.isLowSurrogate(s.charAt(i + 1))) {
+          utf8 += 4;
+          ++i;
+        } else {
+          utf8 += 3;
+        }
+      }
+      return utf8;
+    }
+  }
+
+  /**
+   * Decodes secrets from a stream.  The reader does its own buffering, so
+   * there is no need to wrap the input stream in a BufferedInputStream.
+   */
+  public static class Reader {
+    private final InputStream input;
+    private final byte[] buffer = new byte[8 * 1024];
+    private int position;
+    private int length;
+
+    public Reader(InputStream input) {
+      this.input = input;
+    }
+
+    /**
+     * Reads the index entry of one secret.  The secret returned has no
+     * password or note until its body is set.
+     */
+    public Secret readEntry() throws IOException {
+      long id = readLong();
+      String description = readString();
+      String username = readString();
+      String email = readString();
+      return new Secret(id, description, username, null, email, null,
+                        readLog());
+    }
+
+    /**
+     * Reads an array of bytes written by Writer.writeBytes().  The array
+     * cannot be longer than the body of a secret.
+     */
+    public byte[] readBytes() throws IOException {
+      return readBytes(MAX_BODY_LENGTH);
+    }
+
+    /**
+     * Reads an array of bytes written by Writer.writeBytes().
+     *
+     * @param maxLength Upper bound on the length of the array.
+     */
+    public byte[] readBytes(int maxLength) throws IOException {
+      int count = (int) readVarint();
+      if (count < 0 || count > maxLength)
+        throw new IOException("Bad bytes length");
+
+      byte[] bytes = new byte[count];
+      readFully(bytes, count);
+      return bytes;
+    }
+
+    /** Reads the id of a blob written by Writer.writeBytes(). */
+    private byte[] readBlobId() throws IOException {
+      byte[] id = readBytes(SecurityUtils.BLOB_ID_LENGTH);
+      if (SecurityUtils.BLOB_ID_LENGTH != id.length)
+        throw new IOException("Bad blob id");
+
+      return id;
+    }
+
+    private void readMagic() throws IOException {
+      for (byte b : MAGIC) {
+        if (readByte() != b)
+          throw new BadPasswordException();
+      }
+    }
+
+    private int readCount() throws IOException {
+      int count = (int) readVarint();
+      if (count < 0)
+        throw new IOException("Bad secret count");
+
+      return count;
+    }
+
+    private ArrayList<Secret.LogEntry> readLog() throws IOException {
+      int count = (int) readVarint();
+      if (count <= 0 || count > MAX_LOG_ENTRIES)
+        throw new IOException("Bad access log size");
+
+      ArrayList<Secret.LogEntry> log =
+          new ArrayList<Secret.LogEntry>(count);
+      long time = 0;
+      for (int i = 0; i < count; ++i) {
+        int type = readByte();
+        if (type < Secret.LogEntry.CREATED || type > Secret.LogEntry.EXPORTED)
+          throw new IOException("Bad access log type");
+
+        time += unzigzag(readVarint());
+        log.add(new Secret.LogEntry(type, time));
+      }
+      return log;
+    }
+
+    public int readByte() throws IOException {
+      if (position == length) {
+        length = input.read(buffer, 0, buffer.length);
+        position = 0;
+        if (length <= 0) {
+          length = 0;
+          throw new EOFException();
+        }
+      }
+
+      return buffer[position++] & 0xFF;
+    }
+
+    public long readLong() throws IOException {
+      long value = 0;
+      for (int i = 0; i < 8; ++i) {
+        value = (value << 8) | readByte();
+      }
+      return value;
+    }
+
+    public long readVarint() throws IOException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        int b = readByte();
+        value |= (long) (b & 0x7F) << shift;
+        if (0 == (b & 0x80))
+          return value;
+      }
+      throw new IOException("Bad varint");
+    }
+
+    public String readString() throws IOException {
+      int count = (int) readVarint() - 1;
+      if (count < 0)
+        return null;
+      if (count > MAX_STRING_LENGTH)
+        throw new IOException("Bad string length");
+
+      // Strings that fit in the buffer are decoded in place.
+      if (count <= buffer.length) {
+        if (length - position < count) {
+          System.arraycopy(buffer, position, buffer, 0, length - position);
+          length -= position;
+          position = 0;
+          while (length < count) {
+            int n = input.read(buffer, length, buffer.length - length);
+            if (n <= 0)
+              throw new EOFException();
+            length += n;
+          }
+        }
+
+        String s = new String(buffer, position, count, "UTF-8");
+        position += count;
+        return s;
+      }
+
+      byte[] bytes = new byte[count];
+      readFully(bytes, count);
+      return new String(bytes, "UTF-8");
+    }
+
+    private void readFully(byte[] bytes, int count) throws IOException {
+      int n = Math.min(count, length - position);
+      System.arraycopy(buffer, position, bytes, 0, n);
+      position += n;
+      while (n < count) {
+        int r = input.read(bytes, n, count - n);
+        if (r <= 0)
+          throw new EOFException();
+        n += r;
+      }
+    }
+  }
+
+  /**
+   * Thrown when the secrets cannot be decrypted, most likely because the
+   * password is not valid.
+   */
+  public static class BadPasswordException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public BadPasswordException() {
+      super("Bad password");
+    }
+  }
+
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+}
@@ -0,0 +1,415 @@
+// Copyright (c) 2026, The Secrets for Android Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An append-only log of the changes made to the secrets since the secrets
+ * file was last written in full.  Each time a secret is added, changed or
+ * deleted, one record is appended to the journal instead of rewriting the
+ * whole secrets file.  This way the cost of a save depends on the number of
+ * secrets that changed, and not on the total number of secrets.
+ *
+ * Each record is sealed on its own with SecurityUtils.seal(), bound to its
+ * position in the file, and is preceded by its length in clear text so that
+ * records can be appended to the file one at a time.  A record either puts a
+ * complete secret, replacing any existing secret with the same id, or
+ * deletes the secret with a given id.  Replaying a record more than once has
+ * no further effect.
+ *
+ * When the journal grows too big compared to the secrets file, the caller
+ * is expected to compact it by writing all the secrets in full again, and
+ * then deleting the journal.
+ *
+ * This class is not thread safe.  All access is done while holding the
+ * write lock of the FileUtils class.
+ */
+class SecretsJournal {
+  /** Name of the journal file. */
+  public static final String FILE_NAME = "journal";
+
+  /** Tag for logging purposes. */
+  public static final String LOG_TAG = "Secrets";
+
+  // Record types.  RECORD_PUT_BODY holds the index entry of a secret,
+  // followed by its sealed body.  RECORD_DELETE only holds the id of the
+  // secret.
+  private static final byte RECORD_PUT_BODY = 1;
+  private static final byte RECORD_DELETE = 2;
+
+  /** The first four bytes of every journal. */
+  private static final int MAGIC = 0xA5EC7A01;
+
+  /** The journal is never compacted when smaller than this. */
+  private static final long MIN_COMPACT_SIZE = 16 * 1024;
+
+  /** Upper bound on the size of one record, to detect corrupted lengths. */
+  private static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+  /** The state of one secret as last written to disk. */
+  private static class Persisted {
+    final Secret secret;
+    final int revision;
+
+    Persisted(Secret secret, int revision) {
+      this.secret = secret;
+      this.revision = revision;
+    }
+  }
+
+  // The secrets as they are currently on disk, keyed by id.  This is only
+  // meaningful if isValid is true.
+  private final HashMap<Long, Persisted> persisted =
+      new HashMap<Long, Persisted>();
+  private boolean isValid;
+  private long snapshotSize;
+  private long journalSize;
+
+  /**
+   * Remember the given secrets as the ones currently on disk.  This method
+   * must be called after the secrets were loaded from disk, or written to
+   * disk in full.
+   *
+   * @param secrets The secrets that are on disk.
+   * @param snapshotSize Size of the secrets file, in bytes.
+   * @param journalSize Size of the journal file, in bytes.
+   */
+  public void reset(List<Secret> secrets, long snapshotSize,
+                    long journalSize) {
+    reset(secrets, getRevisions(secrets), snapshotSize, journalSize);
+  }
+
+  /**
+   * Same as above, but with the revisions of the secrets taken before they
+   * were written.  The access log of a secret can change while it is being
+   * written, and remembering the older revision makes sure the change is
+   * written by the next save.
+   *
+   * @param secrets The secrets that are on disk.
+   * @param revisions The revisions of the secrets, as returned by
+   *     getRevisions() before the secrets were written.
+   * @param snapshotSize Size of the secrets file, in bytes.
+   * @param journalSize Size of the journal file, in bytes.
+   */
+  public void reset(List<Secret> secrets, int[] revisions, long snapshotSize,
+                    long journalSize) {
+    persisted.clear();
+    int i = 0;
+    for (Secret secret : secrets) {
+      persisted.put(secret.getId(), new Persisted(secret, revisions[i++]));
+    }
+
+    this.snapshotSize = snapshotSize;
+    this.journalSize = journalSize;
+    isValid = true;
+  }
+
+  /** Returns the current revision of each secret, in the same order. */
+  public static int[] getRevisions(List<Secret> secrets) {
+    int[] revisions = new int[secrets.size()];
+    int i = 0;
+    for (Secret secret : secrets) {
+      revisions[i++] = secret.getRevision();
+    }
+    return revisions;
+  }
+
+  /**
+   * Forget what is on disk.  The next save must write all the secrets in
+   * full.
+   */
+  public void invalidate() {
+    persisted.clear();
+    isValid = false;
+  }
+
+  /**
+   * Is it possible to append changes to the journal?  If not, all secrets
+   * need to be written in full.
+   */
+  public boolean isValid() {
+    return isValid;
+  }
+
+  /**
+   * Should the journal be folded back into the secrets file?  This happens
+   * once the journal is at least half the size of the secrets file.
+   */
+  public boolean needsCompaction() {
+    return journalSize > Math.max(MIN_COMPACT_SIZE, snapshotSize / 2);
+  }
+
+  /**
+   * Append to the journal one record for each secret that was added or
+   * changed, and for each secret that was deleted, since the secrets were last
+   * written.
+   *
+   * @param file The journal file.
+   * @param secrets The current list of secrets.  This should be a snapshot,
+   *     since it is read more than once.
+   * @param changes The changes taken with the snapshot.  Only the secrets
+   *     they hold are compared with what is on disk.  If null or not known,
+   *     every secret is compared.
+   * @return The number of records appended, or -1 on error.  On error, the
+   *     journal is invalidated.
+   */
+  public int append(File file, List<Secret> secrets,
+                    ChangeTracker.Changes changes) {
+    ArrayList<Secret> changed = new ArrayList<Secret>();
+    ArrayList<Long> deleted = new ArrayList<Long>();
+    if (null != changes && changes.isKnown()) {
+      findChanges(changes, changed, deleted);
+    } else {
+      findChanges(secrets, changed, deleted);
+    }
+
+    if (changed.isEmpty() && deleted.isEmpty())
+      return 0;
+
+    DataOutputStream output = null;
+    try {
+      long offset = file.length();
+      output = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(file, true)));
+      if (0 == offset) {
+        output.writeInt(MAGIC);
+        offset += 4;
+      }
+
+      for (Secret secret : changed) {
+        Persisted p = new Persisted(secret, secret.getRevision());
+        offset += writeRecord(output, offset, RECORD_PUT_BODY, secret.getId(),
+                              secret);
+        persisted.put(secret.getId(), p);
+      }
+
+      for (Long id : deleted) {
+        offset += writeRecord(output, offset, RECORD_DELETE, id, null);
+        persisted.remove(id);
+      }
+
+      output.close();
+      output = null;
+    } catch (Exception ex) {
+      Log.e(LOG_TAG, "SecretsJournal.append", ex);
+      invalidate();
+      return -1;
+    } finally {
+      try {if (null != output) output.close();} catch (IOException ex) {}
+    }
+
+    journalSize = file.length();
+    return changed.size() + deleted.size();
+  }
+
+  /** Find the changes by comparing every secret with what is on disk. */
+  private void findChanges(List<Secret> secrets, ArrayList<Secret> changed,
+                           ArrayList<Long> deleted) {
+    HashSet<Long> gone = new HashSet<Long>(persisted.keySet());
+    for (Secret secret : secrets) {
+      gone.remove(secret.getId());
+      if (isChanged(secret))
+        changed.add(secret);
+    }
+    deleted.addAll(gone);
+  }
+
+  /** Find the changes among the secrets recorded by the ChangeTracker. */
+  private void findChanges(ChangeTracker.Changes changes,
+                           ArrayList<Secret> changed,
+                           ArrayList<Long> deleted) {
+    for (Map.Entry<Long, Secret> entry : changes.listed.entrySet()) {
+      Secret secret = entry.getValue();
+      if (null == secret) {
+        if (persisted.containsKey(entry.getKey()))
+          deleted.add(entry.getKey());
+      } else if (isChanged(secret)) {
+        changed.add(secret);
+      }
+    }
+
+    // A modified secret may be a copy that is not in the list.  Unless it was
+    // added to the list, it is only written if it is the one on disk.
+    for (Secret secret : changes.modified) {
+      Persisted p = persisted.get(secret.getId());
+      if (null != p && secret == p.secret &&
+          p.revision != secret.getRevision() &&
+          !changes.listed.containsKey(secret.getId()))
+        changed.add(secret);
+    }
+  }
+
+  /** Is the secret different from the one on disk with the same id? */
+  private boolean isChanged(Secret secret) {
+    Persisted p = persisted.get(secret.getId());
+    return null == p || p.secret != secret ||
+        p.revision != secret.getRevision();
+  }
+
+  /**
+   * Seal and write one record to the journal.
+   *
+   * @param offset Position of the record in the journal file.  The record is
+   *     bound to it, so that records cannot be moved around.
+   * @return The number of bytes written.
+   */
+  private static int writeRecord(DataOutputStream output,
+                                 long offset,
+                                 byte type,
+                                 long id,
+                                 Secret secret) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream record = new DataOutputStream(bytes);
+    record.writeByte(type);
+    record.writeLong(id);
+    record.flush();
+    if (RECORD_PUT_BODY == type) {
+      byte[] body = secret.getSealedBody();
+      SecretCodec.Writer writer = new SecretCodec.Writer(bytes);
+      writer.writeEntry(secret);
+      writer.writeBytes(body);
+      writer.flush();
+    }
+
+    byte[] sealed = SecurityUtils.seal(SecurityUtils.SEAL_JOURNAL, offset,
+                                       bytes.toByteArray());
+    output.writeInt(sealed.length);
+    output.write(sealed);
+    return 4 + sealed.length;
+  }
+
+  /**
+   * Apply the records of the journal to the given list of secrets, which was
+   * read from the secrets file.  The list is sorted again by description if
+   * any record was applied.
+   *
+   * Replay stops at the first record that cannot be read.  A record cut
+   * short is what happens if the app died while appending to the journal.
+   * A record that fails authentication was modified, or moved from another
+   * place in the journal.
+   *
+   * @param file The journal file.
+   * @param secrets The secrets read from the secrets file.
+   * @return True if the whole journal was read and more records can be
+   *     appended to it.  False if some records at the end of the journal
+   *     could not be read, or if the journal does not start with the MAGIC
+   *     bytes, in which case the secrets must be written in full.
+   */
+  public static boolean replay(File file, ArrayList<Secret> secrets) {
+    if (!file.exists())
+      return true;
+
+    HashMap<Long, Integer> index = new HashMap<Long, Integer>();
+    for (int i = 0; i < secrets.size(); ++i) {
+      index.put(secrets.get(i).getId(), i);
+    }
+
+    boolean complete = false;
+    int count = 0;
+    DataInputStream input = null;
+    try {
+      input = new DataInputStream(new FileInputStream(file));
+      long size = file.length();
+      long offset = 0;
+      if (size > 0) {
+        if (MAGIC != input.readInt())
+          return false;
+
+        offset += 4;
+      }
+
+      for (;;) {
+        // The end of the file must not cut a length in two.
+        int length;
+        try {
+          length = input.readInt();
+        } catch (EOFException ex) {
+          complete = offset == size;
+          break;
+        }
+
+        if (length <= 0 || length > MAX_RECORD_SIZE)
+          break;
+
+        byte[] sealed = new byte[length];
+        try {
+          input.readFully(sealed);
+        } catch (EOFException ex) {
+          break;
+        }
+
+        byte[] plain = SecurityUtils.unseal(SecurityUtils.SEAL_JOURNAL,
+                                            offset, sealed);
+        offset += 4 + length;
+        DataInputStream record = new DataInputStream(
+            new ByteArrayInputStream(plain));
+        byte type = record.readByte();
+        long id = record.readLong();
+        Integer position = index.get(id);
+
+        if (RECORD_PUT_BODY == type) {
+          SecretCodec.Reader reader = new SecretCodec.Reader(record);
+          Secret secret = reader.readEntry();
+          secret.setSealedBody(reader.readBytes());
+
+          if (null == position) {
+            index.put(id, secrets.size());
+            secrets.add(secret);
+          } else {
+            secrets.set(position, secret);
+          }
+        } else if (RECORD_DELETE == type) {
+          if (null != position) {
+            secrets.set(position, null);
+            index.remove(id);
+          }
+        } else {
+          break;
+        }
+
+        ++count;
+      }
+    } catch (Exception ex) {
+      Log.e(LOG_TAG, "SecretsJournal.replay", ex);
+    } finally {
+      try {if (null != input) input.close();} catch (IOException ex) {}
+    }
+
+    if (count > 0) {
+      secrets.removeAll(Collections.singleton(null));
+      Collections.sort(secrets, Secret.DESCRIPTION_ORDER);
+    }
+
+    return complete;
+  }
+}
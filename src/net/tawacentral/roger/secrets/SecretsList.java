@@ -0,0 +1,531 @@
+// Copyright (c) 2026, The Secrets for Android Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The list of the user's secrets.  It supports taking a snapshot of the list
+ * in constant time, without copying anything and without locking, so that
+ * the secrets can be saved in a background thread while the UI keeps
+ * modifying the list.
+ *
+ * The list is stored in a balanced binary tree whose nodes are never
+ * modified.  Adding, removing or replacing a secret creates new nodes for the
+ * path from the root to the position of the change, and shares all the other
+ * nodes with the previous version of the tree.  A snapshot is simply the root
+ * of the tree at the time it was taken.  Getting, adding and removing a
+ * secret at a given position all take O(log n).
+ *
+ * The list also keeps a hash index of the secrets by id, built the first time
+ * it is needed.  Since the secrets are sorted by description, indexOf()
+ * finds the position of a secret by searching the tree for its collation
+ * key, instead of comparing every secret, and insert() finds where a new
+ * secret goes the same way.  Both take O(log n).  The secrets whose
+ * description starts with a given prefix are next to each other, so
+ * startingWith() finds them with two searches, and returns them as a new
+ * list that shares the nodes of this one.
+ *
+ * Modifications are synchronized, and reads never block.  Note that this only
+ * protects the list itself: the secrets in the list must not be modified once
+ * they are added, except for their access log.  See Secret.copy().
+ */
+public class SecretsList extends AbstractList<Secret> {
+  /** A node of the tree.  Nodes are immutable. */
+  private static final class Node {
+    final Node left;
+    final Secret secret;
+    final Node right;
+    final int size;
+    final int height;
+
+    Node(Node left, Secret secret, Node right) {
+      this.left = left;
+      this.secret = secret;
+      this.right = right;
+      size = size(left) + size(right) + 1;
+      height = Math.max(height(left), height(right)) + 1;
+    }
+  }
+
+  // The current version of the tree.  It's volatile so that snapshots can be
+  // taken from any thread without locking.
+  private volatile Node root;
+
+  // The secrets of the current version of the tree, by id.  Only used while
+  // holding the lock of this list.  This is null until first needed, so that
+  // lists returned by startingWith() don't allocate anything per secret.
+  private HashMap<Long, Secret> byId;
+
+  /** Creates an empty list of secrets. */
+  public SecretsList() {
+  }
+
+  private SecretsList(Node root) {
+    this.root = root;
+  }
+
+  /**
+   * Creates a list holding the given secrets, in the same order.
+   *
+   * @param secrets The secrets to put in the list.
+   */
+  public SecretsList(List<Secret> secrets) {
+    setAll(secrets);
+  }
+
+  /**
+   * Returns an immutable view of the secrets as they are now.  Later changes
+   * to this list are not seen by the snapshot.  This takes constant time.
+   */
+  public List<Secret> snapshot() {
+    return new Snapshot(root);
+  }
+
+  /**
+   * Replaces all the secrets of the list with the given ones.
+   *
+   * @param secrets The new secrets of the list.
+   */
+  public synchronized void setAll(List<Secret> secrets) {
+    root = build(new ArrayList<Secret>(secrets), 0, secrets.size());
+    byId = null;
+    ++modCount;
+  }
+
+  /**
+   * Returns a new list holding the secrets of this one whose description
+   * starts with the given prefix, ignoring case.  This list must be sorted by
+   * description.  The new list shares the nodes of this one, and creating it
+   * takes O(log n), whatever the number of secrets it holds.
+   *
+   * @param prefix The prefix of the descriptions.
+   */
+  public SecretsList startingWith(String prefix) {
+    Node node = root;
+    String key = Secret.foldCase(prefix);
+    int from = lowerBound(node, key);
+    int to = prefixEnd(node, key);
+    return new SecretsList(range(node, from, to));
+  }
+
+  /**
+   * Returns the secret with the given id, or null if there is none.
+   *
+   * @param id The id of the secret, as returned by Secret.getId().
+   */
+  public synchronized Secret getById(long id) {
+    return getIndex().get(id);
+  }
+
+  /**
+   * Returns the position of the given secret, or -1 if it is not in the
+   * list.  The secret is looked up in the index by id, then found by its
+   * collation key, which takes O(log n) plus the number of secrets with the
+   * same description.
+   */
+  @Override
+  public synchronized int indexOf(Object o) {
+    if (!(o instanceof Secret))
+      return -1;
+
+    // A secret that is not in the index is either not in the list, or in the
+    // list more than once, which should not happen.
+    Secret secret = (Secret) o;
+    if (getIndex().get(secret.getId()) != secret)
+      return super.indexOf(o);
+
+    String key = secret.getCollationKey();
+    int size = size(root);
+    for (int i = lowerBound(root, key); i < size; ++i) {
+      Secret s = get(root, i);
+      if (s == secret)
+        return i;
+      if (!s.getCollationKey().equals(key))
+        break;
+    }
+
+    // Only happens if the list is not sorted.
+    return super.indexOf(o);
+  }
+
+  /**
+   * Inserts a secret in the list, after all the secrets whose description is
+   * not after its own, ignoring case.  The list must be sorted by
+   * description.  This takes O(log n).
+   *
+   * @param secret Secret to insert.
+   * @return Position where the secret was inserted.
+   */
+  public synchronized int insert(Secret secret) {
+    int index = upperBound(root, secret.getCollationKey());
+    add(index, secret);
+    return index;
+  }
+
+  @Override
+  public Secret get(int index) {
+    Node node = root;
+    checkIndex(index, size(node));
+    return get(node, index);
+  }
+
+  @Override
+  public int size() {
+    return size(root);
+  }
+
+  @Override
+  public synchronized void add(int index, Secret secret) {
+    if (index < 0 || index > size(root))
+      throw new IndexOutOfBoundsException("Index: " + index);
+
+    root = insert(root, index, secret);
+    if (null != byId)
+      byId.put(secret.getId(), secret);
+    ++modCount;
+  }
+
+  @Override
+  public synchronized Secret remove(int index) {
+    checkIndex(index, size(root));
+    Secret secret = get(root, index);
+    root = delete(root, index);
+    unindex(secret);
+    ++modCount;
+    return secret;
+  }
+
+  @Override
+  public synchronized Secret set(int index, Secret secret) {
+    checkIndex(index, size(root));
+    Secret old = get(root, index);
+    root = replace(root, index, secret);
+    unindex(old);
+    if (null != byId)
+      byId.put(secret.getId(), secret);
+    return old;
+  }
+
+  @Override
+  public synchronized void clear() {
+    root = null;
+    byId = null;
+    ++modCount;
+  }
+
+  /** Returns the index of the secrets by id, building it if needed. */
+  private HashMap<Long, Secret> getIndex() {
+    if (null == byId) {
+      byId = new HashMap<Long, Secret>(size(root) * 4 / 3 + 1);
+      for (Iterator<Secret> i = new TreeIterator(root); i.hasNext();) {
+        Secret secret = i.next();
+        byId.put(secret.getId(), secret);
+      }
+    }
+    return byId;
+  }
+
+  /** Removes a secret from the index, unless another one has its id. */
+  private void unindex(Secret secret) {
+    if (null != byId && byId.get(secret.getId()) == secret)
+      byId.remove(secret.getId());
+  }
+
+  /** An immutable version of the list. */
+  private static final class Snapshot extends AbstractList<Secret> {
+    private final Node root;
+
+    Snapshot(Node root) {
+      this.root = root;
+    }
+
+    @Override
+    public Secret get(int index) {
+      checkIndex(index, SecretsList.size(root));
+      return SecretsList.get(root, index);
+    }
+
+    @Override
+    public int size() {
+      return SecretsList.size(root);
+    }
+
+    /**
+     * Returns a snapshot of part of this one.  This takes O(log n), and
+     * iterating over it walks the tree like this one.
+     */
+    @Override
+    public List<Secret> subList(int from, int to) {
+      if (from < 0 || to > size() || from > to)
+        throw new IndexOutOfBoundsException("From: " + from + ", To: " + to);
+
+      return new Snapshot(range(root, from, to));
+    }
+
+    /**
+     * Returns an iterator that walks the tree, which is faster than calling
+     * get() for each position.
+     */
+    @Override
+    public Iterator<Secret> iterator() {
+      return new TreeIterator(root);
+    }
+  }
+
+  /** Iterates over the secrets of a tree, in order. */
+  private static final class TreeIterator implements Iterator<Secret> {
+    // The nodes whose secret and right subtree are still to be visited.
+    private final ArrayList<Node> stack = new ArrayList<Node>();
+
+    TreeIterator(Node root) {
+      pushLeft(root);
+    }
+
+    @Override
+    public boolean hasNext() {
+      return !stack.isEmpty();
+    }
+
+    @Override
+    public Secret next() {
+      if (stack.isEmpty())
+        throw new NoSuchElementException();
+
+      Node node = stack.remove(stack.size() - 1);
+      pushLeft(node.right);
+      return node.secret;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    private void pushLeft(Node node) {
+      for (; null != node; node = node.left) {
+        stack.add(node);
+      }
+    }
+  }
+
+  private static int size(Node node) {
+    return null == node ? 0 : node.size;
+  }
+
+  private static int height(Node node) {
+    return null == node ? 0 : node.height;
+  }
+
+  private static void checkIndex(int index, int size) {
+    if (index < 0 || index >= size)
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " +
+                                          size);
+  }
+
+  /** Builds a balanced tree from part of a list. */
+  private static Node build(ArrayList<Secret> secrets, int from, int to) {
+    if (from >= to)
+      return null;
+
+    int middle = (from + to) >>> 1;
+    return new Node(build(secrets, from, middle), secrets.get(middle),
+                    build(secrets, middle + 1, to));
+  }
+
+  /**
+   * Returns the position of the first secret whose collation key is not
+   * before the given one.
+   */
+  private static int lowerBound(Node node, String key) {
+    int index = 0;
+    while (null != node) {
+      if (node.secret.getCollationKey().compareTo(key) < 0) {
+        index += size(node.left) + 1;
+        node = node.right;
+      } else {
+        node = node.left;
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Returns the position of the first secret whose collation key is after
+   * the given one.
+   */
+  private static int upperBound(Node node, String key) {
+    int index = 0;
+    while (null != node) {
+      if (node.secret.getCollationKey().compareTo(key) <= 0) {
+        index += size(node.left) + 1;
+        node = node.right;
+      } else {
+        node = node.left;
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Returns the position of the first secret whose collation key is after
+   * all the keys that start with the given one.
+   */
+  private static int prefixEnd(Node node, String key) {
+    int index = 0;
+    while (null != node) {
+      String nodeKey = node.secret.getCollationKey();
+      if (nodeKey.startsWith(key) || nodeKey.compareTo(key) < 0) {
+        index += size(node.left) + 1;
+        node = node.right;
+      } else {
+        node = node.left;
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Returns a tree holding the secrets of the given one from position from
+   * to position to, excluded.  Whole subtrees that fall in the range are
+   * shared, so this creates O(log n) nodes.
+   */
+  private static Node range(Node node, int from, int to) {
+    if (null == node || from >= to)
+      return null;
+    if (0 == from && size(node) == to)
+      return node;
+
+    int leftSize = size(node.left);
+    if (to <= leftSize)
+      return range(node.left, from, to);
+    if (from > leftSize)
+      return range(node.right, from - leftSize - 1, to - leftSize - 1);
+
+    return join(range(node.left, from, leftSize), node.secret,
+                range(node.right, 0, to - leftSize - 1));
+  }
+
+  /**
+   * Creates a balanced tree holding the secrets of the left tree, then the
+   * given secret, then the secrets of the right tree.  The heights of the
+   * trees may differ by any amount.
+   */
+  private static Node join(Node left, Secret secret, Node right) {
+    int leftHeight = height(left);
+    int rightHeight = height(right);
+    if (leftHeight > rightHeight + 1)
+      return balance(left.left, left.secret,
+                     join(left.right, secret, right));
+    if (rightHeight > leftHeight + 1)
+      return balance(join(left, secret, right.left), right.secret,
+                     right.right);
+
+    return new Node(left, secret, right);
+  }
+
+  private static Secret get(Node node, int index) {
+    for (;;) {
+      int leftSize = size(node.left);
+      if (index < leftSize) {
+        node = node.left;
+      } else if (index == leftSize) {
+        return node.secret;
+      } else {
+        index -= leftSize + 1;
+        node = node.right;
+      }
+    }
+  }
+
+  private static Node insert(Node node, int index, Secret secret) {
+    if (null == node)
+      return new Node(null, secret, null);
+
+    int leftSize = size(node.left);
+    if (index <= leftSize)
+      return balance(insert(node.left, index, secret), node.secret,
+                     node.right);
+
+    return balance(node.left, node.secret,
+                   insert(node.right, index - leftSize - 1, secret));
+  }
+
+  private static Node delete(Node node, int index) {
+    int leftSize = size(node.left);
+    if (index < leftSize)
+      return balance(delete(node.left, index), node.secret, node.right);
+    if (index > leftSize)
+      return balance(node.left, node.secret,
+                     delete(node.right, index - leftSize - 1));
+
+    if (null == node.left)
+      return node.right;
+    if (null == node.right)
+      return node.left;
+
+    // Replace the secret of this node with the first one of its right
+    // subtree.
+    return balance(node.left, get(node.right, 0), delete(node.right, 0));
+  }
+
+  private static Node replace(Node node, int index, Secret secret) {
+    int leftSize = size(node.left);
+    if (index < leftSize)
+      return new Node(replace(node.left, index, secret), node.secret,
+                      node.right);
+    if (index > leftSize)
+      return new Node(node.left, node.secret,
+                      replace(node.right, index - leftSize - 1, secret));
+
+    return new Node(node.left, secret, node.right);
+  }
+
+  /**
+   * Creates a node from the given subtrees, rotating them if needed to keep
+   * the tree balanced.  The heights of the subtrees must not differ by more
+   * than two, which is always the case after a single insert or delete.
+   */
+  private static Node balance(Node left, Secret secret, Node right) {
+    int leftHeight = height(left);
+    int rightHeight = height(right);
+    if (leftHeight > rightHeight + 1) {
+      if (height(left.left) >= height(left.right))
+        return new Node(left.left, left.secret,
+                        new Node(left.right, secret, right));
+
+      return new Node(new Node(left.left, left.secret, left.right.left),
+                      left.right.secret,
+                      new Node(left.right.right, secret, right));
+    }
+
+    if (rightHeight > leftHeight + 1) {
+      if (height(right.right) >= height(right.left))
+        return new Node(new Node(left, secret, right.left), right.secret,
+                        right.right);
+
+      return new Node(new Node(left, secret, right.left.left),
+                      right.left.secret,
+                      new Node(right.left.right, right.secret, right.right));
+    }
+
+    return new Node(left, secret, right);
+  }
+}
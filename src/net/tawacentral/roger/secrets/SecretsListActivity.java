@@ -19,9 +19,9 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
-import javax.crypto.Cipher;
 
 import android.app.AlertDialog;
 import android.app.Dialog;
@@ -69,6 +69,12 @@ public class SecretsListActivity extends ListActivity {
   private static final int DIALOG_DELETE_SECRET = 1;
   private static final int DIALOG_CONFIRM_RESTORE = 2;
   private static final int DIALOG_IMPORT_SUCCESS = 3;
+  private static final int DIALOG_RESTORE_MODE = 4;
+
+  // Choices of the restore mode dialog.
+  private static final int RESTORE_REPLACE = 0;
+  private static final int RESTORE_MERGE_NEWEST = 1;
+  private static final int RESTORE_MERGE_KEEP_BOTH = 2;
 
   private static final String EMPTY_STRING = "";
 
@@ -79,7 +85,7 @@ public class SecretsListActivity extends ListActivity {
   public static final String LOG_TAG = "SecretsListActivity";
 
   public static final String STATE_IS_EDITING = "is_editing";
-  public static final String STATE_EDITING_POSITION = "editing_position";
+  public static final String STATE_EDITING_ID = "editing_id";
   public static final String STATE_EDITING_DESCRIPTION = "editing_description";
   public static final String STATE_EDITING_USERNAME = "editing_username";
   public static final String STATE_EDITING_PASSWORD = "editing_password";
@@ -93,6 +99,7 @@ public class SecretsListActivity extends ListActivity {
   private View root;  // root of the layout for this activity
   private View edit;  // root view for the editing layout
   private File importedFile;  // File that was imported
+  private String restorePoint;  // restore point chosen in the restore dialog
   private boolean isConfigChange;  // being destroyed for config change?
 
   /** Called when the activity is first created. */
@@ -122,15 +129,6 @@ public class SecretsListActivity extends ListActivity {
     setListAdapter(secretsList);
     getListView().setTextFilterEnabled(true);
 
-    // Setup the auto complete adapters for the username and email views.
-    AutoCompleteTextView username = (AutoCompleteTextView)
-        findViewById(R.id.list_username);
-    AutoCompleteTextView email = (AutoCompleteTextView)
-        findViewById(R.id.list_email);
-
-    username.setAdapter(secretsList.getUsernameAutoCompleteAdapter());
-    email.setAdapter(secretsList.getEmailAutoCompleteAdapter());
-
     // The 3d flip animation will be done on the root view of this activity.
     // Also get the edit group of views for use as the second view in the
     // animation.
@@ -145,11 +143,14 @@ public class SecretsListActivity extends ListActivity {
     if (null != state) {
       isEditing = state.getBoolean(STATE_IS_EDITING);
       if (isEditing) {
+        setAutoCompleteAdapters();
         EditText description = (EditText) findViewById(R.id.list_description);
+        EditText username = (EditText) findViewById(R.id.list_username);
         EditText password = (EditText) findViewById(R.id.list_password);
+        EditText email = (EditText) findViewById(R.id.list_email);
         EditText notes = (EditText) findViewById(R.id.list_notes);
 
-        editingPosition = state.getInt(STATE_EDITING_POSITION);
+        editingPosition = getSavedPosition(state, STATE_EDITING_ID);
         description.setText(state.getCharSequence(STATE_EDITING_DESCRIPTION));
         username.setText(state.getCharSequence(STATE_EDITING_USERNAME));
         password.setText(state.getCharSequence(STATE_EDITING_PASSWORD));
@@ -203,6 +204,7 @@ public class SecretsListActivity extends ListActivity {
     if (filter.charAt(0) != SecretsListAdapter.DOT)
       filter = SecretsListAdapter.DOT + filter;
 
+    secretsList.cancelFiltering(filter);
     getListView().setFilterText(filter);
   }
 
@@ -448,24 +450,41 @@ public class SecretsListActivity extends ListActivity {
     }
   }
 
-  /** Restore secrets from the given restore point. */
-  private void restoreSecrets(String rp) {
+  /**
+   * Restore secrets from the given restore point.  The secrets either replace
+   * all the current secrets, or are merged into them.
+   *
+   * @param rp The restore point.
+   * @param mode One of the RESTORE_xxx choices.
+   */
+  private void restoreSecrets(String rp, int mode) {
     // Restore everything to the SD card.
     ArrayList<Secret> secrets = FileUtils.restoreSecrets(this, rp);
-    if (null != secrets) {
+    if (null == secrets) {
+      showToast(R.string.restore_failed);
+      return;
+    }
+
+    if (RESTORE_REPLACE == mode) {
       LoginActivity.restoreSecrets(secrets);
+      secretsList.rebuildIndexes();
       secretsList.notifyDataSetInvalidated();
       setTitle();
       showToast(R.string.restore_succeeded);
-    } else {
-      showToast(R.string.restore_failed);
+      return;
     }
+
+    int conflicts = RESTORE_MERGE_KEEP_BOTH == mode
+        ? SecretsMerge.KEEP_BOTH : SecretsMerge.NEWEST_WINS;
+    int count = secretsList.merge(secrets, conflicts);
+    setTitle();
+    String template = getText(R.string.restore_merged).toString();
+    showToast(MessageFormat.format(template, count));
   }
 
   private void backupSecrets() {
     // Backup everything to the SD card.
-    Cipher cipher = SecurityUtils.getEncryptionCipher();
-    if (FileUtils.backupSecrets(this, cipher, secretsList.getAllSecrets())) {
+    if (FileUtils.backupSecrets(this, secretsList.getAllSecrets())) {
       showToast(R.string.backup_succeeded);
     } else {
       showToast(R.string.error_save_secrets);
@@ -477,10 +496,27 @@ public class SecretsListActivity extends ListActivity {
     public int selected = 0;
     private List<String> restorePoints;
 
-    /** Get an array of choices for the restore dialog. */
+    /**
+     * Get an array of choices for the restore dialog.  Each restore point
+     * that has metadata is described by its number of secrets, its size and
+     * the time of its last change, which only needs a small block of each
+     * file to be read.
+     */
     public CharSequence[] getRestoreChoices() {
       restorePoints = FileUtils.getRestorePoints(SecretsListActivity.this);
-      return restorePoints.toArray(new CharSequence[restorePoints.size()]);
+      List<SecretCodec.Metadata> metadata =
+          FileUtils.getRestorePointMetadata(SecretsListActivity.this,
+                                            restorePoints);
+      String template = getText(R.string.restore_point_preview).toString();
+      CharSequence[] choices = new CharSequence[restorePoints.size()];
+      for (int i = 0; i < choices.length; ++i) {
+        SecretCodec.Metadata m = metadata.get(i);
+        choices[i] = null == m ? restorePoints.get(i)
+            : MessageFormat.format(template, restorePoints.get(i), m.count,
+                                   (m.size + 1023) / 1024,
+                                   new Date(m.lastChanged));
+      }
+      return choices;
     }
 
     public String getSelectedRestorePoint() {
@@ -529,7 +565,8 @@ public class SecretsListActivity extends ListActivity {
             public void onClick(DialogInterface dialog, int which) {
               state.selected = which;
               dialog.dismiss();
-              restoreSecrets(state.getSelectedRestorePoint());
+              restorePoint = state.getSelectedRestorePoint();
+              showDialog(DIALOG_RESTORE_MODE);
             }
           };
 
@@ -542,6 +579,31 @@ public class SecretsListActivity extends ListActivity {
             .create();
         break;
       }
+      case DIALOG_RESTORE_MODE: {
+        DialogInterface.OnClickListener itemListener =
+          new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+              dialog.dismiss();
+              if (null != restorePoint)
+                restoreSecrets(restorePoint, which);
+            }
+          };
+
+        // The order must match the RESTORE_xxx choices.
+        CharSequence[] modes = {
+          getText(R.string.restore_mode_replace),
+          getText(R.string.restore_mode_merge_newest),
+          getText(R.string.restore_mode_merge_keep_both)
+        };
+
+        dialog = new AlertDialog.Builder(this)
+            .setTitle(R.string.dialog_restore_mode_title)
+            .setIcon(android.R.drawable.ic_dialog_alert)
+            .setItems(modes, itemListener)
+            .create();
+        break;
+      }
       case DIALOG_IMPORT_SUCCESS: {
         DialogInterface.OnClickListener listener =
           new DialogInterface.OnClickListener() {
@@ -608,6 +670,19 @@ public class SecretsListActivity extends ListActivity {
                       : getListView().getSelectedItemPosition();
   }
 
+  /**
+   * Get the position of the secret whose id was saved in the given state
+   * under the given key, or AdapterView.INVALID_POSITION if there is none.
+   */
+  private int getSavedPosition(Bundle state, String key) {
+    if (!state.containsKey(key))
+      return AdapterView.INVALID_POSITION;
+
+    Secret secret = secretsList.getSecretById(state.getLong(key));
+    return null == secret ? AdapterView.INVALID_POSITION
+                          : secretsList.getPosition(secret);
+  }
+
   /**
    * Trap the "back" button to simulate going back from the secret edit
    * view to the list view.  Note this needs to be done in key-down and not
@@ -646,7 +721,12 @@ public class SecretsListActivity extends ListActivity {
       EditText email = (EditText) findViewById(R.id.list_email);
       EditText notes = (EditText) findViewById(R.id.list_notes);
 
-      state.putInt(STATE_EDITING_POSITION, editingPosition);
+      // Save the id of the secret rather than its position, since the
+      // position depends on the filter, which is not restored.
+      if (AdapterView.INVALID_POSITION != editingPosition) {
+        state.putLong(STATE_EDITING_ID,
+                      secretsList.getItemId(editingPosition));
+      }
       state.putCharSequence(STATE_EDITING_DESCRIPTION, description.getText());
       state.putCharSequence(STATE_EDITING_USERNAME, username.getText());
       state.putCharSequence(STATE_EDITING_PASSWORD, password.getText());
@@ -675,9 +755,10 @@ public class SecretsListActivity extends ListActivity {
     // unless I use a notification (need to look into that).  Also, because
     // the process hangs around, this thread should continue running until
     // completion even if the user switches to another task/application.
-    List<Secret> secrets = secretsList.getAllSecrets();
-    Cipher cipher = SecurityUtils.getEncryptionCipher();
-    SaveService.execute(this, secrets, cipher);
+    // The save service gets a snapshot of the secrets, so the user can keep
+    // making changes while it is writing.
+    List<Secret> secrets = secretsList.getSnapshot();
+    SaveService.execute(this, secrets);
     super.onPause();
   }
 
@@ -712,6 +793,22 @@ public class SecretsListActivity extends ListActivity {
     super.onDestroy();
   }
 
+  /**
+   * Sets up the auto complete adapters for the username and email views.
+   * The adapters are only built the first time the edit view is shown.
+   */
+  private void setAutoCompleteAdapters() {
+    AutoCompleteTextView username = (AutoCompleteTextView)
+        findViewById(R.id.list_username);
+    if (null != username.getAdapter())
+      return;
+
+    AutoCompleteTextView email = (AutoCompleteTextView)
+        findViewById(R.id.list_email);
+    username.setAdapter(secretsList.getUsernameAutoCompleteAdapter());
+    email.setAdapter(secretsList.getEmailAutoCompleteAdapter());
+  }
+
   /**
    * Set the secret specified by the given position in the list into the
    * edit fields used to modify the secret.  Position 0 means "add secret".
@@ -720,6 +817,7 @@ public class SecretsListActivity extends ListActivity {
    */
   private void SetEditViews(int position) {
     editingPosition = position;
+    setAutoCompleteAdapters();
 
     EditText description = (EditText) findViewById(R.id.list_description);
     EditText username = (EditText) findViewById(R.id.list_username);
@@ -796,7 +894,10 @@ public class SecretsListActivity extends ListActivity {
           note_text.equals(secret.getNote()))
         return;
 
+      // The secret in the list may be in the middle of being saved, so edit a
+      // copy of it instead.
       secretsList.remove(editingPosition);
+      secret = secret.copy();
     }
 
     secret.setDescription(description.getText().toString());
@@ -15,18 +15,25 @@
 package net.tawacentral.roger.secrets;
 
 import android.content.Context;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
 import android.widget.BaseAdapter;
 import android.widget.Filter;
 import android.widget.Filterable;
 import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Maintains a user's list of secrets.  Implements all required interfaces to
@@ -36,8 +43,25 @@ import java.util.TreeSet;
  * @author rogerta
  */
 public class SecretsListAdapter extends BaseAdapter implements Filterable {
+  /** Tag for logging purposes. */
+  public static final String LOG_TAG = "Secrets";
+
   public static final char DOT = '.';
 
+  /** Number of secrets checked by each task of a full text search. */
+  private static final int CHUNK_SIZE = 256;
+
+  /** Maximum number of threads used for full text search. */
+  private static final int MAX_THREADS = 4;
+
+  // Threads used to check the chunks of the secrets for a full text search,
+  // created when first needed.  When they are all busy, the filter thread
+  // checks the chunk itself.
+  private static ThreadPoolExecutor pool;
+
+  /** Number of full text search results kept by the filter. */
+  private static final int MAX_CACHED_RESULTS = 8;
+
   // There are two secrets arrays.  secrets represents the array
   // use to implement the Adapter interface of this class (inherited from
   // BaseAdapter).  allSecrets is the real array that holds the secrets.
@@ -48,18 +72,29 @@ public class SecretsListAdapter extends BaseAdapter implements Filterable {
   // allSecrets will always points to all the secrets.
   //
   // allSecrets is marked as final because its used as a lock for certain
-  // member functions, and we don't ever want the instance to change.
-  private ArrayList<Secret> secrets;
-  private final ArrayList<Secret> allSecrets;
+  // member functions, and we don't ever want the instance to change.  The
+  // filter and the save service never lock it: they work on snapshots of it,
+  // which cost nothing to take.
+  //
+  // Both are sorted trees, so that finding, inserting and removing a secret
+  // take O(log n) whether filtering is being used or not.
+  private SecretsList secrets;
+  private final SecretsList allSecrets;
 
   // These members are used to maintain the auto complete lists for the
-  // username and email fields.  I need to use the tree set because I don't
-  // want to search the ArrayAdapters for existing names before inserting into
-  // them.
-  private TreeSet<String> usernames;
-  private TreeSet<String> emails;
-  private ArrayAdapter<String> usernameAdapter;
-  private ArrayAdapter<String> emailAdapter;
+  // username and email fields.  They are null until the edit view is first
+  // shown, since most of the time the user only looks at the list.
+  private AutoCompleteAdapter usernameAdapter;
+  private AutoCompleteAdapter emailAdapter;
+
+  // Index used for full text search.  It is built in the background by the
+  // first full text search, and kept up to date as secrets are inserted and
+  // removed.
+  private final SearchIndex searchIndex;
+
+  // Incremented each time secrets are inserted, removed or replaced, so that
+  // the filter knows when its cached results are out of date.
+  private volatile int version;
 
   // Cache of objects to use in the various methods.
   private Context context;
@@ -72,42 +107,12 @@ public class SecretsListAdapter extends BaseAdapter implements Filterable {
    * @param context Context of the application, used for getting resources.
    * @param secrets The list of user secrets.  This list cannot be null.
    */
-  SecretsListAdapter(Context context, ArrayList<Secret> secrets) {
+  SecretsListAdapter(Context context, SecretsList secrets) {
     this.context = context;
     inflater = LayoutInflater.from(this.context);
     allSecrets = secrets;
     this.secrets = allSecrets;
-
-    // Fill in the auto complete adapters with the initial data from the
-    // secrets.
-    // TODO(rogerta): would probably be more efficient to use a custom
-    // implementation of ListAdapter+Filterable instead of ArrayAdapter and two
-    // maps, but will use this for now, since I don't expect there to be
-    // hundreds of usernames or emails.
-    usernameAdapter = new ArrayAdapter<String>(context,
-        android.R.layout.simple_dropdown_item_1line);
-    emailAdapter = new ArrayAdapter<String>(context,
-        android.R.layout.simple_dropdown_item_1line);
-    usernames = new TreeSet<String>();
-    emails = new TreeSet<String>();
-
-    usernameAdapter.setNotifyOnChange(false);
-    emailAdapter.setNotifyOnChange(false);
-
-    for (int i = 0; i < allSecrets.size(); ++i) {
-      Secret secret = allSecrets.get(i);
-      usernames.add(secret.getUsername());
-      emails.add(secret.getEmail());
-    }
-
-    for (String username : usernames)
-      usernameAdapter.add(username);
-
-    for (String email : emails)
-      emailAdapter.add(email);
-
-    usernameAdapter.setNotifyOnChange(true);
-    emailAdapter.setNotifyOnChange(true);
+    searchIndex = new SearchIndex(allSecrets);
   }
 
   @Override
@@ -134,10 +139,9 @@ public class SecretsListAdapter extends BaseAdapter implements Filterable {
 
   @Override
   public long getItemId(int position) {
-    // TODO(rogerta): should probably try to come up with a stable Id, but for
-    // now not important.  I suspect this might be an issue for very large data
-    // sets.  Hopefully a user does not have that many secrets...
-    return position;
+    // Each secret has an id that is stored in the secrets file, so it stays
+    // the same when secrets are added or removed, and across restarts.
+    return secrets.get(position).getId();
   }
 
   @Override
@@ -178,7 +182,7 @@ public class SecretsListAdapter extends BaseAdapter implements Filterable {
 
   @Override
   public boolean hasStableIds() {
-    return false;
+    return true;
   }
 
   @Override
@@ -194,6 +198,42 @@ public class SecretsListAdapter extends BaseAdapter implements Filterable {
     return filter;
   }
 
+  /**
+   * Cancels the filtering that is running, unless it is for the given text.
+   * The filter runs one text at a time, so this should be called before
+   * filtering with a new text, to avoid waiting for a search whose results
+   * would be thrown away.
+   *
+   * @param text The text about to be filtered.
+   */
+  public void cancelFiltering(CharSequence text) {
+    if (null != filter)
+      filter.cancel(null == text ? null : text.toString());
+  }
+
+  /** A text being filtered, whose search can be cancelled. */
+  private static final class Query {
+    final String text;
+    volatile boolean isCancelled;
+
+    Query(String text) {
+      this.text = text;
+    }
+  }
+
+  /** The secrets found by a full text search. */
+  private static final class CachedResult {
+    final String text;
+    final int version;
+    final ArrayList<Secret> matches;
+
+    CachedResult(String text, int version, ArrayList<Secret> matches) {
+      this.text = text;
+      this.version = version;
+      this.matches = matches;
+    }
+  }
+
   /**
    * Concrete subclass of Filter to allow filtering the list of secrets by
    * typing the first letters of the secret's description.
@@ -202,18 +242,36 @@ public class SecretsListAdapter extends BaseAdapter implements Filterable {
    *
    */
   private class SecretsFilter extends Filter {
+    // The results of the last full text searches, each one for a text that
+    // starts with the text of the one below it.  Typing one more character
+    // only checks the secrets found for the text before it, and deleting one
+    // finds the results for the shorter text here.  Only used by the filter
+    // thread.
+    private final ArrayList<CachedResult> cache = new ArrayList<CachedResult>();
+
+    // The query being filtered, if any.
+    private volatile Query running;
+
+    /** Cancels the running query, unless it is for the given text. */
+    void cancel(String text) {
+      Query query = running;
+      if (null != query && !(null == text ? null == query.text
+                                          : text.equals(query.text))) {
+        query.isCancelled = true;
+      }
+    }
+
     @Override
-    // TODO(rogerta): the clone() method does not support generics.
-    @SuppressWarnings("unchecked")
     protected FilterResults performFiltering(CharSequence prefix) {
       // NOTE: this function is *always* called from a background thread, and
       // not the UI thread.
 
+      long start = System.currentTimeMillis();
       boolean isFullTextSearch = false;
       FilterResults results = new FilterResults();
-      String prefixString = null == prefix ? null
-                                           : prefix.toString().toLowerCase();
-      ArrayList<Secret> secrets;
+      String prefixString = null == prefix ? null : prefix.toString();
+      Query query = new Query(prefixString);
+      running = query;
 
       // if the prefix starts with a dot, then this is interpreted as a full
       // text search.  This means that a given secret matches the "prefix",
@@ -236,51 +294,161 @@ public class SecretsListAdapter extends BaseAdapter implements Filterable {
       }
 
       if (null != prefixString && prefixString.length() > 0) {
-        // Do a shallow copy of the secrets list.  This works because all the
-        // members that we will access here are immutable.  If this ever changes
-        // then the locking strategy will need to get smarter.
-        synchronized (allSecrets) {
-          secrets = (ArrayList<Secret>) allSecrets.clone();
-        }
-
-        // We loop backwards because we may be removing elements from the array
-        // in the loop, and we don't want to disturb the index when this
-        // happens.
-        for (int i = secrets.size() - 1; i >= 0; --i) {
-          Secret secret = secrets.get(i);
-          if (isFullTextSearch) {
-            if (!secret.getDescription().toLowerCase().contains(prefixString) &&
-                !secret.getEmail().toLowerCase().contains(prefixString) &&
-                !secret.getUsername().toLowerCase().contains(prefixString) &&
-                !secret.getNote().toLowerCase().contains(prefixString))
-              secrets.remove(i);
-          } else {
-            String description = secret.getDescription().toLowerCase();
-            if (!description.startsWith(prefixString)) {
-              secrets.remove(i);
-            }
-          }
+        SecretsList secrets;
+        if (isFullTextSearch) {
+          ArrayList<Secret> matches = findText(prefixString.toLowerCase(),
+                                               query);
+          secrets = null == matches ? null : new SecretsList(matches);
+        } else {
+          // The list is sorted by description, so the secrets that match are
+          // all next to each other.  They are found by searching the tree,
+          // without looking at the other secrets or copying anything.
+          secrets = allSecrets.startingWith(prefixString);
         }
 
         results.values = secrets;
-        results.count = secrets.size();
+        results.count = null == secrets ? 0 : secrets.size();
       } else {
         // No prefix specified, so show entire list.
-        synchronized (allSecrets) {
-          results.values = allSecrets;
-          results.count = allSecrets.size();
-        }
+        results.values = allSecrets;
+        results.count = allSecrets.size();
       }
 
+      // The results of a cancelled query are discarded, since the filter is
+      // about to run with a newer text.
+      running = null;
+      if (query.isCancelled)
+        results.values = null;
+
+      Log.d(LOG_TAG, "SecretsFilter: " +
+          (isFullTextSearch ? "full text" : "prefix") + " search of " +
+          (null == prefixString ? 0 : prefixString.length()) + " chars, " +
+          (null == results.values ? "discarded" : results.count + " found") +
+          " in " + (System.currentTimeMillis() - start) + "ms");
       return results;
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Returns the secrets that contain the given text, sorted by description.
+     *
+     * @param text The text to find, in lower case.
+     * @param query The query being filtered.
+     * @return The secrets found, or null if the query was cancelled before
+     *     the search was done.
+     */
+    private ArrayList<Secret> findText(String text, Query query) {
+      // Drop the cached results that are not for a prefix of the text, or
+      // that were found before the secrets changed.
+      int current = version;
+      while (!cache.isEmpty()) {
+        CachedResult last = cache.get(cache.size() - 1);
+        if (last.version == current && text.startsWith(last.text))
+          break;
+        cache.remove(cache.size() - 1);
+      }
+
+      ArrayList<Secret> matches;
+      if (!cache.isEmpty()) {
+        CachedResult last = cache.get(cache.size() - 1);
+        if (last.text.length() == text.length())
+          return last.matches;
+
+        // Any secret that contains the text also contains its prefix.
+        matches = scan(last.matches, text, query);
+      } else {
+        // Look up the search index, which only checks the few secrets that
+        // hold all the trigrams of the text.  If the index is not built yet,
+        // or the text is too short, walk a snapshot of the secrets list
+        // instead.  This works because secrets in the list are never
+        // modified, except for their access log, so no lock is needed.
+        matches = searchIndex.find(text);
+        if (null == matches) {
+          matches = scan(allSecrets.snapshot(), text, query);
+        } else {
+          Collections.sort(matches, Secret.DESCRIPTION_ORDER);
+        }
+      }
+
+      if (null == matches)
+        return null;
+
+      if (cache.size() == MAX_CACHED_RESULTS)
+        cache.remove(0);
+      cache.add(new CachedResult(text, current, matches));
+      return matches;
+    }
+
+    /**
+     * Returns the secrets that contain the given text, in the same order.
+     * The secrets are split in chunks that are checked in parallel, and the
+     * search stops between chunks if the query is cancelled.
+     *
+     * @param secrets The secrets to check.
+     * @param text The text to find, in lower case.
+     * @param query The query being filtered.
+     * @return The secrets found, or null if the query was cancelled before
+     *     the search was done.
+     */
+    private ArrayList<Secret> scan(List<Secret> secrets, final String text,
+                                   final Query query) {
+      int size = secrets.size();
+      ArrayList<Future<ArrayList<Secret>>> chunks =
+          new ArrayList<Future<ArrayList<Secret>>>();
+      for (int from = 0; from < size && !query.isCancelled;
+           from += CHUNK_SIZE) {
+        final List<Secret> chunk =
+            secrets.subList(from, Math.min(size, from + CHUNK_SIZE));
+        chunks.add(getPool().submit(new Callable<ArrayList<Secret>>() {
+          @Override
+          public ArrayList<Secret> call() {
+            if (query.isCancelled)
+              return null;
+
+            ArrayList<Secret> found = new ArrayList<Secret>();
+            for (Secret secret : chunk) {
+              if (SearchIndex.matches(secret, text))
+                found.add(secret);
+            }
+            return found;
+          }
+        }));
+      }
+
+      ArrayList<Secret> matches = new ArrayList<Secret>();
+      try {
+        for (Future<ArrayList<Secret>> chunk : chunks) {
+          ArrayList<Secret> found = query.isCancelled ? null : chunk.get();
+          if (null == found) {
+            matches = null;
+            break;
+          }
+          matches.addAll(found);
+        }
+      } catch (InterruptedException ex) {
+        matches = null;
+      } catch (ExecutionException ex) {
+        throw new RuntimeException(ex.getCause());
+      }
+
+      if (query.isCancelled)
+        matches = null;
+
+      if (null == matches) {
+        for (Future<ArrayList<Secret>> chunk : chunks) {
+          chunk.cancel(false);
+        }
+      }
+      return matches;
+    }
+
     @Override
     protected void publishResults(CharSequence prefix,
                                   FilterResults results) {
       // NOTE: this function is *always* called from the UI thread.
-      secrets = (ArrayList<Secret>) results.values;
+      if (null == results.values)
+        return;
+
+      secrets = (SecretsList) results.values;
       notifyDataSetChanged();
     }
   }
@@ -323,18 +491,40 @@ public class SecretsListAdapter extends BaseAdapter implements Filterable {
     return allSecrets;
   }
 
+  /**
+   * Get an immutable snapshot of all the secrets, as they are now.  This takes
+   * constant time, and later changes to the list do not affect the snapshot,
+   * so it can be saved from a background thread.
+   */
+  public List<Secret> getSnapshot() {
+    return allSecrets.snapshot();
+  }
+
+  /**
+   * Get the secret with the given id, as returned by getItemId(), or null if
+   * there is none.  Any filter applied to this adapter is ignored.
+   */
+  public Secret getSecretById(long id) {
+    return allSecrets.getById(id);
+  }
+
+  /**
+   * Get the position of the given secret in the list, or -1 if it is not in
+   * the list, for example because it does not match the current filter.
+   */
+  public int getPosition(Secret secret) {
+    return secrets.indexOf(secret);
+  }
+
   /** Remove the secret at the given position. */
   public Secret remove(int position) {
-    // NOTE: i will not remove usernames and emails from the auto complete
-    // adapters.  For one, it would be expensive, and two, I actually think
-    // this behaviour is good.  The adapters will be reset the next time the
-    // list activity is restarted.
-
     // The position argument is relevant to the secrets array, but also need
     // to remove the corresponding element from the allSecrets array.  I
     // will remove from secrets first, then use the object found to remove
     // it from allSecrets.  Note that this only need to be done if filtering
-    // is currently enabled, i.e. when secrets != allSecrets.
+    // is currently enabled, i.e. when secrets != allSecrets.  Finding the
+    // secret in allSecrets searches the tree for its collation key, and does
+    // not compare every secret.
     Secret secret;
     synchronized (allSecrets) {
       secret = secrets.remove(position);
@@ -344,6 +534,17 @@ public class SecretsListAdapter extends BaseAdapter implements Filterable {
       }
     }
 
+    ++version;
+    ChangeTracker.markRemoved(secret);
+    searchIndex.remove(secret);
+
+    // Remove the username and email from the auto complete adapters, unless
+    // other secrets still use them.
+    if (null != usernameAdapter) {
+      usernameAdapter.remove(secret.getUsername(), secret.getId());
+      emailAdapter.remove(secret.getEmail(), secret.getId());
+    }
+
     return secret;
   }
 
@@ -357,49 +558,143 @@ public class SecretsListAdapter extends BaseAdapter implements Filterable {
   public int insert(Secret secret) {
     int i;
 
-    // We need to synch our access to allSecrets since it also accessed from
-    // a background thread when doing filtering.  This is a shallow lock, in
-    // the sense that access to the array elements is not synch'ed.  That's
-    // OK for this purpose though.
+    // The lock keeps the two lists consistent with each other.  Background
+    // threads only ever look at snapshots of allSecrets, so they never see
+    // the list half way through.
     synchronized (allSecrets) {
-      for (i = 0; i < allSecrets.size(); ++i) {
-        Secret s = allSecrets.get(i);
-        if (secret.getDescription().compareToIgnoreCase(s.getDescription()) < 0)
-          break;
-      }
-      allSecrets.add(i, secret);
+      i = allSecrets.insert(secret);
+      if (secrets != allSecrets)
+        i = secrets.insert(secret);
+    }
 
-      if (secrets != allSecrets) {
-        for (i = 0; i < secrets.size(); ++i) {
-          Secret s = secrets.get(i);
-          if (secret.getDescription().compareToIgnoreCase(s.getDescription()) < 0)
-            break;
-        }
-        secrets.add(i, secret);
+    ++version;
+    ChangeTracker.markAdded(secret);
+    searchIndex.add(secret);
+
+    // Add the username and email to the auto complete adapters.
+    if (null != usernameAdapter) {
+      long time = secret.getLastChanged();
+      usernameAdapter.add(secret.getUsername(), secret.getId(), time);
+      emailAdapter.add(secret.getEmail(), secret.getId(), time);
+    }
+
+    return i;
+  }
+
+  /**
+   * Merges the secrets of a restore point into the list, as a single change.
+   * The list is replaced in one step, and any filter is cleared, so the UI
+   * is refreshed only once however many secrets are merged.
+   *
+   * @param restored The secrets of the restore point.  They must have ids.
+   * @param conflicts How to merge secrets that changed, one of the
+   *     SecretsMerge constants.
+   * @return The number of secrets that were added or replaced.
+   */
+  public int merge(List<Secret> restored, int conflicts) {
+    int count = 0;
+    synchronized (allSecrets) {
+      List<Secret> current = allSecrets.snapshot();
+      SecretsMerge merge = SecretsMerge.compute(current, restored);
+      if (!merge.isEmpty()) {
+        ArrayList<Secret> merged = new ArrayList<Secret>(current.size() +
+            merge.added.size() + merge.changed.size());
+        count = merge.apply(current, conflicts, merged);
+        if (0 != count)
+          allSecrets.setAll(merged);
       }
+
+      secrets = allSecrets;
     }
 
-    // Add the username and email to the auto complete adapters.
-    if (!usernames.contains(secret.getUsername())) {
-      usernames.add(secret.getUsername());
-      usernameAdapter.add(secret.getUsername());
+    if (0 != count) {
+      ++version;
+      ChangeTracker.markChanged();
+      searchIndex.invalidate();
+      fillAutoComplete();
+    }
+
+    notifyDataSetChanged();
+    return count;
+  }
+
+  /** Gets the pool of threads used for full text search. */
+  private static synchronized ThreadPoolExecutor getPool() {
+    if (null == pool) {
+      ThreadFactory factory = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "SecretsFilter");
+          thread.setDaemon(true);
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        }
+      };
+      int threads = Math.min(MAX_THREADS,
+                             Runtime.getRuntime().availableProcessors());
+      pool = new ThreadPoolExecutor(0, threads, 30, TimeUnit.SECONDS,
+          new SynchronousQueue<Runnable>(), factory,
+          new ThreadPoolExecutor.CallerRunsPolicy());
     }
+    return pool;
+  }
+
+  /**
+   * Builds the search index and the auto complete lists again.  Must be
+   * called after all the secrets are replaced without going through this
+   * adapter.
+   */
+  public void rebuildIndexes() {
+    ++version;
+    searchIndex.invalidate();
+    fillAutoComplete();
+  }
 
-    if (!emails.contains(secret.getEmail())) {
-      emails.add(secret.getEmail());
-      emailAdapter.add(secret.getEmail());
+  /**
+   * Fills the auto complete adapters with the usernames and emails of all
+   * the secrets, if they were created.
+   */
+  private void fillAutoComplete() {
+    if (null == usernameAdapter)
+      return;
+
+    List<Secret> snapshot = allSecrets.snapshot();
+    String[] usernames = new String[snapshot.size()];
+    String[] emails = new String[usernames.length];
+    long[] ids = new long[usernames.length];
+    long[] times = new long[usernames.length];
+    for (int i = 0; i < usernames.length; ++i) {
+      Secret secret = snapshot.get(i);
+      usernames[i] = secret.getUsername();
+      emails[i] = secret.getEmail();
+      ids[i] = secret.getId();
+      times[i] = secret.getLastChanged();
     }
+    usernameAdapter.load(usernames, ids, times);
+    emailAdapter.load(emails, ids, times);
+  }
 
-    return i;
+  /**
+   * Creates the auto complete adapters the first time they are needed, since
+   * this looks at every secret.
+   */
+  private void createAutoComplete() {
+    if (null == usernameAdapter) {
+      usernameAdapter = new AutoCompleteAdapter(context);
+      emailAdapter = new AutoCompleteAdapter(context);
+      fillAutoComplete();
+    }
   }
 
   /** Gets the auto complete adapter used for completing usernames. */
-  public ArrayAdapter<String> getUsernameAutoCompleteAdapter() {
+  public AutoCompleteAdapter getUsernameAutoCompleteAdapter() {
+    createAutoComplete();
     return usernameAdapter;
   }
 
   /** Gets the auto complete adapter used for completing emails. */
-  public ArrayAdapter<String> getEmailAutoCompleteAdapter() {
+  public AutoCompleteAdapter getEmailAutoCompleteAdapter() {
+    createAutoComplete();
     return emailAdapter;
   }
 
@@ -0,0 +1,178 @@
+// Copyright (c) 2026, The Secrets for Android Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The differences between the current secrets and the secrets of a restore
+ * point, used to merge the restore point into the current secrets instead of
+ * replacing them.
+ *
+ * Secrets are matched by id with a hash join: the current secrets are put in
+ * a hash map, and each secret of the restore point is looked up in it.  A
+ * secret is considered changed if its description, username, email, time of
+ * last change, password or note differ.  The password and the note are
+ * compared last, and are only decrypted when their encrypted bytes differ.
+ * A secret that did not change is written back with the same encrypted
+ * bytes, so this is rare.
+ *
+ * Building the differences takes time proportional to the number of secrets.
+ * Applying them sorts only the secrets that are inserted, and then merges
+ * them with the current secrets, which are already sorted.
+ */
+class SecretsMerge {
+  /** On conflict, keep the version of the secret that changed last. */
+  public static final int NEWEST_WINS = 0;
+
+  /**
+   * On conflict, keep both versions of the secret.  The version from the
+   * restore point gets a new id.
+   */
+  public static final int KEEP_BOTH = 1;
+
+  /** Secrets of the restore point that are not in the current secrets. */
+  public final ArrayList<Secret> added = new ArrayList<Secret>();
+
+  /**
+   * Secrets of the restore point that are also in the current secrets, but
+   * that differ from them.
+   */
+  public final ArrayList<Secret> changed = new ArrayList<Secret>();
+
+  /**
+   * Current secrets that are not in the restore point, because they were
+   * added or deleted since.  They are kept by the merge.
+   */
+  public final ArrayList<Secret> deleted = new ArrayList<Secret>();
+
+  private SecretsMerge() {
+  }
+
+  /**
+   * Finds the differences between the current secrets and the secrets of a
+   * restore point.
+   *
+   * @param current The current secrets.  Should be a snapshot.
+   * @param restored The secrets of the restore point.  They must have ids.
+   */
+  public static SecretsMerge compute(List<Secret> current,
+                                     List<Secret> restored) {
+    SecretsMerge merge = new SecretsMerge();
+    HashMap<Long, Secret> index =
+        new HashMap<Long, Secret>(current.size() * 4 / 3 + 1);
+    for (Secret secret : current) {
+      index.put(secret.getId(), secret);
+    }
+
+    // A matched secret is left in the map with a null value, so that a
+    // second secret with the same id in the restore point is ignored.
+    for (Secret secret : restored) {
+      Long id = secret.getId();
+      if (!index.containsKey(id)) {
+        merge.added.add(secret);
+        index.put(id, null);
+        continue;
+      }
+
+      Secret existing = index.put(id, null);
+      if (null != existing && isChanged(existing, secret))
+        merge.changed.add(secret);
+    }
+
+    for (Secret secret : current) {
+      if (null != index.get(secret.getId()))
+        merge.deleted.add(secret);
+    }
+
+    return merge;
+  }
+
+  /** Are there any differences to merge? */
+  public boolean isEmpty() {
+    return added.isEmpty() && changed.isEmpty();
+  }
+
+  /**
+   * Merges the differences into the current secrets, sorted by description.
+   * The secrets that are not in the restore point are kept.
+   *
+   * @param current The same secrets as given to compute().
+   * @param conflicts How to merge changed secrets: NEWEST_WINS or KEEP_BOTH.
+   *     If the body of a secret of the restore point cannot be decrypted to
+   *     give it a new id, KEEP_BOTH keeps only the current secret.
+   * @param result The list to add the merged secrets to.
+   * @return The number of secrets of the restore point that were added to
+   *     the result, either as new secrets or in place of current ones.
+   */
+  public int apply(List<Secret> current, int conflicts,
+                   List<Secret> result) {
+    HashMap<Long, Secret> restored =
+        new HashMap<Long, Secret>(changed.size() * 4 / 3 + 1);
+    for (Secret secret : changed) {
+      restored.put(secret.getId(), secret);
+    }
+
+    ArrayList<Secret> kept = new ArrayList<Secret>(current.size());
+    ArrayList<Secret> inserted = new ArrayList<Secret>(added);
+    for (Secret secret : current) {
+      Secret other = restored.get(secret.getId());
+      if (null == other) {
+        kept.add(secret);
+      } else if (KEEP_BOTH == conflicts) {
+        kept.add(secret);
+        Secret copy = other.copyWithNewId();
+        if (null != copy)
+          inserted.add(copy);
+      } else if (other.getLastChanged() > secret.getLastChanged()) {
+        // The description may have changed, so the secret is inserted again
+        // at its new position.
+        inserted.add(other);
+      } else {
+        kept.add(secret);
+      }
+    }
+
+    Collections.sort(inserted, Secret.DESCRIPTION_ORDER);
+    int i = 0;
+    int j = 0;
+    while (i < kept.size() && j < inserted.size()) {
+      if (Secret.DESCRIPTION_ORDER.compare(inserted.get(j),
+                                           kept.get(i)) < 0) {
+        result.add(inserted.get(j++));
+      } else {
+        result.add(kept.get(i++));
+      }
+    }
+    result.addAll(kept.subList(i, kept.size()));
+    result.addAll(inserted.subList(j, inserted.size()));
+    return inserted.size();
+  }
+
+  private static boolean isChanged(Secret s1, Secret s2) {
+    return s1.getLastChanged() != s2.getLastChanged() ||
+        !equal(s1.getDescription(), s2.getDescription()) ||
+        !equal(s1.getUsername(), s2.getUsername()) ||
+        !equal(s1.getEmail(), s2.getEmail()) ||
+        !s1.hasSameBody(s2);
+  }
+
+  private static boolean equal(String s1, String s2) {
+    return null == s1 ? null == s2 : s1.equals(s2);
+  }
+}
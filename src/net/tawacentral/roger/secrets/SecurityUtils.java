@@ -14,13 +14,19 @@
 
 package net.tawacentral.roger.secrets;
 
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.security.spec.AlgorithmParameterSpec;
 
 import javax.crypto.Cipher;
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.PBEParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 import android.util.Log;
 
@@ -65,9 +71,67 @@ public class SecurityUtils {
     }
   }
 
+  // Kinds of data sealed with seal() and sealBlob().  The kind is covered by
+  // the authentication tag, so that data of one kind cannot be passed off as
+  // data of another kind.
+  public static final int SEAL_BODY = 1;
+  public static final int SEAL_CHUNK = 2;
+  public static final int SEAL_BLOB = 3;
+  public static final int SEAL_METADATA = 4;
+  public static final int SEAL_JOURNAL = 5;
+
+  /** Length of the id at the start of the result of sealBlob(). */
+  public static final int BLOB_ID_LENGTH = 32;
+
+  private static final String SEAL_CIPHER = "AES/CBC/PKCS5Padding";
+  private static final String SEAL_MAC = "HmacSHA256";
+  private static final int SEAL_IV_LENGTH = 16;
+  private static final int SEAL_TAG_LENGTH = 32;
+
+  private static final SecureRandom random = new SecureRandom();
+
   private static Cipher encryptCipher;
   private static Cipher decryptCipher;
 
+  /**
+   * The keys used by seal() and unseal().  Instances are immutable, and are
+   * opaque outside of this class.
+   */
+  public static final class SealKeys {
+    final SecretKey cipherKey;
+    final SecretKey macKey;
+
+    SealKeys(byte[] cipherKey, byte[] macKey) {
+      this.cipherKey = new SecretKeySpec(cipherKey, "AES");
+      this.macKey = new SecretKeySpec(macKey, SEAL_MAC);
+    }
+  }
+
+  /**
+   * A cipher and a mac initialized with the seal keys.  Neither is thread
+   * safe, so each thread gets its own.
+   */
+  private static final class SealEngine {
+    final SealKeys keys;
+    final Cipher cipher;
+    final Mac mac;
+
+    SealEngine(SealKeys keys) throws GeneralSecurityException {
+      this.keys = keys;
+      cipher = Cipher.getInstance(SEAL_CIPHER);
+      mac = Mac.getInstance(SEAL_MAC);
+      mac.init(keys.macKey);
+    }
+  }
+
+  private static volatile SealKeys sealKeys;
+
+  // Keys that replace sealKeys in the current thread, if any.
+  private static final ThreadLocal<SealKeys> threadSealKeys =
+      new ThreadLocal<SealKeys>();
+  private static final ThreadLocal<SealEngine> sealEngines =
+      new ThreadLocal<SealEngine>();
+
   /**
    * Get the cipher used to encrypt data using the password given to the
    * createCiphers() function.
@@ -113,21 +177,241 @@ public class SecurityUtils {
       decryptCipher = Cipher.getInstance(KEY_FACTORY);
       decryptCipher.init(Cipher.DECRYPT_MODE, key, aps);
 
+      sealKeys = new SealKeys(deriveKey("seal cipher"), deriveKey("seal mac"));
       succeeded = true;
     } catch (Exception ex) {
       Log.d(LOG_TAG, "createCiphers", ex);
       encryptCipher = null;
       decryptCipher = null;
+      sealKeys = null;
     }
 
     timer.logElapsed("Time to create cihpers: ");
     return succeeded;
   }
 
+  /**
+   * Derive a 256 bit key from the password, for use by seal().  The provider
+   * does not give access to the key behind the PBE ciphers, so the key is
+   * derived by hashing the encryption of a label instead.  Since the PBE
+   * ciphers always use the same IV, this gives the same key for the same
+   * password every time.
+   */
+  private static byte[] deriveKey(String label) throws Exception {
+    byte[] encrypted = encryptCipher.doFinal(label.getBytes("UTF-8"));
+    return MessageDigest.getInstance("SHA-256").digest(encrypted);
+  }
+
+  /**
+   * Set the keys used by seal() directly, without a password.  This is for
+   * unit tests, since the PBE ciphers need the Bouncy Castle provider, which
+   * is only found on the phone.
+   */
+  static void setSealKeys(byte[] cipherKey, byte[] macKey) {
+    sealKeys = new SealKeys(cipherKey, macKey);
+  }
+
+  /**
+   * Get the keys that seal() uses in the current thread.  These are the keys
+   * set with useSealKeys() in this thread, if any, or else the keys created
+   * by createCiphers().
+   *
+   * @return The keys, or null if there are none.
+   */
+  public static SealKeys getSealKeys() {
+    SealKeys keys = threadSealKeys.get();
+    return null != keys ? keys : sealKeys;
+  }
+
+  /**
+   * Make seal() and unseal() use the given keys in the current thread,
+   * whatever createCiphers() and clearCiphers() do in the meantime.  This
+   * lets background work finish with the keys it started with.
+   *
+   * @param keys The keys returned by getSealKeys(), or null to go back to
+   *     the keys created by createCiphers().
+   */
+  public static void useSealKeys(SealKeys keys) {
+    if (null == keys)
+      threadSealKeys.remove();
+    else
+      threadSealKeys.set(keys);
+  }
+
   /** Clear the ciphers from memory. */
   public static void clearCiphers() {
     decryptCipher = null;
     encryptCipher = null;
+    sealKeys = null;
+  }
+
+  /**
+   * Encrypt and authenticate a piece of data on its own, such as the body of
+   * one secret or one chunk of a file.  Each call uses a new random IV, and
+   * appends an HMAC-SHA256 tag computed over the kind of data, the context,
+   * the IV and the encrypted data.  The result is:
+   *
+   *   - IV: 16 bytes
+   *   - encrypted data, AES-256 in CBC mode with PKCS5 padding
+   *   - tag: 32 bytes
+   *
+   * This method can be called from any thread.
+   *
+   * @param kind SEAL_BODY, SEAL_CHUNK, SEAL_METADATA or SEAL_JOURNAL.
+   * @param context A value that binds the data to its place, such as the id
+   *     of a secret, so that sealed data cannot be moved around.
+   * @param data The data to encrypt.
+   * @param offset Offset of the first byte to encrypt.
+   * @param length Number of bytes to encrypt.
+   * @return The sealed data, to be decrypted with unseal().
+   */
+  public static byte[] seal(int kind, long context, byte[] data, int offset,
+                            int length) throws GeneralSecurityException {
+    SealEngine engine = getSealEngine();
+    byte[] iv = new byte[SEAL_IV_LENGTH];
+    synchronized (random) {
+      random.nextBytes(iv);
+    }
+
+    engine.cipher.init(Cipher.ENCRYPT_MODE, engine.keys.cipherKey,
+                       new IvParameterSpec(iv));
+    byte[] sealed = new byte[getSealedLength(length)];
+    System.arraycopy(iv, 0, sealed, 0, SEAL_IV_LENGTH);
+    int encrypted = engine.cipher.doFinal(data, offset, length, sealed,
+                                          SEAL_IV_LENGTH);
+    int tagOffset = SEAL_IV_LENGTH + encrypted;
+    if (tagOffset + SEAL_TAG_LENGTH != sealed.length)
+      throw new GeneralSecurityException("Unexpected encrypted length");
+
+    byte[] tag = computeTag(engine, kind, context, sealed, tagOffset);
+    System.arraycopy(tag, 0, sealed, tagOffset, SEAL_TAG_LENGTH);
+    return sealed;
+  }
+
+  /** Same as seal() above, for a complete array. */
+  public static byte[] seal(int kind, long context, byte[] data)
+      throws GeneralSecurityException {
+    return seal(kind, context, data, 0, data.length);
+  }
+
+  /**
+   * Verify and decrypt data that was encrypted with seal().  This method can
+   * be called from any thread.
+   *
+   * @param kind The kind of data given to seal().
+   * @param context The context given to seal().
+   * @param sealed The data returned by seal().
+   * @return The decrypted data.
+   * @throws GeneralSecurityException If the tag does not match, because the
+   *     data was modified or because the password is not valid.
+   */
+  public static byte[] unseal(int kind, long context, byte[] sealed)
+      throws GeneralSecurityException {
+    int tagOffset = sealed.length - SEAL_TAG_LENGTH;
+    if (tagOffset <= SEAL_IV_LENGTH)
+      throw new GeneralSecurityException("Sealed data is too short");
+
+    SealEngine engine = getSealEngine();
+    byte[] expected = computeTag(engine, kind, context, sealed, tagOffset);
+    byte[] tag = new byte[SEAL_TAG_LENGTH];
+    System.arraycopy(sealed, tagOffset, tag, 0, SEAL_TAG_LENGTH);
+    if (!MessageDigest.isEqual(expected, tag))
+      throw new GeneralSecurityException("Bad authentication tag");
+
+    engine.cipher.init(Cipher.DECRYPT_MODE, engine.keys.cipherKey,
+                       new IvParameterSpec(sealed, 0, SEAL_IV_LENGTH));
+    return engine.cipher.doFinal(sealed, SEAL_IV_LENGTH,
+                                 tagOffset - SEAL_IV_LENGTH);
+  }
+
+  /**
+   * Encrypt and authenticate a piece of data so that the same data always
+   * gives the same result.  This allows storing identical data only once.
+   * The HMAC-SHA256 tag is computed over the kind of data and the clear data,
+   * and its first 16 bytes are used as the IV, as in the SIV construction.
+   * The tag comes first and is used as the id of the data.  Equal data can
+   * be detected, but nothing else about it is revealed.  The result is:
+   *
+   *   - tag: 32 bytes
+   *   - encrypted data, AES-256 in CBC mode with PKCS5 padding
+   *
+   * This method can be called from any thread.
+   *
+   * @param kind SEAL_BLOB.
+   * @param data The data to encrypt.
+   * @return The sealed data, to be decrypted with unsealBlob().
+   */
+  public static byte[] sealBlob(int kind, byte[] data)
+      throws GeneralSecurityException {
+    SealEngine engine = getSealEngine();
+    byte[] tag = computeTag(engine, kind, 0, data, data.length);
+    engine.cipher.init(Cipher.ENCRYPT_MODE, engine.keys.cipherKey,
+                       new IvParameterSpec(tag, 0, SEAL_IV_LENGTH));
+    byte[] encrypted = engine.cipher.doFinal(data);
+    byte[] sealed = new byte[SEAL_TAG_LENGTH + encrypted.length];
+    System.arraycopy(tag, 0, sealed, 0, SEAL_TAG_LENGTH);
+    System.arraycopy(encrypted, 0, sealed, SEAL_TAG_LENGTH, encrypted.length);
+    return sealed;
+  }
+
+  /**
+   * Decrypt and verify data that was encrypted with sealBlob().  This method
+   * can be called from any thread.
+   *
+   * @param kind The kind of data given to sealBlob().
+   * @param sealed The data returned by sealBlob().
+   * @return The decrypted data.
+   * @throws GeneralSecurityException If the tag does not match, because the
+   *     data was modified or because the password is not valid.
+   */
+  public static byte[] unsealBlob(int kind, byte[] sealed)
+      throws GeneralSecurityException {
+    if (sealed.length <= SEAL_TAG_LENGTH)
+      throw new GeneralSecurityException("Sealed data is too short");
+
+    SealEngine engine = getSealEngine();
+    engine.cipher.init(Cipher.DECRYPT_MODE, engine.keys.cipherKey,
+                       new IvParameterSpec(sealed, 0, SEAL_IV_LENGTH));
+    byte[] data = engine.cipher.doFinal(sealed, SEAL_TAG_LENGTH,
+                                        sealed.length - SEAL_TAG_LENGTH);
+    byte[] expected = computeTag(engine, kind, 0, data, data.length);
+    byte[] tag = new byte[SEAL_TAG_LENGTH];
+    System.arraycopy(sealed, 0, tag, 0, SEAL_TAG_LENGTH);
+    if (!MessageDigest.isEqual(expected, tag))
+      throw new GeneralSecurityException("Bad authentication tag");
+
+    return data;
+  }
+
+  /** Returns the length of the result of seal() for the given length. */
+  public static int getSealedLength(int length) {
+    int blocks = length / SEAL_IV_LENGTH + 1;
+    return SEAL_IV_LENGTH + blocks * SEAL_IV_LENGTH + SEAL_TAG_LENGTH;
+  }
+
+  /** Returns the seal engine of the current thread for the current keys. */
+  private static SealEngine getSealEngine() throws GeneralSecurityException {
+    SealKeys keys = getSealKeys();
+    if (null == keys)
+      throw new GeneralSecurityException("No keys");
+
+    SealEngine engine = sealEngines.get();
+    if (null == engine || engine.keys != keys) {
+      engine = new SealEngine(keys);
+      sealEngines.set(engine);
+    }
+    return engine;
+  }
+
+  private static byte[] computeTag(SealEngine engine, int kind, long context,
+                                   byte[] sealed, int length) {
+    Mac mac = engine.mac;
+    mac.update((byte) kind);
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      mac.update((byte) (context >>> shift));
+    }
+    mac.update(sealed, 0, length);
+    return mac.doFinal();
   }
   
   /** This method returns all available services types. */
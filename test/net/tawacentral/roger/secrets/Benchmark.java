@@ -0,0 +1,49 @@
+// Copyright (c) 2026, The Secrets for Android Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+/**
+ * Helpers shared by the benchmarks.  Benchmarks are not unit tests: each one
+ * has a main() method and is run by hand, with the test classes and the app
+ * classes on the class path, for example:
+ *
+ *   java -Xmx1g net.tawacentral.roger.secrets.SecretCodecBenchmark
+ *
+ * The numbers are for a desktop JVM, so only compare them with each other.
+ */
+abstract class Benchmark {
+  /** Number of times each task is run.  The fastest run is reported. */
+  static final int RUNS = 5;
+
+  /** A piece of work to time. */
+  interface Task {
+    void run() throws Exception;
+  }
+
+  /**
+   * Runs the task RUNS times, after a warm up run, and returns the time of
+   * the fastest run, in milliseconds.
+   */
+  static double time(Task task) throws Exception {
+    task.run();
+    long best = Long.MAX_VALUE;
+    for (int i = 0; i < RUNS; ++i) {
+      long start = System.nanoTime();
+      task.run();
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    return best / 1e6;
+  }
+}
@@ -0,0 +1,206 @@
+// Copyright (c) 2026, The Secrets for Android Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import static net.tawacentral.roger.secrets.TestUtils.secret;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+/** Tests for BlobStore. */
+public class BlobStoreTest extends TestCase {
+  private File dir;
+  private File file;
+  private ArrayList<byte[]> blobs;
+
+  @Override
+  protected void setUp() throws Exception {
+    TestUtils.setSealKeys();
+    dir = File.createTempFile("blobs", null);
+    dir.delete();
+    dir.mkdir();
+    file = new File(dir, BlobStore.FILE_NAME);
+
+    blobs = new ArrayList<byte[]>();
+    for (int i = 0; i < 3; ++i) {
+      blobs.add(blob(100 + i, i));
+    }
+    new BlobStore(dir).putAll(blobs);
+  }
+
+  @Override
+  protected void tearDown() {
+    file.delete();
+    dir.delete();
+  }
+
+  public void testGet() throws Exception {
+    BlobStore store = new BlobStore(dir);
+    for (byte[] blob : blobs) {
+      assertTrue(Arrays.equals(blob, store.get(BlobStore.getId(blob))));
+    }
+  }
+
+  public void testPutAllSkipsStoredBlobs() throws Exception {
+    // The blobs already in the file are found by reading it.
+    long length = file.length();
+    byte[] added = blob(50, 7);
+    BlobStore store = new BlobStore(dir);
+    assertEquals(4 + added.length,
+                 store.putAll(Arrays.asList(blobs.get(1), added)));
+    assertEquals(length + 4 + added.length, file.length());
+
+    // And the ones added since then are remembered.
+    assertEquals(0, store.putAll(Arrays.asList(added, blobs.get(0))));
+    assertEquals(length + 4 + added.length, file.length());
+    assertTrue(Arrays.equals(added, store.get(BlobStore.getId(added))));
+  }
+
+  public void testRetainAllCompacts() throws Exception {
+    ArrayList<byte[]> big = new ArrayList<byte[]>();
+    for (int i = 0; i < 3; ++i) {
+      big.add(blob(40000, 10 + i));
+    }
+    BlobStore store = new BlobStore(dir);
+    store.putAll(big);
+    HashSet<String> kept = ids(blobs.get(1), big.get(2));
+    assertEquals(8 + blobs.get(1).length + big.get(2).length,
+                 store.getSize(kept));
+
+    assertTrue(store.retainAll(kept));
+    assertEquals(store.getSize(kept), file.length());
+    for (BlobStore reopened : Arrays.asList(store, new BlobStore(dir))) {
+      assertTrue(Arrays.equals(blobs.get(1),
+                               reopened.get(BlobStore.getId(blobs.get(1)))));
+      assertTrue(Arrays.equals(big.get(2),
+                               reopened.get(BlobStore.getId(big.get(2)))));
+      try {
+        reopened.get(BlobStore.getId(big.get(0)));
+        fail();
+      } catch (IOException expected) {
+      }
+    }
+  }
+
+  public void testRetainAllKeepsSmallFile() throws Exception {
+    // Removing all but one blob does not free enough bytes to rewrite the
+    // file.
+    long length = file.length();
+    BlobStore store = new BlobStore(dir);
+    assertFalse(store.retainAll(ids(blobs.get(0))));
+    assertEquals(length, file.length());
+    assertTrue(Arrays.equals(blobs.get(0),
+                             store.get(BlobStore.getId(blobs.get(0)))));
+  }
+
+  public void testConsecutiveRestorePointsShareBlobs() throws Exception {
+    ArrayList<Secret> secrets = new ArrayList<Secret>();
+    for (int i = 0; i < 10; ++i) {
+      secrets.add(secret(i, "s" + i, "pw " + i));
+    }
+    BlobStore store = new BlobStore(dir);
+    byte[] first = writeShared(store, secrets);
+
+    // Only the secret that changed adds a blob.
+    secrets.set(3, secret(3, "s3", "changed"));
+    long length = file.length();
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    long added = SecretCodec.writeSharedSecrets(output, secrets, 2000, store);
+    byte[] second = output.toByteArray();
+    assertEquals(file.length() - length, added);
+
+    HashSet<String> firstIds = readBlobIds(first);
+    HashSet<String> secondIds = readBlobIds(second);
+    assertEquals(10, secondIds.size());
+    secondIds.removeAll(firstIds);
+    assertEquals(1, secondIds.size());
+    assertEquals(added, store.getSize(secondIds));
+
+    // Both restore points can be read back.
+    assertEquals("pw 3", readShared(store, first).get(3).getPassword(false));
+    assertEquals("changed",
+                 readShared(store, second).get(3).getPassword(false));
+  }
+
+  public void testDamagedLengthIsNotCutOff() throws Exception {
+    // A bad length in the middle of the file does not make the blobs after
+    // it look like an incomplete tail.
+    long length = file.length();
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.seek(4 + blobs.get(0).length);
+      raf.writeInt(1);
+    } finally {
+      raf.close();
+    }
+
+    BlobStore store = new BlobStore(dir);
+    try {
+      store.get(BlobStore.getId(blobs.get(0)));
+      fail();
+    } catch (IOException expected) {
+    }
+    assertEquals(length, file.length());
+  }
+
+  /** Returns a blob sealing the given number of bytes of the given value. */
+  private static byte[] blob(int length, int value) throws Exception {
+    byte[] data = new byte[length];
+    Arrays.fill(data, (byte) value);
+    return SecurityUtils.sealBlob(SecurityUtils.SEAL_BLOB, data);
+  }
+
+  private static HashSet<String> ids(byte[]... blobs) {
+    HashSet<String> ids = new HashSet<String>();
+    for (byte[] blob : blobs) {
+      ids.add(BlobStore.getId(blob));
+    }
+    return ids;
+  }
+
+  private static byte[] writeShared(BlobStore store, List<Secret> secrets)
+      throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    SecretCodec.writeSharedSecrets(output, secrets, 1000, store);
+    return output.toByteArray();
+  }
+
+  private static HashSet<String> readBlobIds(byte[] file) throws Exception {
+    HashSet<String> ids = new HashSet<String>();
+    InputStream input = new ByteArrayInputStream(file);
+    assertTrue(SecretCodec.readBlobIds(input, SecretCodec.readHeader(input),
+                                       ids));
+    return ids;
+  }
+
+  private static List<Secret> readShared(BlobStore store, byte[] file)
+      throws Exception {
+    ArrayList<Secret> secrets = new ArrayList<Secret>();
+    InputStream input = new ByteArrayInputStream(file);
+    SecretCodec.readSecrets(input, SecretCodec.readHeader(input), store,
+                            secrets);
+    return secrets;
+  }
+}
@@ -0,0 +1,196 @@
+// Copyright (c) 2026, The Secrets for Android Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+
+/** Tests for ChunkedCipher. */
+public class ChunkedCipherTest extends TestCase {
+  private static final int HEADER = 0x0507;
+  private static final int CHUNK = ChunkedCipher.CHUNK_SIZE;
+
+  // Length of the chunk size and data length before the first chunk.
+  private static final int LENGTHS = 8;
+
+  @Override
+  protected void setUp() {
+    TestUtils.setSealKeys();
+  }
+
+  public void testRoundTrip() throws Exception {
+    int[] lengths = {0, 1, 15, 16, CHUNK - 1, CHUNK, CHUNK + 1, 3 * CHUNK + 5};
+    for (int length : lengths) {
+      byte[] data = getData(length);
+      byte[] read = read(write(data), HEADER);
+      assertTrue("length " + length, Arrays.equals(data, read));
+    }
+  }
+
+  public void testStreamIsLeftAfterTheData() throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ChunkedCipher.write(output, getData(CHUNK + 1), HEADER);
+    output.write(42);
+
+    ByteArrayInputStream input =
+        new ByteArrayInputStream(output.toByteArray());
+    ChunkedCipher.read(input, HEADER);
+    assertEquals(42, input.read());
+  }
+
+  public void testTruncated() throws Exception {
+    byte[] written = write(getData(2 * CHUNK + 100));
+    int[] cuts = {0, 4, LENGTHS, LENGTHS + 10, written.length / 2,
+                  written.length - 1};
+    for (int cut : cuts) {
+      byte[] truncated = new byte[cut];
+      System.arraycopy(written, 0, truncated, 0, cut);
+      try {
+        read(truncated, HEADER);
+        fail("cut at " + cut);
+      } catch (IOException expected) {
+      }
+    }
+  }
+
+  public void testLastChunkDropped() throws Exception {
+    // Dropping the last chunk and fixing the length to match still fails,
+    // since the new last chunk was not sealed as the last one.
+    byte[] written = write(getData(2 * CHUNK));
+    int sealed = SecurityUtils.getSealedLength(CHUNK);
+    byte[] dropped = new byte[LENGTHS + sealed];
+    System.arraycopy(written, 0, dropped, 0, dropped.length);
+    setInt(dropped, 4, CHUNK);
+    try {
+      read(dropped, HEADER);
+      fail();
+    } catch (GeneralSecurityException expected) {
+    }
+  }
+
+  public void testFirstChunkTampered() throws Exception {
+    byte[] written = write(getData(2 * CHUNK));
+    written[LENGTHS + 20] ^= 1;
+    try {
+      read(written, HEADER);
+      fail();
+    } catch (GeneralSecurityException expected) {
+    }
+  }
+
+  public void testOtherChunkTampered() throws Exception {
+    byte[] written = write(getData(3 * CHUNK));
+    written[written.length - 1] ^= 1;
+    try {
+      read(written, HEADER);
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  public void testChunksSwapped() throws Exception {
+    byte[] written = write(getData(3 * CHUNK));
+    int sealed = SecurityUtils.getSealedLength(CHUNK);
+    byte[] swapped = written.clone();
+    System.arraycopy(written, LENGTHS + sealed, swapped,
+                     LENGTHS + 2 * sealed, sealed);
+    System.arraycopy(written, LENGTHS + 2 * sealed, swapped,
+                     LENGTHS + sealed, sealed);
+    try {
+      read(swapped, HEADER);
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  public void testLengthChanged() throws Exception {
+    // The new length needs the same number of bytes, so that only the tags
+    // can tell.
+    byte[] written = write(getData(100));
+    setInt(written, 4, 99);
+    try {
+      read(written, HEADER);
+      fail();
+    } catch (GeneralSecurityException expected) {
+    }
+  }
+
+  public void testHeaderChanged() throws Exception {
+    byte[] written = write(getData(100));
+    try {
+      read(written, HEADER ^ 1);
+      fail();
+    } catch (GeneralSecurityException expected) {
+    }
+  }
+
+  public void testBadChunkSize() throws Exception {
+    byte[] written = write(getData(100));
+    setInt(written, 0, CHUNK / 2);
+    try {
+      read(written, HEADER);
+      fail();
+    } catch (IOException expected) {
+      assertEquals("Bad chunk size", expected.getMessage());
+    }
+  }
+
+  public void testBadLength() throws Exception {
+    byte[] written = write(getData(100));
+    setInt(written, 4, Integer.MAX_VALUE);
+    try {
+      read(written, HEADER);
+      fail();
+    } catch (IOException expected) {
+      assertEquals("Bad data length", expected.getMessage());
+    }
+
+    setInt(written, 4, -1);
+    try {
+      read(written, HEADER);
+      fail();
+    } catch (IOException expected) {
+      assertEquals("Bad data length", expected.getMessage());
+    }
+  }
+
+  private static byte[] getData(int length) {
+    byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    return data;
+  }
+
+  private static byte[] write(byte[] data) throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ChunkedCipher.write(output, data, HEADER);
+    return output.toByteArray();
+  }
+
+  private static byte[] read(byte[] written, int header) throws Exception {
+    return ChunkedCipher.read(new ByteArrayInputStream(written), header);
+  }
+
+  private static void setInt(byte[] bytes, int offset, int value) {
+    for (int i = 0; i < 4; ++i) {
+      bytes[offset + i] = (byte) (value >>> (24 - 8 * i));
+    }
+  }
+}
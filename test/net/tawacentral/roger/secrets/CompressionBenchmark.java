@@ -0,0 +1,138 @@
+// Copyright (c) 2026, The Secrets for Android Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+/**
+ * Shows when compressing the body of a secret pays for itself.  For notes of
+ * growing length, it compares the bodies written by SecretCodec.encodeBody(),
+ * which are compressed when this makes them smaller, with the same bodies
+ * stored as is.  It prints the bytes written, and the time to seal and
+ * unseal 1000 bodies.  See Benchmark for how to run it.
+ *
+ * The notes look like the ones FileUtils.importSecrets() writes: a few words
+ * followed by the category and the website.
+ */
+public class CompressionBenchmark extends Benchmark {
+  private static final int[] NOTE_LENGTHS = {0, 40, 150, 500, 2000, 8000};
+  private static final int COUNT = 1000;
+  private static final String[] WORDS = {
+    "account", "pin", "security", "question", "mother", "maiden", "name",
+    "the", "is", "my", "first", "pet", "recovery", "code", "customer",
+    "number"
+  };
+
+  public static void main(String[] args) throws Exception {
+    TestUtils.setSealKeys();
+    System.out.println("   note      stored  compressed       seal (us)" +
+                       "     unseal (us)");
+    Random random = new Random(3);
+    for (int length : NOTE_LENGTHS) {
+      String[] notes = new String[COUNT];
+      for (int i = 0; i < COUNT; ++i) {
+        notes[i] = getNote(random, length);
+      }
+      run(length, notes);
+    }
+  }
+
+  private static void run(int length, final String[] notes)
+      throws Exception {
+    final byte[][] stored = new byte[COUNT][];
+    final byte[][] compressed = new byte[COUNT][];
+    double sealStored = time(new Task() {
+      @Override
+      public void run() throws Exception {
+        for (int i = 0; i < COUNT; ++i) {
+          stored[i] = SecurityUtils.seal(SecurityUtils.SEAL_BODY, i,
+                                         encodeStored("pw" + i, notes[i]));
+        }
+      }
+    });
+    double sealCompressed = time(new Task() {
+      @Override
+      public void run() throws Exception {
+        for (int i = 0; i < COUNT; ++i) {
+          compressed[i] = SecurityUtils.seal(SecurityUtils.SEAL_BODY, i,
+              SecretCodec.encodeBody("pw" + i, notes[i]));
+        }
+      }
+    });
+    double unsealStored = time(new Task() {
+      @Override
+      public void run() throws Exception {
+        unseal(stored);
+      }
+    });
+    double unsealCompressed = time(new Task() {
+      @Override
+      public void run() throws Exception {
+        unseal(compressed);
+      }
+    });
+
+    long storedBytes = 0;
+    long compressedBytes = 0;
+    for (int i = 0; i < COUNT; ++i) {
+      storedBytes += stored[i].length;
+      compressedBytes += compressed[i].length;
+    }
+    System.out.println(String.format(
+        "%7d %11d %11d %7.1f -> %5.1f %7.1f -> %5.1f", length, storedBytes,
+        compressedBytes, sealStored * 1000 / COUNT,
+        sealCompressed * 1000 / COUNT, unsealStored * 1000 / COUNT,
+        unsealCompressed * 1000 / COUNT));
+  }
+
+  /** Encodes a body without compressing it. */
+  private static byte[] encodeStored(String password, String note)
+      throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    SecretCodec.Writer writer = new SecretCodec.Writer(bytes);
+    writer.writeByte(0);
+    writer.writeString(password);
+    writer.writeString(note);
+    writer.flush();
+    return bytes.toByteArray();
+  }
+
+  private static void unseal(byte[][] bodies) throws Exception {
+    for (int i = 0; i < COUNT; ++i) {
+      SecretCodec.decodeBody(
+          SecurityUtils.unseal(SecurityUtils.SEAL_BODY, i, bodies[i]));
+    }
+  }
+
+  /** Returns a note of about the given length, like an imported one. */
+  private static String getNote(Random random, int length) {
+    if (0 == length)
+      return "";
+
+    StringBuilder note = new StringBuilder();
+    while (note.length() < length) {
+      note.append(WORDS[random.nextInt(WORDS.length)]);
+      note.append(0 == random.nextInt(8)
+          ? ". " + random.nextInt(100000) + "\n" : " ");
+    }
+    note.setLength(length);
+    note.append("\nCategory: ").append(random.nextBoolean() ? "Web"
+                                                         : "Finance");
+    note.append("\nWebsite: http://www.site").append(random.nextInt(1000))
+        .append(".com/\n");
+    return note.toString();
+  }
+}
@@ -0,0 +1,142 @@
+// Copyright (c) 2026, The Secrets for Android Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Tests for RetentionPolicy. */
+public class RetentionPolicyTest extends TestCase {
+  private static final long HOUR_MS = 60 * 60 * 1000;
+  private static final long BIG = Long.MAX_VALUE / 2;
+
+  public void testEmpty() {
+    List<RestorePointManifest.Entry> points =
+        new ArrayList<RestorePointManifest.Entry>();
+    assertTrue(RetentionPolicy.DEFAULT.select(points, 10).isEmpty());
+  }
+
+  public void testBurstKeepsNewestOfTheHour() {
+    // All in the same hour, newest first.
+    List<RestorePointManifest.Entry> points =
+        points(100, 10 * HOUR_MS + 50, 10 * HOUR_MS + 40, 10 * HOUR_MS + 30,
+               10 * HOUR_MS + 20);
+    RetentionPolicy policy = new RetentionPolicy(24, 7, 4, BIG);
+    assertEquals(names(3, 2, 1), names(policy.select(points, 10)));
+  }
+
+  public void testOnePerPeriod() {
+    List<RestorePointManifest.Entry> points =
+        points(100, 10 * HOUR_MS + 50, 10 * HOUR_MS + 20, 9 * HOUR_MS,
+               8 * HOUR_MS, 7 * HOUR_MS);
+    RetentionPolicy policy = new RetentionPolicy(2, 0, 0, BIG);
+    assertEquals(names(4, 3, 1), names(policy.select(points, 10)));
+  }
+
+  public void testOlderPointsAreSparser() {
+    // One restore point every hour for three days.  The last two hours are
+    // kept, and the newest restore point of each of the last two days.
+    List<RestorePointManifest.Entry> points =
+        new ArrayList<RestorePointManifest.Entry>();
+    for (int i = 0; i < 72; ++i) {
+      points.add(entry(i, (71 - i) * HOUR_MS, 100));
+    }
+    RetentionPolicy policy = new RetentionPolicy(2, 2, 0, BIG);
+    List<RestorePointManifest.Entry> deleted = policy.select(points, 100);
+    assertEquals(69, deleted.size());
+    for (RestorePointManifest.Entry point : deleted) {
+      assertFalse(point.name, point.name.equals("0") ||
+          point.name.equals("1") || point.name.equals("24"));
+    }
+    assertEquals("71", deleted.get(0).name);
+  }
+
+  public void testBudget() {
+    List<RestorePointManifest.Entry> points =
+        points(100, 5 * HOUR_MS, 4 * HOUR_MS, 3 * HOUR_MS, 2 * HOUR_MS,
+               HOUR_MS);
+    RetentionPolicy policy = new RetentionPolicy(5, 0, 0, 250);
+    assertEquals(names(4, 3, 2), names(policy.select(points, 10)));
+  }
+
+  public void testBudgetCountsBlobs() {
+    // The restore points in shared form are small, but the blobs that only
+    // they use are not.
+    List<RestorePointManifest.Entry> points =
+        new ArrayList<RestorePointManifest.Entry>();
+    points.add(entry(0, 4 * HOUR_MS, 10, 200));
+    points.add(entry(1, 3 * HOUR_MS, 10, 20));
+    points.add(entry(2, 2 * HOUR_MS, 10, 20));
+    points.add(entry(3, HOUR_MS, 10, 100));
+    RetentionPolicy policy = new RetentionPolicy(5, 0, 0, 300);
+    assertEquals(names(3), names(policy.select(points, 10)));
+  }
+
+  public void testNewestIsAlwaysKept() {
+    List<RestorePointManifest.Entry> points =
+        points(1000, 3 * HOUR_MS, 2 * HOUR_MS, HOUR_MS);
+    RetentionPolicy policy = new RetentionPolicy(5, 0, 0, 10);
+    assertEquals(names(2, 1), names(policy.select(points, 10)));
+  }
+
+  public void testMaxCount() {
+    List<RestorePointManifest.Entry> points =
+        points(100, 40, 30, 20, 10, 0);
+    RetentionPolicy policy = new RetentionPolicy(1, 0, 0, BIG);
+    assertEquals(names(4, 3), names(policy.select(points, 2)));
+    assertEquals(names(4, 3, 2, 1), names(policy.select(points, 10)));
+  }
+
+  /** Returns entries with the given times, named after their position. */
+  private static List<RestorePointManifest.Entry> points(long size,
+                                                         long... times) {
+    List<RestorePointManifest.Entry> points =
+        new ArrayList<RestorePointManifest.Entry>();
+    for (int i = 0; i < times.length; ++i) {
+      points.add(entry(i, times[i], size));
+    }
+    return points;
+  }
+
+  private static RestorePointManifest.Entry entry(int i, long time,
+                                                  long size) {
+    return entry(i, time, size, 0);
+  }
+
+  private static RestorePointManifest.Entry entry(int i, long time,
+                                                  long size, long blobSize) {
+    return new RestorePointManifest.Entry(String.valueOf(i), time, size, 1,
+                                          -1, 0 != blobSize, blobSize);
+  }
+
+  private static List<String> names(int... positions) {
+    String[] names = new String[positions.length];
+    for (int i = 0; i < positions.length; ++i) {
+      names[i] = String.valueOf(positions[i]);
+    }
+    return Arrays.asList(names);
+  }
+
+  private static List<String> names(List<RestorePointManifest.Entry> points) {
+    String[] names = new String[points.size()];
+    for (int i = 0; i < names.length; ++i) {
+      names[i] = points.get(i).name;
+    }
+    return Arrays.asList(names);
+  }
+}
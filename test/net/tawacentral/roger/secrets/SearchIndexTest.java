@@ -0,0 +1,227 @@
+// Copyright (c) 2026, The Secrets for Android Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import static net.tawacentral.roger.secrets.TestUtils.secret;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+/**
+ * Tests for SearchIndex.  The builds are queued and run by the test, so that
+ * changes can be made while a build is in progress.
+ */
+public class SearchIndexTest extends TestCase {
+  private static final String[] WORDS = {
+    "bank", "ban", "mail", "gmail", "home", "hom", "work", "pin", "aaa",
+    "aaaa", "caf\u00e9", "ma\u00efl"
+  };
+
+  private SecretsList list;
+  private SearchIndex index;
+  private ArrayList<Runnable> builds;
+  private Random random;
+
+  @Override
+  protected void setUp() {
+    list = new SecretsList();
+    builds = new ArrayList<Runnable>();
+    index = new SearchIndex(list, new Executor() {
+      @Override
+      public void execute(Runnable build) {
+        builds.add(build);
+      }
+    });
+    random = new Random(5);
+  }
+
+  public void testFindMatchesScan() {
+    for (int i = 0; i < 200; ++i) {
+      list.insert(randomSecret(i));
+    }
+    build();
+    assertFinds();
+
+    // Changes made once the index is built.
+    for (int i = 0; i < 300; ++i) {
+      if (random.nextBoolean() && list.size() > 0) {
+        index.remove(list.remove(random.nextInt(list.size())));
+      } else {
+        // Sometimes a new version of a secret in the list.
+        long id = 200 + i;
+        if (random.nextBoolean() && list.size() > 0)
+          id = list.remove(random.nextInt(list.size())).getId();
+        Secret secret = randomSecret(id);
+        list.insert(secret);
+        index.add(secret);
+      }
+    }
+    assertFinds();
+  }
+
+  public void testShortTextIsNotLookedUp() {
+    list.insert(secret(1, "bank"));
+    build();
+    assertNull(index.find("ba"));
+    assertEquals(1, index.find("ban").size());
+  }
+
+  public void testChangesDuringBuild() {
+    Secret kept = secret(1, "bank");
+    Secret removed = secret(2, "bank");
+    Secret changed = secret(3, "bank");
+    Secret readded = secret(4, "bank");
+    list.insert(kept);
+    list.insert(removed);
+    list.insert(changed);
+    list.insert(readded);
+    assertNull(index.find("bank"));
+    assertEquals(1, builds.size());
+
+    // The build has a snapshot of the list, and has not started yet.
+    list.remove(list.indexOf(removed));
+    index.remove(removed);
+    Secret newer = secret(3, "home");
+    list.set(list.indexOf(changed), newer);
+    index.remove(changed);
+    index.add(newer);
+    index.remove(readded);
+    index.add(readded);
+    Secret added = secret(5, "bank");
+    list.insert(added);
+    index.add(added);
+    assertNull(index.find("bank"));
+
+    builds.remove(0).run();
+    assertSecrets(index.find("bank"), kept, readded, added);
+    assertSecrets(index.find("home"), newer);
+    assertFinds();
+
+    // The ids removed during the build are forgotten once it is done.
+    index.add(removed);
+    assertSecrets(index.find("bank"), kept, removed, readded, added);
+  }
+
+  public void testRebuildAfterManyRemoves() {
+    for (int i = 0; i < 600; ++i) {
+      list.insert(secret(i, "secret " + i));
+    }
+    build();
+
+    // Once more than half of the secrets are removed, the index is dropped.
+    int removed = 0;
+    while (removed <= 300) {
+      assertNotNull(index.find("secret"));
+      assertTrue(builds.isEmpty());
+      index.remove(list.remove(random.nextInt(list.size())));
+      ++removed;
+    }
+    assertNull(index.find("secret"));
+    assertEquals(1, builds.size());
+
+    builds.remove(0).run();
+    assertEquals(list.size(), index.find("secret").size());
+    assertFinds();
+  }
+
+  public void testLongIntMap() {
+    // Few keys in a small table, so that removing a key often has to move
+    // the keys after it back.  Key 0 is stored apart.
+    SearchIndex.LongIntMap map = new SearchIndex.LongIntMap();
+    HashMap<Long, Integer> expected = new HashMap<Long, Integer>();
+    for (int i = 0; i < 20000; ++i) {
+      long key = random.nextInt(24);
+      if (random.nextInt(3) == 0) {
+        Integer value = expected.remove(key);
+        assertEquals(null == value ? -1 : value, map.remove(key));
+      } else {
+        int value = random.nextInt(1000);
+        expected.put(key, value);
+        map.put(key, value);
+      }
+
+      for (long k = 0; k < 24; ++k) {
+        Integer value = expected.get(k);
+        assertEquals(null == value ? -1 : value, map.get(k, -1));
+        assertEquals(null != value, map.containsKey(k));
+      }
+    }
+
+    map.clear();
+    for (long k = 0; k < 24; ++k) {
+      assertFalse(map.containsKey(k));
+    }
+  }
+
+  /** Starts the build of the index and runs it. */
+  private void build() {
+    assertNull(index.find("xyz"));
+    assertEquals(1, builds.size());
+    builds.remove(0).run();
+  }
+
+  /** Checks find() against a scan of the list, for many texts. */
+  private void assertFinds() {
+    HashSet<String> texts = new HashSet<String>();
+    for (String word : WORDS) {
+      texts.add(word);
+      texts.add(word.substring(1));
+      texts.add(word + " ");
+    }
+    texts.add("zzz");
+    texts.add("1 b");
+    texts.add("\0use");
+
+    for (String text : texts) {
+      if (text.length() < 3)
+        continue;
+
+      ArrayList<Secret> expected = new ArrayList<Secret>();
+      for (Secret secret : list) {
+        if (SearchIndex.matches(secret, text))
+          expected.add(secret);
+      }
+      assertSecrets(index.find(text),
+                    expected.toArray(new Secret[expected.size()]));
+    }
+  }
+
+  private static void assertSecrets(List<Secret> found, Secret... secrets) {
+    assertNotNull(found);
+    HashSet<Secret> expected = new HashSet<Secret>();
+    for (Secret secret : secrets) {
+      expected.add(secret);
+    }
+    assertEquals(expected, new HashSet<Secret>(found));
+    assertEquals(expected.size(), found.size());
+  }
+
+  private Secret randomSecret(long id) {
+    StringBuilder note = new StringBuilder();
+    for (int i = random.nextInt(4); i > 0; --i) {
+      note.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+    }
+    return secret(id, WORDS[random.nextInt(WORDS.length)] + " " + id,
+                  WORDS[random.nextInt(WORDS.length)], "pw",
+                  WORDS[random.nextInt(WORDS.length)] + ".com",
+                  note.toString(), 100);
+  }
+}
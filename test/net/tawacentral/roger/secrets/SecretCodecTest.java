@@ -0,0 +1,182 @@
+// Copyright (c) 2026, The Secrets for Android Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Tests for SecretCodec. */
+public class SecretCodecTest extends TestCase {
+  private ArrayList<Secret> secrets;
+  private long now;
+
+  @Override
+  protected void setUp() {
+    TestUtils.setSealKeys();
+    now = System.currentTimeMillis();
+
+    StringBuilder note = new StringBuilder();
+    for (int i = 0; i < 50; ++i) {
+      note.append("Website: http://www.example.com/\n");
+    }
+
+    secrets = new ArrayList<Secret>();
+    secrets.add(secret(1, "bank", "me", "pw", "me@gmail.com", "note"));
+    secrets.add(secret(-2, "caf\u00e9 \u20ac \ud83d\udd11", "\u00fc", "",
+                       null, null));
+    secrets.add(secret(Long.MAX_VALUE, null, null, "pw 3", "", "x"));
+    secrets.add(secret(4, "long note", "u", "p", "e", note.toString()));
+  }
+
+  public void testCurrentFormat() throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    SecretCodec.writeSecrets(output, secrets);
+    byte[] file = output.toByteArray();
+
+    InputStream input = new ByteArrayInputStream(file);
+    assertEquals(SecretCodec.VERSION, SecretCodec.readHeader(input));
+    ArrayList<Secret> read = new ArrayList<Secret>();
+    SecretCodec.readSecrets(input, SecretCodec.VERSION, null, read);
+    assertSecrets(read, true);
+    assertEquals(-1, input.read());
+
+    SecretCodec.Metadata metadata =
+        SecretCodec.readMetadata(new ByteArrayInputStream(file));
+    assertEquals(secrets.size(), metadata.count);
+    assertEquals(now - 1000, metadata.lastChanged);
+  }
+
+  public void testManySecrets() throws Exception {
+    // The index is compressed and spans several chunks.
+    ArrayList<Secret> many = new ArrayList<Secret>();
+    for (int i = 0; i < 5000; ++i) {
+      many.add(secret(i, "secret " + i, "user", "pw " + i, "e", "n"));
+    }
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    SecretCodec.writeSecrets(output, many);
+    InputStream input = new ByteArrayInputStream(output.toByteArray());
+    ArrayList<Secret> read = new ArrayList<Secret>();
+    SecretCodec.readSecrets(input, SecretCodec.readHeader(input), null, read);
+    assertEquals(many.size(), read.size());
+    for (int i = 0; i < many.size(); i += 499) {
+      assertEquals("secret " + i, read.get(i).getDescription());
+      assertEquals("pw " + i, read.get(i).getPassword(false));
+    }
+  }
+
+  public void testSharedForm() throws Exception {
+    File dir = File.createTempFile("blobs", null);
+    dir.delete();
+    dir.mkdir();
+    try {
+      BlobStore blobs = new BlobStore(dir);
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      SecretCodec.writeSharedSecrets(output, secrets, 1000, blobs);
+
+      InputStream input = new ByteArrayInputStream(output.toByteArray());
+      ArrayList<Secret> read = new ArrayList<Secret>();
+      SecretCodec.readSecrets(input, SecretCodec.readHeader(input),
+                              blobs, read);
+      assertSecrets(read, true);
+    } finally {
+      new File(dir, BlobStore.FILE_NAME).delete();
+      dir.delete();
+    }
+  }
+
+  public void testStrings() throws Exception {
+    String[] strings = {null, "", "a", "\u00e9", "\u20ac", "\ud83d\udd11",
+                        "\ud83d", "x\udd11y"};
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    SecretCodec.Writer writer = new SecretCodec.Writer(bytes);
+    for (String s : strings) {
+      writer.writeString(s);
+    }
+    writer.flush();
+
+    // Unpaired surrogates are not valid UTF-8, so they are only checked for
+    // not breaking the strings that follow them.
+    SecretCodec.Reader reader =
+        new SecretCodec.Reader(new ByteArrayInputStream(bytes.toByteArray()));
+    for (String s : strings) {
+      String read = reader.readString();
+      if (null == s || s.equals(new String(s.getBytes("UTF-8"), "UTF-8")))
+        assertEquals(s, read);
+      else
+        assertEquals(s.length(), read.length());
+    }
+  }
+
+  public void testVarints() throws Exception {
+    long[] values = {0, 1, 127, 128, 300, Integer.MAX_VALUE, Long.MAX_VALUE,
+                     -1};
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    SecretCodec.Writer writer = new SecretCodec.Writer(bytes);
+    for (long value : values) {
+      writer.writeVarint(value);
+      writer.writeLong(value);
+    }
+    writer.flush();
+
+    SecretCodec.Reader reader =
+        new SecretCodec.Reader(new ByteArrayInputStream(bytes.toByteArray()));
+    for (long value : values) {
+      assertEquals(value, reader.readVarint());
+      assertEquals(value, reader.readLong());
+    }
+  }
+
+  private void assertSecrets(List<Secret> read, boolean bodies) {
+    assertEquals(secrets.size(), read.size());
+    for (int i = 0; i < read.size(); ++i) {
+      Secret expected = secrets.get(i);
+      Secret secret = read.get(i);
+      assertEquals(expected.getId(), secret.getId());
+      assertEquals(expected.getDescription(), secret.getDescription());
+      assertEquals(expected.getUsername(), secret.getUsername());
+      assertEquals(expected.getEmail(), secret.getEmail());
+      if (bodies) {
+        assertEquals(expected.getPassword(false), secret.getPassword(false));
+        assertEquals(expected.getNote(), secret.getNote());
+      }
+
+      List<Secret.LogEntry> expectedLog = expected.getAccessLog();
+      List<Secret.LogEntry> log = secret.getAccessLog();
+      assertEquals(expectedLog.size(), log.size());
+      for (int j = 0; j < log.size(); ++j) {
+        assertEquals(expectedLog.get(j).getType(), log.get(j).getType());
+        assertEquals(expectedLog.get(j).getTime(), log.get(j).getTime());
+      }
+    }
+  }
+
+  /**
+   * Returns a secret viewed twice since it was created.  The last view is
+   * recent, so that getting the password does not add another one.
+   */
+  private Secret secret(long id, String description, String username,
+                        String password, String email, String note) {
+    return TestUtils.secret(id, description, username, password, email, note,
+                            now, now - 100, now - 1000);
+  }
+}
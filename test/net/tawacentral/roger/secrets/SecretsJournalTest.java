@@ -0,0 +1,197 @@
+// Copyright (c) 2026, The Secrets for Android Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import static net.tawacentral.roger.secrets.TestUtils.assertDescriptions;
+import static net.tawacentral.roger.secrets.TestUtils.list;
+import static net.tawacentral.roger.secrets.TestUtils.secret;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/** Tests for SecretsJournal. */
+public class SecretsJournalTest extends TestCase {
+  private File file;
+  private SecretsJournal journal;
+
+  @Override
+  protected void setUp() throws Exception {
+    TestUtils.setSealKeys();
+    file = File.createTempFile("journal", null);
+    file.delete();
+    journal = new SecretsJournal();
+  }
+
+  @Override
+  protected void tearDown() {
+    file.delete();
+  }
+
+  public void testEmpty() {
+    ArrayList<Secret> secrets = list(secret(1, "a", "pw"));
+    assertTrue(SecretsJournal.replay(file, secrets));
+    assertEquals(1, secrets.size());
+  }
+
+  public void testReplay() throws Exception {
+    Secret a = secret(1, "a", "pw a");
+    Secret b = secret(2, "b", "pw b");
+    Secret c = secret(3, "c", "pw c");
+    List<Secret> onDisk = list(a, b, c);
+    journal.reset(onDisk, 1000, 0);
+
+    // Compare every secret with what is on disk.
+    Secret z = secret(1, "z", "new pw a");
+    Secret d = secret(4, "d", "pw d");
+    assertEquals(3, journal.append(file, list(c, d, z), null));
+
+    ArrayList<Secret> secrets = list(a, b, c);
+    assertTrue(SecretsJournal.replay(file, secrets));
+    assertDescriptions(secrets, "c", "d", "z");
+    assertEquals("new pw a", secrets.get(2).getPassword(false));
+    assertEquals("pw d", secrets.get(1).getPassword(false));
+  }
+
+  public void testAppendOnlyLooksAtChanges() throws Exception {
+    Secret a = secret(1, "a", "pw");
+    Secret b = secret(2, "b", "pw");
+    journal.reset(list(a, b), 1000, 0);
+
+    // The copy of b is not in the changes, so it is not written, although
+    // it differs from what is on disk.
+    Secret a2 = secret(1, "a2", "pw");
+    Secret b2 = secret(2, "b2", "pw");
+    HashMap<Long, Secret> listed = new HashMap<Long, Secret>();
+    listed.put(1L, a2);
+    ChangeTracker.Changes changes =
+        new ChangeTracker.Changes(1, listed, new HashSet<Secret>());
+    assertEquals(1, journal.append(file, list(a2, b2), changes));
+
+    ArrayList<Secret> secrets = list(a, b);
+    assertTrue(SecretsJournal.replay(file, secrets));
+    assertDescriptions(secrets, "a2", "b");
+  }
+
+  public void testModifiedSecrets() throws Exception {
+    Secret a = secret(1, "a", "pw");
+    Secret b = secret(2, "b", "pw");
+    journal.reset(list(a, b), 1000, 0);
+
+    // A modified copy that is not in the list is not written.  A modified
+    // secret that is on disk is.
+    Secret copy = a.copy();
+    copy.setDescription("copy");
+    b.setDescription("b2");
+    HashSet<Secret> modified = new HashSet<Secret>(list(copy, b));
+    ChangeTracker.Changes changes = new ChangeTracker.Changes(
+        1, new HashMap<Long, Secret>(), modified);
+    assertEquals(1, journal.append(file, list(a, b), changes));
+
+    ArrayList<Secret> secrets = list(secret(1, "a", "pw"),
+                                     secret(2, "b", "pw"));
+    assertTrue(SecretsJournal.replay(file, secrets));
+    assertDescriptions(secrets, "a", "b2");
+  }
+
+  public void testDelete() throws Exception {
+    Secret a = secret(1, "a", "pw");
+    Secret b = secret(2, "b", "pw");
+    journal.reset(list(a, b), 1000, 0);
+
+    HashMap<Long, Secret> listed = new HashMap<Long, Secret>();
+    listed.put(2L, null);
+    listed.put(3L, null);
+    ChangeTracker.Changes changes =
+        new ChangeTracker.Changes(1, listed, new HashSet<Secret>());
+    assertEquals(1, journal.append(file, list(a), changes));
+    assertEquals(0, journal.append(file, list(a), null));
+
+    ArrayList<Secret> secrets = list(a, b);
+    assertTrue(SecretsJournal.replay(file, secrets));
+    assertDescriptions(secrets, "a");
+  }
+
+  public void testNullDescription() throws Exception {
+    Secret a = secret(1, "a", "pw");
+    journal.reset(list(a), 1000, 0);
+    Secret none = secret(2, null, "pw");
+    assertEquals(1, journal.append(file, list(none, a), null));
+
+    ArrayList<Secret> secrets = list(a);
+    assertTrue(SecretsJournal.replay(file, secrets));
+    assertEquals(2, secrets.size());
+    assertNull(secrets.get(0).getDescription());
+  }
+
+  public void testTruncated() throws Exception {
+    Secret a = secret(1, "a", "pw");
+    Secret b = secret(2, "b", "pw");
+    journal.reset(list(a), 1000, 0);
+    assertEquals(1, journal.append(file, list(a, b), null));
+    long length = file.length();
+    assertEquals(1, journal.append(file, list(a, b, secret(3, "c", "pw")),
+                                   null));
+
+    // The app died while appending the second record.  The first one is
+    // still replayed, but nothing more can be appended.
+    long[] cuts = {length + 2, length + 10, file.length() - 1};
+    for (long cut : cuts) {
+      truncate(cut);
+      ArrayList<Secret> secrets = list(a);
+      assertFalse(SecretsJournal.replay(file, secrets));
+      assertDescriptions(secrets, "a", "b");
+    }
+
+    truncate(length);
+    ArrayList<Secret> secrets = list(a);
+    assertTrue(SecretsJournal.replay(file, secrets));
+    assertDescriptions(secrets, "a", "b");
+  }
+
+  public void testNotAJournal() throws Exception {
+    Secret a = secret(1, "a", "pw");
+    journal.reset(list(a), 1000, 0);
+    assertEquals(1, journal.append(file, list(a, secret(2, "b", "pw")),
+                                   null));
+
+    // A file that does not start with the MAGIC bytes is not replayed.
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.writeInt(0);
+    } finally {
+      raf.close();
+    }
+
+    ArrayList<Secret> secrets = list(a);
+    assertFalse(SecretsJournal.replay(file, secrets));
+    assertDescriptions(secrets, "a");
+  }
+
+  private void truncate(long length) throws Exception {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(length);
+    } finally {
+      raf.close();
+    }
+  }
+
+}
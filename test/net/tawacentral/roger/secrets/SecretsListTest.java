@@ -0,0 +1,143 @@
+// Copyright (c) 2026, The Secrets for Android Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import static net.tawacentral.roger.secrets.TestUtils.assertDescriptions;
+import static net.tawacentral.roger.secrets.TestUtils.secret;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/** Tests for SecretsList. */
+public class SecretsListTest extends TestCase {
+  private static final String[] DESCRIPTIONS = {
+    "a", "B", "ab", "Abc", "abd", "b", "ba", "c", "", "Ab"
+  };
+
+  public void testInsertKeepsOrder() {
+    SecretsList list = new SecretsList();
+    ArrayList<Secret> expected = new ArrayList<Secret>();
+    Random random = new Random(1);
+    for (int i = 0; i < 200; ++i) {
+      Secret secret = secret(i, DESCRIPTIONS[random.nextInt(
+          DESCRIPTIONS.length)]);
+      int index = list.insert(secret);
+
+      // A secret goes after the ones with the same description.
+      int position = expected.size();
+      while (position > 0 && Secret.DESCRIPTION_ORDER.compare(
+          expected.get(position - 1), secret) > 0) {
+        --position;
+      }
+      expected.add(position, secret);
+      assertEquals(position, index);
+    }
+
+    assertEquals(expected, list);
+    for (int i = 0; i < expected.size(); ++i) {
+      assertEquals(i, list.indexOf(expected.get(i)));
+      assertSame(expected.get(i), list.getById(expected.get(i).getId()));
+    }
+    assertEquals(-1, list.indexOf(secret(1000, "a")));
+  }
+
+  public void testAddRemoveSet() {
+    SecretsList list = new SecretsList();
+    ArrayList<Secret> expected = new ArrayList<Secret>();
+    Random random = new Random(2);
+    for (int i = 0; i < 1000; ++i) {
+      int op = random.nextInt(3);
+      if (0 == op || expected.isEmpty()) {
+        int index = random.nextInt(expected.size() + 1);
+        Secret secret = secret(i, "s" + i);
+        list.add(index, secret);
+        expected.add(index, secret);
+      } else if (1 == op) {
+        int index = random.nextInt(expected.size());
+        assertSame(expected.remove(index), list.remove(index));
+        assertNull(list.getById(i));
+      } else {
+        int index = random.nextInt(expected.size());
+        Secret secret = secret(i, "s" + i);
+        assertSame(expected.set(index, secret), list.set(index, secret));
+      }
+    }
+
+    assertEquals(expected, list);
+    for (Secret secret : expected) {
+      assertSame(secret, list.getById(secret.getId()));
+    }
+  }
+
+  public void testSubList() {
+    ArrayList<Secret> expected = new ArrayList<Secret>();
+    for (int i = 0; i < 20; ++i) {
+      expected.add(secret(i, "s" + i));
+    }
+
+    // Every range splits the tree differently.
+    List<Secret> snapshot = new SecretsList(expected).snapshot();
+    for (int from = 0; from <= expected.size(); ++from) {
+      for (int to = from; to <= expected.size(); ++to) {
+        assertEquals(expected.subList(from, to), snapshot.subList(from, to));
+      }
+    }
+
+    try {
+      snapshot.subList(5, 21);
+      fail();
+    } catch (IndexOutOfBoundsException expectedException) {
+    }
+  }
+
+  public void testStartingWith() {
+    SecretsList list = new SecretsList();
+    for (int i = 0; i < DESCRIPTIONS.length; ++i) {
+      list.insert(secret(i, DESCRIPTIONS[i]));
+    }
+
+    assertDescriptions(list.startingWith(""), "", "a", "ab", "Ab", "Abc",
+                       "abd", "B", "b", "ba", "c");
+    assertDescriptions(list.startingWith("A"), "a", "ab", "Ab", "Abc",
+                       "abd");
+    assertDescriptions(list.startingWith("ab"), "ab", "Ab", "Abc", "abd");
+    assertDescriptions(list.startingWith("abc"), "Abc");
+    assertDescriptions(list.startingWith("b"), "B", "b", "ba");
+    assertDescriptions(list.startingWith("bb"));
+    assertDescriptions(list.startingWith("d"));
+
+    // The new list can be changed without changing this one.
+    SecretsList b = list.startingWith("b");
+    b.remove(0);
+    assertEquals(2, b.size());
+    assertEquals(DESCRIPTIONS.length, list.size());
+  }
+
+  public void testSnapshot() {
+    SecretsList list = new SecretsList();
+    list.insert(secret(1, "a"));
+    list.insert(secret(2, "b"));
+    List<Secret> snapshot = list.snapshot();
+
+    list.remove(0);
+    list.insert(secret(3, "c"));
+    assertDescriptions(snapshot, "a", "b");
+    assertDescriptions(list, "b", "c");
+  }
+
+}
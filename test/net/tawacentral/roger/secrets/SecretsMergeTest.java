@@ -0,0 +1,124 @@
+// Copyright (c) 2026, The Secrets for Android Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import static net.tawacentral.roger.secrets.TestUtils.list;
+import static net.tawacentral.roger.secrets.TestUtils.secret;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Tests for SecretsMerge. */
+public class SecretsMergeTest extends TestCase {
+  @Override
+  protected void setUp() {
+    TestUtils.setSealKeys();
+  }
+
+  public void testUnchanged() {
+    List<Secret> current = list(secret(1, "a", "pw", "note", 100));
+    List<Secret> restored = list(secret(1, "a", "pw", "note", 100));
+    SecretsMerge merge = SecretsMerge.compute(current, restored);
+    assertTrue(merge.isEmpty());
+    assertTrue(merge.deleted.isEmpty());
+  }
+
+  public void testNoteOnlyChange() {
+    // Changing the note does not add a CHANGED entry to the access log, so
+    // the time of last change is the same.
+    List<Secret> current = list(secret(1, "a", "pw", "new note", 100));
+    List<Secret> restored = list(secret(1, "a", "pw", "old note", 100));
+    SecretsMerge merge = SecretsMerge.compute(current, restored);
+    assertEquals(1, merge.changed.size());
+    assertSame(restored.get(0), merge.changed.get(0));
+    assertTrue(merge.added.isEmpty());
+  }
+
+  public void testPasswordOnlyChange() {
+    List<Secret> current = list(secret(1, "a", "new", "note", 100));
+    List<Secret> restored = list(secret(1, "a", "old", "note", 100));
+    SecretsMerge merge = SecretsMerge.compute(current, restored);
+    assertEquals(1, merge.changed.size());
+  }
+
+  public void testSameSealedBodyIsNotDecrypted() {
+    // The bytes cannot be decrypted, so the secrets are only found equal if
+    // the bytes are compared first.
+    byte[] body = {1, 2, 3, 4};
+    Secret s1 = secret(1, "a", null, null, 100);
+    Secret s2 = secret(1, "a", null, null, 100);
+    s1.setSealedBody(body);
+    s2.setSealedBody(body.clone());
+    assertTrue(SecretsMerge.compute(list(s1), list(s2)).isEmpty());
+  }
+
+  public void testSealedBodies() throws Exception {
+    // Sealing the same body twice gives different bytes, since the IV is
+    // random, so the bodies are decrypted to be compared.
+    Secret s1 = sealed(1, "pw", "note");
+    Secret s2 = sealed(1, "pw", "note");
+    Secret s3 = sealed(1, "pw", "other note");
+    assertTrue(SecretsMerge.compute(list(s1), list(s2)).isEmpty());
+    assertEquals(1, SecretsMerge.compute(list(s1), list(s3)).changed.size());
+  }
+
+  public void testAddedAndDeleted() {
+    Secret kept = secret(1, "a", "pw", "note", 100);
+    Secret deleted = secret(2, "b", "pw", "note", 100);
+    Secret added = secret(3, "c", "pw", "note", 100);
+    SecretsMerge merge = SecretsMerge.compute(list(kept, deleted),
+        list(secret(1, "a", "pw", "note", 100), added));
+    assertEquals(list(added), merge.added);
+    assertEquals(list(deleted), merge.deleted);
+    assertTrue(merge.changed.isEmpty());
+  }
+
+  public void testApplyNewestWins() {
+    Secret a = secret(1, "a", "pw", "note", 100);
+    Secret b = secret(2, "b", "pw", "note", 100);
+    Secret newer = secret(1, "c", "pw", "note", 200);
+    Secret older = secret(2, "d", "pw", "note", 50);
+    Secret added = secret(3, "B", "pw", "note", 100);
+    List<Secret> current = list(a, b);
+    SecretsMerge merge = SecretsMerge.compute(current,
+                                              list(newer, older, added));
+    List<Secret> result = new ArrayList<Secret>();
+    assertEquals(2, merge.apply(current, SecretsMerge.NEWEST_WINS, result));
+    assertEquals(list(b, added, newer), result);
+  }
+
+  public void testApplyKeepBoth() {
+    Secret a = secret(1, "a", "pw", "note", 100);
+    Secret changed = secret(1, "b", "other", "note", 50);
+    List<Secret> current = list(a);
+    SecretsMerge merge = SecretsMerge.compute(current, list(changed));
+    List<Secret> result = new ArrayList<Secret>();
+    assertEquals(1, merge.apply(current, SecretsMerge.KEEP_BOTH, result));
+    assertEquals(2, result.size());
+    assertSame(a, result.get(0));
+    assertEquals("b", result.get(1).getDescription());
+    assertTrue(1 != result.get(1).getId());
+  }
+
+  private static Secret sealed(long id, String password, String note)
+      throws Exception {
+    Secret secret = secret(id, "a", null, null, 100);
+    secret.setSealedBody(SecurityUtils.seal(SecurityUtils.SEAL_BODY, id,
+        SecretCodec.encodeBody(password, note)));
+    return secret;
+  }
+}
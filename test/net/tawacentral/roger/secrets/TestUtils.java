@@ -0,0 +1,85 @@
+// Copyright (c) 2026, The Secrets for Android Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import junit.framework.Assert;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Helpers shared by the unit tests. */
+class TestUtils {
+  /**
+   * Sets fixed keys for SecurityUtils.seal(), since the tests cannot create
+   * the PBE ciphers.
+   */
+  static void setSealKeys() {
+    byte[] cipherKey = new byte[32];
+    byte[] macKey = new byte[32];
+    for (int i = 0; i < cipherKey.length; ++i) {
+      cipherKey[i] = (byte) i;
+      macKey[i] = (byte) (255 - i);
+    }
+    SecurityUtils.setSealKeys(cipherKey, macKey);
+  }
+
+  /**
+   * Returns a secret with the given fields.  Its access log is newest first,
+   * like the ones of the app: it was viewed at each of the given times but
+   * the last one, when it was created.
+   */
+  static Secret secret(long id, String description, String username,
+                       String password, String email, String note,
+                       long... times) {
+    ArrayList<Secret.LogEntry> log = new ArrayList<Secret.LogEntry>();
+    for (int i = 0; i < times.length; ++i) {
+      log.add(new Secret.LogEntry(i == times.length - 1
+          ? Secret.LogEntry.CREATED : Secret.LogEntry.VIEWED, times[i]));
+    }
+    return new Secret(id, description, username, password, email, note, log);
+  }
+
+  /** Returns a secret created at the given time. */
+  static Secret secret(long id, String description, String password,
+                       String note, long created) {
+    return secret(id, description, "user", password, "email", note, created);
+  }
+
+  /** Returns a secret with the given description and password. */
+  static Secret secret(long id, String description, String password) {
+    return secret(id, description, password, "note", 100);
+  }
+
+  /** Returns a secret with the given description. */
+  static Secret secret(long id, String description) {
+    return secret(id, description, "pw");
+  }
+
+  /** Returns a list that can be changed, holding the given secrets. */
+  static ArrayList<Secret> list(Secret... secrets) {
+    return new ArrayList<Secret>(Arrays.asList(secrets));
+  }
+
+  /** Checks the descriptions of the secrets, in order. */
+  static void assertDescriptions(List<Secret> secrets,
+                                 String... descriptions) {
+    String[] actual = new String[secrets.size()];
+    for (int i = 0; i < actual.length; ++i) {
+      actual[i] = secrets.get(i).getDescription();
+    }
+    Assert.assertEquals(Arrays.asList(descriptions), Arrays.asList(actual));
+  }
+}